@@ -0,0 +1,65 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import server.ClientConnection;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one broadcast to a room of N clients: serializing per recipient (what OCSF's
+ * sendToAllClients does) versus encoding once and sharing the frame.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BroadcastBenchmark
+{
+  @Param({"10", "100", "1000"})
+  public int clients;
+
+  @Param({"32", "1024"})
+  public int messageLength;
+
+  private FakeServerTransport transport;
+
+  private List<ClientConnection> connections;
+
+  private String message;
+
+  @Setup
+  public void setup() {
+    transport = new FakeServerTransport(FakeServerTransport.noopHandler());
+    for (int i = 0; i < clients; i++) {
+      transport.addClient(new FakeClientConnection());
+    }
+    connections = transport.getClientConnections();
+    message = "alice: " + "x".repeat(Math.max(0, messageLength - 7));
+  }
+
+  @Benchmark
+  public void serializePerRecipient() throws IOException {
+    for (ClientConnection client : connections) {
+      client.sendToClient((Object) message);
+    }
+  }
+
+  @Benchmark
+  public void encodeOnce() {
+    transport.sendToAllClients(message);
+  }
+}
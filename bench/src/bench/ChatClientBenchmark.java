@@ -0,0 +1,46 @@
+package bench;
+
+import client.ChatClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ChatClient.handleMessageFromServer for a chat line and for a command sent by the server,
+ * on a client that is not connected and displays into a blackhole.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ChatClientBenchmark
+{
+  private ChatClient client;
+
+  @Setup
+  public void setup(Blackhole blackhole) {
+    client = new ChatClient("alice", "localhost", 0, blackhole::consume);
+  }
+
+  @Benchmark
+  public void chat() {
+    client.handleMessageFromServer("bob: hello everyone, how is it going?");
+  }
+
+  @Benchmark
+  public void command() {
+    client.handleMessageFromServer("#getport");
+  }
+}
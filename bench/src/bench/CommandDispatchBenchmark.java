@@ -0,0 +1,96 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import utils.CommandDispatcher;
+import utils.SCUtilities;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and dispatching one console command: CommandDispatcher against the former
+ * split-on-regex, HashMap check and equals() chain. Run through BenchmarkRunner to see
+ * allocations per command (gc.alloc.rate.norm).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandDispatchBenchmark
+{
+  /**
+   * Same shape as the server console commands
+   */
+  private enum COMMANDS {
+    quit, stop, close, setport, start, getport, queues
+  }
+
+  private static final HashMap<String, Boolean> ACCEPTED_COMMANDS = new HashMap<>();
+  static {
+    for (COMMANDS command : COMMANDS.values()) {
+      ACCEPTED_COMMANDS.put(command.name(), true);
+    }
+  }
+
+  @Param({"#getport", "#setport 5555", "#queues", "#unknown"})
+  public String line;
+
+  private CommandDispatcher<COMMANDS> dispatcher;
+
+  private Blackhole blackhole;
+
+  @Setup
+  public void setup(Blackhole blackhole) {
+    this.blackhole = blackhole;
+    dispatcher = new CommandDispatcher<>('#', COMMANDS.class);
+    for (COMMANDS command : COMMANDS.values()) {
+      dispatcher.on(command, (line, argStart, argEnd) -> blackhole.consume(argEnd - argStart));
+    }
+    dispatcher.on(COMMANDS.setport, (line, argStart, argEnd) -> blackhole.consume(Integer.parseInt(line, argStart, argEnd, 10)));
+  }
+
+  @Benchmark
+  public boolean dispatcher() throws IOException {
+    return dispatcher.dispatch(line);
+  }
+
+  @Benchmark
+  public boolean splitAndCompare() {
+    String[] commandAndArgs = SCUtilities.extractCommandAndArgs(line, "\\s+");
+    String command = commandAndArgs[0].substring(1);
+    String commandArgs = commandAndArgs[1];
+    if (!SCUtilities.isValidCommand(command, ACCEPTED_COMMANDS)) {
+      return false;
+    }
+    if (command.equals(COMMANDS.quit.name())) {
+      blackhole.consume(0);
+    } else if (command.equals(COMMANDS.stop.name())) {
+      blackhole.consume(1);
+    } else if (command.equals(COMMANDS.close.name())) {
+      blackhole.consume(2);
+    } else if (command.equals(COMMANDS.setport.name())) {
+      blackhole.consume(Integer.parseInt(commandArgs));
+    } else if (command.equals(COMMANDS.start.name())) {
+      blackhole.consume(4);
+    } else if (command.equals(COMMANDS.getport.name())) {
+      blackhole.consume(5);
+    } else if (command.equals(COMMANDS.queues.name())) {
+      blackhole.consume(6);
+    }
+    return true;
+  }
+}
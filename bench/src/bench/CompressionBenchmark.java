@@ -0,0 +1,166 @@
+package bench;
+
+import common.BinaryCodec;
+import common.EncodedMessage;
+import common.MessageDecoder;
+import common.WireFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * CPU spent deflating and inflating binary frames, per message and per broadcast (deflated once
+ * for every recipient, against once per recipient). Run main() for the bytes on the wire saved.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CompressionBenchmark
+{
+  /**
+   * A pasted log excerpt: repetitive structure, varying numbers
+   */
+  public static final String LOG = logExcerpt(16 * 1024);
+
+  @Param({"chat", "blob", "log"})
+  public String message;
+
+  @Param({"100"})
+  public int recipients;
+
+  private String text;
+
+  private BinaryCodec.Compressor compressor;
+
+  private ByteBuffer plainFrame;
+
+  private ByteBuffer deflatedFrame;
+
+  private MessageDecoder plainDecoder;
+
+  private MessageDecoder deflatingDecoder;
+
+  private Consumer<Object> sink;
+
+  @Setup
+  public void setup(Blackhole blackhole) throws IOException {
+    text = sample(message);
+    sink = blackhole::consume;
+    compressor = new BinaryCodec.Compressor(BinaryCodec.DEFAULT_COMPRESSION_THRESHOLD);
+
+    byte[] plain = WireFormat.binary.encode(text);
+    plainFrame = ByteBuffer.wrap(plain);
+    deflatedFrame = ByteBuffer.wrap(compressor.compress(plain));
+    plainDecoder = primedDecoder(false);
+    deflatingDecoder = primedDecoder(true);
+  }
+
+  private static MessageDecoder primedDecoder(boolean deflate) throws IOException {
+    MessageDecoder decoder = WireFormat.binary.newDecoder();
+    decoder.decode(ByteBuffer.wrap(WireFormat.binary.header(deflate)), msg -> {});
+    return decoder;
+  }
+
+  @Benchmark
+  public byte[] encodePlain() throws IOException {
+    return WireFormat.binary.encode(text);
+  }
+
+  @Benchmark
+  public byte[] encodeDeflated() throws IOException {
+    return compressor.compress(WireFormat.binary.encode(text));
+  }
+
+  @Benchmark
+  public void decodePlain() throws IOException {
+    plainFrame.rewind();
+    plainDecoder.decode(plainFrame, sink);
+  }
+
+  @Benchmark
+  public void decodeDeflated() throws IOException {
+    deflatedFrame.rewind();
+    deflatingDecoder.decode(deflatedFrame, sink);
+  }
+
+  /**
+   * One broadcast the way connections write it: the shared message is deflated by the first
+   * recipient, the others reuse that frame
+   */
+  @Benchmark
+  public void broadcastDeflatedOnce(Blackhole blackhole) throws IOException {
+    EncodedMessage encoded = new EncodedMessage(text);
+    for (int i = 0; i < recipients; i++) {
+      blackhole.consume(encoded.frame(WireFormat.binary, compressor));
+    }
+  }
+
+  /**
+   * One broadcast deflated again for every recipient, what per-connection compression would cost
+   */
+  @Benchmark
+  public void broadcastDeflatedPerRecipient(Blackhole blackhole) throws IOException {
+    EncodedMessage encoded = new EncodedMessage(text);
+    for (int i = 0; i < recipients; i++) {
+      blackhole.consume(compressor.compress(encoded.frame(WireFormat.binary)));
+    }
+  }
+
+  private static String sample(String name) {
+    switch (name) {
+      case "blob":
+        return ProtocolBenchmark.BLOB;
+      case "log":
+        return LOG;
+      default:
+        return ProtocolBenchmark.CHAT;
+    }
+  }
+
+  private static String logExcerpt(int length) {
+    Random random = new Random(42);
+    String[] levels = { "INFO", "DEBUG", "WARN" };
+    String[] events = { "request served", "cache miss", "connection opened", "connection closed", "retrying" };
+    StringBuilder log = new StringBuilder(length + 128);
+    while (log.length() < length) {
+      log.append(String.format("2024-03-%02d %02d:%02d:%02d.%03d %-5s [worker-%d] %s id=%08x took=%dms%n",
+              1 + random.nextInt(28), random.nextInt(24), random.nextInt(60), random.nextInt(60), random.nextInt(1000),
+              levels[random.nextInt(levels.length)], random.nextInt(16), events[random.nextInt(events.length)],
+              random.nextInt(), random.nextInt(500)));
+    }
+    return log.substring(0, length);
+  }
+
+  /**
+   * Prints the bytes on the wire for each sample message, plain and deflated
+   */
+  public static void main(String[] args) throws IOException {
+    BinaryCodec.Compressor compressor = new BinaryCodec.Compressor(BinaryCodec.DEFAULT_COMPRESSION_THRESHOLD);
+    System.out.printf("%-8s %8s %8s %10s %8s%n", "message", "chars", "binary", "deflated", "saved");
+    for (String name : new String[]{ "chat", "blob", "log" }) {
+      String sample = sample(name);
+      byte[] plain = WireFormat.binary.encode(sample);
+      byte[] deflated = compressor.compress(plain);
+      System.out.printf("%-8s %8d %8d %10d %7.1f%%%n", name, sample.length(), plain.length, deflated.length,
+              100.0 * (plain.length - deflated.length) / plain.length);
+    }
+  }
+}
@@ -0,0 +1,89 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import common.WireFormat;
+import server.EchoServer;
+import server.ServerEngine;
+import server.ServerOptions;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EchoServer.handleMessageFromClient on in-memory connections: a client logging in, a chat
+ * line fanned out to a room of N clients, and an invalid command, with clients speaking either
+ * wire format to a server of either kind of engine (ocsf only ever writes object streams, the
+ * others chat lines pre-encoded as binary frames). Run with "-prof gc" for the garbage each
+ * message leaves behind. The server never listens, so the engine's sockets are not involved.
+ * System.out is silenced while measuring, so console output does not dominate the results.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EchoServerBenchmark
+{
+  @Param({"1", "100"})
+  public int roomSize;
+
+  @Param({"objectStream", "binary"})
+  public WireFormat format;
+
+  @Param({"ocsf", "virtual"})
+  public ServerEngine engine;
+
+  private EchoServer server;
+
+  private FakeClientConnection sender;
+
+  private PrintStream stdout;
+
+  @Setup
+  public void setup() {
+    stdout = System.out;
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+    ServerOptions options = new ServerOptions();
+    options.setEngine(engine);
+    server = new EchoServer(0, message -> {}, options);
+    sender = new FakeClientConnection(format);
+    server.handleMessageFromClient("#login sender", sender);
+    for (int i = 1; i < roomSize; i++) {
+      server.handleMessageFromClient("#login client" + i, new FakeClientConnection(format));
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    System.setOut(stdout);
+  }
+
+  @Benchmark
+  public void login() {
+    server.handleMessageFromClient("#login sender", sender);
+  }
+
+  @Benchmark
+  public void chat() {
+    server.handleMessageFromClient("hello everyone, how is it going?", sender);
+  }
+
+  @Benchmark
+  public void invalidCommand() {
+    server.handleMessageFromClient("#bogus", sender);
+  }
+}
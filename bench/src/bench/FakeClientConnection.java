@@ -0,0 +1,80 @@
+package bench;
+
+import common.EncodedMessage;
+import common.WireFormat;
+import server.AbstractClientConnection;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+
+/**
+ * In-memory client connection: writes go to a counting sink instead of a socket.
+ * sendToClient(Object) serializes through a per-connection ObjectOutputStream like an OCSF
+ * ConnectionToClient does, sendToClient(EncodedMessage) writes the shared frame of the
+ * connection's wire format.
+ */
+public class FakeClientConnection extends AbstractClientConnection
+{
+  private final CountingOutputStream sink = new CountingOutputStream();
+
+  private final ObjectOutputStream output;
+
+  private final WireFormat format;
+
+  public FakeClientConnection() {
+    this(WireFormat.objectStream);
+  }
+
+  public FakeClientConnection(WireFormat format) {
+    this.format = format;
+    try {
+      output = new ObjectOutputStream(sink);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public void sendToClient(Object msg) throws IOException {
+    output.writeObject(msg);
+    output.reset();
+    output.flush();
+  }
+
+  @Override
+  public void sendToClient(EncodedMessage msg) throws IOException {
+    sink.write(msg.frame(format));
+  }
+
+  @Override
+  public void close() {}
+
+  @Override
+  public InetAddress getInetAddress() {
+    return InetAddress.getLoopbackAddress();
+  }
+
+  /**
+   * @return number of bytes written to this connection so far
+   */
+  public long bytesWritten() {
+    return sink.count;
+  }
+
+  private static final class CountingOutputStream extends OutputStream
+  {
+    private long count;
+
+    @Override
+    public void write(int b) {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+}
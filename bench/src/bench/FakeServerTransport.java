@@ -0,0 +1,64 @@
+package bench;
+
+import server.AbstractServerTransport;
+import server.ClientConnection;
+import server.ServerHandler;
+
+/**
+ * Server transport without sockets, connections are added by the benchmark.
+ */
+public class FakeServerTransport extends AbstractServerTransport
+{
+  private boolean listening;
+
+  public FakeServerTransport(ServerHandler handler) {
+    super(handler, 0);
+  }
+
+  /**
+   * Register a connection as if it had just been accepted
+   * @param client the connection
+   */
+  public void addClient(ClientConnection client) {
+    connectionOpened(client);
+  }
+
+  @Override
+  public void listen() {
+    listening = true;
+  }
+
+  @Override
+  public void stopListening() {
+    listening = false;
+  }
+
+  @Override
+  public void close() {
+    listening = false;
+  }
+
+  @Override
+  public boolean isListening() {
+    return listening;
+  }
+
+  /**
+   * @return a handler ignoring every hook
+   */
+  public static ServerHandler noopHandler() {
+    return new ServerHandler() {
+      @Override
+      public void handleMessageFromClient(Object msg, ClientConnection client) {}
+
+      @Override
+      public void clientConnected(ClientConnection client) {}
+
+      @Override
+      public void clientDisconnected(ClientConnection client) {}
+
+      @Override
+      public void clientException(ClientConnection client, Throwable exception) {}
+    };
+  }
+}
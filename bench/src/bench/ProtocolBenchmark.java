@@ -0,0 +1,184 @@
+package bench;
+
+import common.MessageDecoder;
+import common.WireFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Per-message decode and encode time of each wire format, against plain Java serialization
+ * (ObjectInputStream/ObjectOutputStream, what OCSF connections use).
+ * Run main() for the bytes on the wire of the same messages.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProtocolBenchmark
+{
+  /**
+   * Sample messages: a chat line, a command, and a large pasted blob
+   */
+  public static final String CHAT = "hello everyone, how is it going?";
+  public static final String LOGIN = "#login alice";
+  public static final String BLOB = "lorem ipsum dolor sit amet ".repeat(40);
+
+  @Param({"chat", "login", "blob"})
+  public String message;
+
+  private String text;
+
+  private ByteBuffer objectStreamFrame;
+
+  private ByteBuffer binaryFrame;
+
+  private MessageDecoder objectStreamDecoder;
+
+  private MessageDecoder binaryDecoder;
+
+  private ObjectInputStream objectInput;
+
+  private ObjectOutputStream objectOutput;
+
+  private Consumer<Object> sink;
+
+  @Setup
+  public void setup(Blackhole blackhole) throws IOException {
+    text = sample(message);
+    sink = blackhole::consume;
+
+    objectStreamFrame = ByteBuffer.wrap(WireFormat.objectStream.encode(text));
+    binaryFrame = ByteBuffer.wrap(WireFormat.binary.encode(text));
+    objectStreamDecoder = primedDecoder(WireFormat.objectStream);
+    binaryDecoder = primedDecoder(WireFormat.binary);
+
+    // an object stream replaying the same message forever
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.flush();
+    int headerLength = bytes.size();
+    out.writeObject(text);
+    out.reset();
+    out.flush();
+    objectInput = new ObjectInputStream(new ReplayInputStream(bytes.toByteArray(), headerLength));
+    objectOutput = new ObjectOutputStream(ByteArrayOutputStream.nullOutputStream());
+  }
+
+  private static MessageDecoder primedDecoder(WireFormat format) throws IOException {
+    MessageDecoder decoder = format.newDecoder();
+    decoder.decode(ByteBuffer.wrap(format.header()), msg -> {});
+    return decoder;
+  }
+
+  @Benchmark
+  public Object decodeObjectInputStream() throws Exception {
+    return objectInput.readObject();
+  }
+
+  @Benchmark
+  public void decodeObjectStreamCodec() throws IOException {
+    objectStreamFrame.rewind();
+    objectStreamDecoder.decode(objectStreamFrame, sink);
+  }
+
+  @Benchmark
+  public void decodeBinary() throws IOException {
+    binaryFrame.rewind();
+    binaryDecoder.decode(binaryFrame, sink);
+  }
+
+  @Benchmark
+  public void encodeObjectOutputStream() throws IOException {
+    objectOutput.writeObject(text);
+    objectOutput.reset();
+    objectOutput.flush();
+  }
+
+  @Benchmark
+  public byte[] encodeObjectStreamCodec() throws IOException {
+    return WireFormat.objectStream.encode(text);
+  }
+
+  @Benchmark
+  public byte[] encodeBinary() throws IOException {
+    return WireFormat.binary.encode(text);
+  }
+
+  private static String sample(String name) {
+    switch (name) {
+      case "login":
+        return LOGIN;
+      case "blob":
+        return BLOB;
+      default:
+        return CHAT;
+    }
+  }
+
+  /**
+   * Prints the bytes on the wire for each sample message and format
+   */
+  public static void main(String[] args) throws IOException {
+    System.out.printf("%-8s %8s %14s %8s%n", "message", "chars", "objectStream", "binary");
+    for (String name : new String[]{ "chat", "login", "blob" }) {
+      String sample = sample(name);
+      System.out.printf("%-8s %8d %14d %8d%n", name, sample.length(),
+              WireFormat.objectStream.encode(sample).length, WireFormat.binary.encode(sample).length);
+    }
+  }
+
+  /**
+   * Serves the header once, then the same message bytes over and over
+   */
+  private static final class ReplayInputStream extends InputStream
+  {
+    private final byte[] data;
+    private final int loopStart;
+    private int pos;
+
+    ReplayInputStream(byte[] data, int loopStart) {
+      this.data = data;
+      this.loopStart = loopStart;
+    }
+
+    @Override
+    public int read() {
+      if (pos == data.length) {
+        pos = loopStart;
+      }
+      return data[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (pos == data.length) {
+        pos = loopStart;
+      }
+      int count = Math.min(len, data.length - pos);
+      System.arraycopy(data, pos, b, off, count);
+      pos += count;
+      return count;
+    }
+  }
+}
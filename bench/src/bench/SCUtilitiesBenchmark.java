@@ -0,0 +1,35 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import utils.SCUtilities;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SCUtilities.extractCommandAndArgs, still used to parse "#login" on every client login.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SCUtilitiesBenchmark
+{
+  @Param({"#logoff", "#login alice", "#msg bob see you at noon"})
+  public String input;
+
+  @Benchmark
+  public String[] extractCommandAndArgs() {
+    return SCUtilities.extractCommandAndArgs(input, "\\s+");
+  }
+}
@@ -3,10 +3,13 @@
 // license found at www.lloseng.com 
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 
 import client.*;
 import common.*;
+import utils.ConsoleBuffer;
 
 /**
  * ClientConsole class helps to create a user interface for a ChatClient
@@ -35,6 +38,11 @@ public class ClientConsole implements ChatIF
    */
   Scanner fromConsole; 
 
+  /**
+   * Console output, written in batches so a busy room does not cost a write per message
+   */
+  final ConsoleBuffer output = new ConsoleBuffer(System.out);
+
   
   //Constructors ****************************************************
 
@@ -45,6 +53,18 @@ public class ClientConsole implements ChatIF
    * @param port The port to connect on.
    */
   public ClientConsole(String loginId, String host, int port)
+  {
+    this(loginId, host, port, new ClientOptions());
+  }
+
+  /**
+   * Constructs an instance of the ClientConsole UI.
+   *
+   * @param host The host to connect to.
+   * @param port The port to connect on.
+   * @param options Startup options of the client (engine, protocol, ...)
+   */
+  public ClientConsole(String loginId, String host, int port, ClientOptions options)
   {
     // login id must be provided
     if (loginId == null) {
@@ -53,7 +73,7 @@ public class ClientConsole implements ChatIF
 
     try 
     {
-      client= new ChatClient(loginId, host, port, this);
+      client= new ChatClient(loginId, host, port, this, options);
     }
     catch (IllegalArgumentException e) {
       display(e.getMessage());
@@ -96,9 +116,30 @@ public class ClientConsole implements ChatIF
    * @param message The string to be displayed.
    */
   public void display(String message) 
+  {
+    output.println(format(message));
+  }
+
+  /**
+   * This method overrides the method in the ChatIF interface.  It
+   * displays messages onto the screen, in a single write.
+   *
+   * @param messages The strings to be displayed.
+   */
+  @Override
+  public void displayAll(List<String> messages)
+  {
+    List<String> lines = new ArrayList<>(messages.size());
+    for (String message : messages) {
+      lines.add(format(message));
+    }
+    output.printAll(lines);
+  }
+
+  private static String format(String message)
   {
     // if it's a server message, no need for ">" prefix
-    System.out.println((message.startsWith("SERVER MSG>") ? message : "> " + message));
+    return message.startsWith("SERVER MSG>") ? message : "> " + message;
   }
 
   
@@ -107,7 +148,8 @@ public class ClientConsole implements ChatIF
   /**
    * This method is responsible for the creation of the Client UI.
    *
-   * @param args arguments in order: hostname port-number
+   * @param args arguments in order: loginId hostname port-number, followed by optional
+   *             name=value client options (ex: engine=virtual protocol=binary)
    */
   public static void main(String[] args) 
   {
@@ -135,7 +177,17 @@ public class ClientConsole implements ChatIF
       System.out.println("No port number provided, connecting on host: " + host + ", port: " + port);
     }
 
-    ClientConsole chat = new ClientConsole(loginId, host, port);
+    // parse client options following the port number
+    ClientOptions options;
+    try {
+      options = ClientOptions.parse(args, 3);
+    }
+    catch (IllegalArgumentException e) {
+      System.out.println(e.getMessage() + ". Using default client options");
+      options = new ClientOptions();
+    }
+
+    ClientConsole chat = new ClientConsole(loginId, host, port, options);
     // below implemented for Testcase 2003 (generally, ClientConsole must have a login id)
     try{
       chat.client.connectToServer();
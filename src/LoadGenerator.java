@@ -0,0 +1,383 @@
+import client.ChatClient;
+import client.ClientEngine;
+import client.ClientOptions;
+import common.WireFormat;
+import server.EchoServer;
+import server.ServerEngine;
+import server.ServerOptions;
+import utils.LatencyHistogram;
+import utils.LogLevel;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load generator: opens N ChatClient sessions against an EchoServer, has them send
+ * chat lines at a fixed aggregate rate, and measures how long each broadcast takes to reach
+ * every recipient. The report (throughput, latency percentiles) is printed and written to a file.
+ * <p>
+ * In logon mode it only checks that all N sessions log on, and exits with status 1 otherwise.
+ * An embedded server takes a second file descriptor per session, past ten thousand or so
+ * sessions the server runs in its own process (see the README's logon check):
+ * <pre>
+ *   java LoadGenerator mode=logon server=virtual engine=virtual clients=5000
+ *   java LoadGenerator mode=logon engine=virtual port=5555 clients=19000
+ * </pre>
+ * <p>
+ * Every message carries the time it was scheduled to be sent, so a stalled sender or server
+ * shows up in the latencies instead of silently lowering the send rate.
+ */
+public class LoadGenerator {
+    //Class variables *************************************************
+
+    /**
+     * Marks the timestamp inside a load message: "lg|&lt;nanoTime&gt;|padding"
+     */
+    private static final String MARKER = "lg|";
+
+    //Instance variables **********************************************
+
+    private String host = "localhost";
+
+    private int port = ServerConsole.DEFAULT_PORT;
+
+    private int clients = 100;
+
+    /**
+     * Only check that every session logs on, send nothing
+     */
+    private boolean logonOnly;
+
+    private int logonTimeoutSeconds = 60;
+
+    /**
+     * Sessions connecting at once, so a burst of connects does not overflow the server's
+     * accept backlog
+     */
+    private int logonWindow = 100;
+
+    /**
+     * Messages per second, all clients together
+     */
+    private int rate = 1000;
+
+    private int durationSeconds = 30;
+
+    private int warmupSeconds = 5;
+
+    private int messageSize = 64;
+
+    /**
+     * Engine of an EchoServer started in this JVM, or null to load an external server
+     */
+    private ServerEngine embeddedServer;
+
+    /**
+     * Log level of the embedded server, above debug so it does not log every chat line while
+     * the latencies are measured
+     */
+    private LogLevel serverLogLevel = LogLevel.warn;
+
+    private final ClientOptions clientOptions = new ClientOptions();
+
+    private Path report = Path.of("loadgen-report.txt");
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    private final AtomicLong received = new AtomicLong();
+
+    /**
+     * Messages the sessions could not write (send queue full or connection lost)
+     */
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * Messages scheduled before this nanoTime (warm-up) are not recorded
+     */
+    private volatile long measureStart = Long.MAX_VALUE;
+
+    //Instance methods ************************************************
+
+    /**
+     * Set a single option from its name and string value
+     * @param name option name
+     * @param value option value
+     * @throws IllegalArgumentException if the option is unknown or its value invalid
+     */
+    void set(String name, String value) {
+        try {
+            switch (name) {
+                case "host":
+                    host = value;
+                    break;
+                case "port":
+                    port = Integer.parseInt(value);
+                    break;
+                case "mode":
+                    if (!value.equals("load") && !value.equals("logon")) {
+                        throw new IllegalArgumentException("mode must be load or logon");
+                    }
+                    logonOnly = value.equals("logon");
+                    break;
+                case "logon.timeout":
+                    logonTimeoutSeconds = positive(name, Integer.parseInt(value));
+                    break;
+                case "logon.window":
+                    logonWindow = positive(name, Integer.parseInt(value));
+                    break;
+                case "clients":
+                    clients = positive(name, Integer.parseInt(value));
+                    break;
+                case "rate":
+                    rate = positive(name, Integer.parseInt(value));
+                    break;
+                case "duration":
+                    durationSeconds = positive(name, Integer.parseInt(value));
+                    break;
+                case "warmup":
+                    warmupSeconds = Math.max(0, Integer.parseInt(value));
+                    break;
+                case "size":
+                    messageSize = Math.max(0, Integer.parseInt(value));
+                    break;
+                case "server":
+                    embeddedServer = ServerEngine.valueOf(value);
+                    break;
+                case "server.log":
+                    serverLogLevel = LogLevel.valueOf(value);
+                    break;
+                case "engine":
+                    clientOptions.setEngine(ClientEngine.valueOf(value));
+                    break;
+                case "protocol":
+                    clientOptions.setProtocol(WireFormat.valueOf(value));
+                    break;
+                case "compression.threshold":
+                    clientOptions.setCompressionThreshold(Integer.parseInt(value));
+                    break;
+                case "send.queue":
+                    clientOptions.setSendQueueCapacity(Integer.parseInt(value));
+                    break;
+                case "send.batch":
+                    clientOptions.setSendBatchSize(Integer.parseInt(value));
+                    break;
+                case "send.linger":
+                    clientOptions.setSendLingerMillis(Integer.parseInt(value));
+                    break;
+                case "report":
+                    report = Path.of(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown load generator option: " + name);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value provided for " + name + ": " + value);
+        }
+    }
+
+    /**
+     * Run the whole load test: connect, warm up, measure, disconnect, report
+     */
+    void run() throws Exception {
+        EchoServer server = null;
+        if (embeddedServer != null) {
+            ServerOptions serverOptions = new ServerOptions();
+            serverOptions.setEngine(embeddedServer);
+            serverOptions.setLogLevel(serverLogLevel);
+            server = new EchoServer(port, message -> {}, serverOptions);
+            server.getTransport().listen();
+        }
+        clientOptions.setExitOnQuit(false);
+
+        // connect every session and wait until all of them are logged in
+        long logonStart = System.nanoTime();
+        long logonDeadline = logonStart + TimeUnit.SECONDS.toNanos(logonTimeoutSeconds);
+        CountDownLatch loggedOn = new CountDownLatch(clients);
+        Semaphore connecting = new Semaphore(logonWindow);
+        List<ChatClient> sessions = new ArrayList<>(clients);
+        for (int i = 0; i < clients; i++) {
+            if (!connecting.tryAcquire(logonDeadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                break;
+            }
+            String loginId = "load" + i;
+            ChatClient session = new ChatClient(loginId, host, port, message -> onMessage(message, loginId, loggedOn, connecting), clientOptions);
+            session.connectToServer();
+            sessions.add(session);
+        }
+        if (!loggedOn.await(logonDeadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+            throw new IOException("Only " + (clients - loggedOn.getCount()) + " of " + clients + " sessions logged on");
+        }
+        if (logonOnly) {
+            checkLogon(server, sessions, System.nanoTime() - logonStart);
+            return;
+        }
+        System.out.println(clients + " sessions logged on, warming up for " + warmupSeconds + "s");
+
+        send(sessions, warmupSeconds);
+        System.out.println("Measuring for " + durationSeconds + "s at " + rate + " messages/s");
+        long start = System.nanoTime();
+        measureStart = start;
+        long sent = send(sessions, durationSeconds);
+        long sendNanos = System.nanoTime() - start;
+
+        // every message goes to every session, wait for the stragglers
+        long expected = sent * clients;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (received.get() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        long elapsedNanos = System.nanoTime() - start;
+
+        for (ChatClient session : sessions) {
+            session.quit();
+        }
+        if (server != null) {
+            server.getTransport().close();
+        }
+
+        writeReport(sent, expected, sendNanos, elapsedNanos);
+    }
+
+    /**
+     * End of a logon check: the embedded server must see every session, then all of them quit
+     * @throws IOException if the server counts fewer connections than sessions logged on
+     */
+    private void checkLogon(EchoServer server, List<ChatClient> sessions, long logonNanos) throws IOException {
+        int connected = server == null ? clients : server.getTransport().getNumberOfClients();
+        for (ChatClient session : sessions) {
+            session.quit();
+        }
+        if (server != null) {
+            server.getTransport().close();
+        }
+        if (connected != clients) {
+            throw new IOException("The server counted " + connected + " of " + clients + " sessions");
+        }
+        System.out.printf("%d sessions logged on in %.1fs%n", clients, logonNanos / 1e9);
+    }
+
+    /**
+     * Send messages round-robin from the sessions, paced to the configured rate. Sends are
+     * queued, so a slow connection does not hold up the pacing of the others.
+     * @return number of messages sent
+     */
+    private long send(List<ChatClient> sessions, int seconds) {
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long count = (long) rate * seconds;
+        String padding = "x".repeat(messageSize);
+        long start = System.nanoTime();
+        for (long i = 0; i < count; i++) {
+            long scheduled = start + i * interval;
+            long wait = scheduled - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            sessions.get((int) (i % sessions.size())).sendAsync(MARKER + scheduled + "|" + padding)
+                    .whenComplete((written, e) -> {
+                        if (e != null) {
+                            failed.incrementAndGet();
+                        }
+                    });
+        }
+        return count;
+    }
+
+    /**
+     * Display callback of every session
+     */
+    private void onMessage(String message, String loginId, CountDownLatch loggedOn, Semaphore connecting) {
+        int marker = message.indexOf(MARKER);
+        if (marker >= 0) {
+            long now = System.nanoTime();
+            int start = marker + MARKER.length();
+            int end = message.indexOf('|', start);
+            long scheduled = Long.parseLong(message, start, end, 10);
+            if (scheduled >= measureStart) {
+                latencies.record(now - scheduled);
+                received.incrementAndGet();
+            }
+        } else if (message.equals(loginId + " has logged on.")) {
+            loggedOn.countDown();
+            connecting.release();
+        }
+    }
+
+    private void writeReport(long sent, long expected, long sendNanos, long elapsedNanos) throws IOException {
+        double seconds = sendNanos / 1e9;
+        List<String> lines = new ArrayList<>();
+        lines.add("target       " + (embeddedServer == null ? host + ":" + port : "embedded " + embeddedServer + " server on port " + port));
+        lines.add("clients      " + clients + " (" + clientOptions.getEngine() + ", " + clientOptions.getProtocol() + ")");
+        lines.add("message size " + messageSize + " bytes of padding");
+        lines.add(String.format("sent         %d messages in %.1fs (%.0f/s, target %d/s)", sent, seconds, sent / seconds, rate));
+        lines.add("send failed  " + failed.get() + " messages");
+        lines.add(String.format("delivered    %d of %d (%.0f/s)", latencies.getTotalCount(), expected, latencies.getTotalCount() / (elapsedNanos / 1e9)));
+        lines.add(String.format("latency us   mean %.1f  p50 %.1f  p90 %.1f  p99 %.1f  p99.9 %.1f  max %.1f",
+                latencies.getMean() / 1e3,
+                latencies.getValueAtPercentile(50) / 1e3,
+                latencies.getValueAtPercentile(90) / 1e3,
+                latencies.getValueAtPercentile(99) / 1e3,
+                latencies.getValueAtPercentile(99.9) / 1e3,
+                latencies.getMax() / 1e3));
+
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(report))) {
+            for (String line : lines) {
+                System.out.println(line);
+                out.println(line);
+            }
+        }
+        System.out.println("Report written to " + report.toAbsolutePath());
+    }
+
+    //Class methods ***************************************************
+
+    private static int positive(String name, int value) {
+        if (value < 1) {
+            throw new IllegalArgumentException(name + " must be at least 1");
+        }
+        return value;
+    }
+
+    /**
+     * This method is responsible for the creation of the LoadGenerator
+     *
+     * @param args name=value options: mode (load, or logon to only check that all the sessions
+     *             log on within logon.timeout seconds, logon.window of them connecting at once), host, port, clients, rate (messages/s), duration and warmup
+     *             (seconds), size (padding bytes), server (start an embedded server on that engine),
+     *             server.log (its log level, warn by default),
+     *             engine, protocol, compression.threshold and send.queue/batch/linger (client
+     *             transport), report (file)
+     *             (ex: server=nio clients=1000 rate=2000 duration=60)
+     */
+    public static void main(String[] args) {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            for (String arg : args) {
+                int separator = arg.indexOf('=');
+                if (separator <= 0) {
+                    throw new IllegalArgumentException("Expected name=value, got: " + arg);
+                }
+                generator.set(arg.substring(0, separator), arg.substring(separator + 1));
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+
+        try {
+            generator.run();
+        } catch (Exception e) {
+            System.out.println("Load test failed: " + e.getMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+}
@@ -1,6 +1,10 @@
 import common.ChatIF;
 import server.EchoServer;
+import server.ServerOptions;
+import utils.ConsoleBuffer;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 
 /**
@@ -29,6 +33,11 @@ public class ServerConsole implements ChatIF {
      */
     Scanner fromConsole;
 
+    /**
+     * Console output, written in batches and never dropped, whatever the logging options
+     */
+    final ConsoleBuffer output = new ConsoleBuffer(System.out);
+
 
     //Constructors ****************************************************
 
@@ -38,14 +47,25 @@ public class ServerConsole implements ChatIF {
      * @param port The port to connect on.
      */
     public ServerConsole(int port)
+    {
+        this(port, new ServerOptions());
+    }
+
+    /**
+     * Constructs an instance of the ServerConsole UI.
+     *
+     * @param port The port to connect on.
+     * @param options Startup options of the server (engine, ...)
+     */
+    public ServerConsole(int port, ServerOptions options)
     {
         // instantiate echo server
-        server = new EchoServer(port, this);
+        server = new EchoServer(port, this, options);
 
         // attempt to start listening for connections
         try
         {
-            server.listen();
+            server.getTransport().listen();
         }
         catch (Exception ex)
         {
@@ -90,7 +110,24 @@ public class ServerConsole implements ChatIF {
      */
     public void display(String message)
     {
-        System.out.println("SERVER MSG> " + message);
+        output.println("SERVER MSG> " + message);
+    }
+
+    /**
+     * This method overrides the method in the ChatIF interface.  It
+     * displays messages onto the screen, in a single write.
+     *
+     * @param messages The strings to be displayed.
+     */
+    @Override
+    public void displayAll(List<String> messages)
+    {
+        List<String> lines = new ArrayList<>(messages.size());
+        for (String message : messages)
+        {
+            lines.add("SERVER MSG> " + message);
+        }
+        output.printAll(lines);
     }
 
     //Class methods ***************************************************
@@ -98,7 +135,8 @@ public class ServerConsole implements ChatIF {
     /**
      * This method is responsible for the creation of the ServerConsole
      *
-     * @param args first argument: port number
+     * @param args first argument: port number, followed by optional name=value server options
+     *             (ex: engine=nio loops=4)
      */
     public static void main(String[] args)
     {
@@ -117,8 +155,21 @@ public class ServerConsole implements ChatIF {
             System.out.println("Invalid port number provided");
         }
 
+        // parse server options following the port number
+        ServerOptions options;
+        try
+        {
+            options = ServerOptions.parse(args, 1);
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.out.println(e.getMessage() + ". Using default server options");
+            options = new ServerOptions();
+        }
+        System.out.println("Server engine: " + options.getEngine());
+
         // instantiate a new echo server
-        ServerConsole serverUI = new ServerConsole(port);
+        ServerConsole serverUI = new ServerConsole(port, options);
         // accept input from server user
         serverUI.accept();
     }
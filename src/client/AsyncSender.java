@@ -0,0 +1,209 @@
+package client;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sends messages to the server from a writer thread of its own, so callers never wait on the
+ * network. Messages queued while a write is in progress are written together, up to a batch
+ * size, through ClientTransport.sendAllToServer (a single socket write on transports that
+ * support it). A batch is written as soon as it is full, or once it has waited the linger time.
+ * A lock rather than synchronized is used so the virtual writer thread never pins its carrier.
+ */
+public class AsyncSender implements AutoCloseable
+{
+  /**
+   * A queued message and the future completed once it is written
+   */
+  private static final class Pending
+  {
+    final Object msg;
+    final CompletableFuture<Void> future = new CompletableFuture<>();
+
+    Pending(Object msg) {
+      this.msg = msg;
+    }
+  }
+
+  /**
+   * Fails a send refused because too many messages are waiting, the connection itself is fine
+   */
+  public static final class QueueFullException extends IOException
+  {
+    QueueFullException() {
+      super("send queue full, the server is not keeping up");
+    }
+  }
+
+  //Instance variables **********************************************
+
+  private final ClientTransport transport;
+
+  private final int capacity;
+
+  private final int batchSize;
+
+  private final long lingerNanos;
+
+  private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+
+  private final ReentrantLock lock = new ReentrantLock();
+
+  private final Condition notEmpty = lock.newCondition();
+
+  private boolean closed;
+
+  private final Thread writer;
+
+  //Constructors ****************************************************
+
+  /**
+   * @param transport the transport messages are sent through
+   * @param capacity most messages waiting to be written, further sends fail
+   * @param batchSize most messages written at once
+   * @param lingerMillis how long a batch that is not full waits for more messages, 0 for not at all
+   */
+  public AsyncSender(ClientTransport transport, int capacity, int batchSize, long lingerMillis) {
+    if (capacity < 1 || batchSize < 1 || lingerMillis < 0) {
+      throw new IllegalArgumentException("Invalid send queue limits");
+    }
+    this.transport = transport;
+    this.capacity = capacity;
+    this.batchSize = batchSize;
+    this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+    writer = Thread.ofVirtual().name("client-writer").start(this::writeLoop);
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Queue a message for the server
+   * @param msg the message
+   * @return completed once the message is written, or exceptionally with the IOException that
+   *         prevented it: a QueueFullException if too many messages are waiting, or the error
+   *         of the transport or of the sender being closed
+   */
+  public CompletableFuture<Void> send(Object msg) {
+    Pending pending = new Pending(msg);
+    lock.lock();
+    try {
+      if (closed) {
+        pending.future.completeExceptionally(new IOException("sender closed"));
+      } else if (queue.size() >= capacity) {
+        pending.future.completeExceptionally(new QueueFullException());
+      } else {
+        queue.add(pending);
+        notEmpty.signal();
+      }
+    } finally {
+      lock.unlock();
+    }
+    return pending.future;
+  }
+
+  /**
+   * @return number of messages waiting to be written
+   */
+  public int getQueued() {
+    lock.lock();
+    try {
+      return queue.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Write what is queued, then stop the writer thread, without waiting for it
+   */
+  @Override
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      notEmpty.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Write what is queued, then stop the writer thread, waiting a while for it to be done
+   * @param timeoutMillis most time waited
+   * @return true if everything queued was written, or failed to, in time
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public boolean close(long timeoutMillis) throws InterruptedException {
+    close();
+    // completing a send's future runs its callbacks on the writer, which may be closing us
+    if (Thread.currentThread() == writer) {
+      return false;
+    }
+    return writer.join(Duration.ofMillis(timeoutMillis));
+  }
+
+  private void writeLoop() {
+    List<Pending> batch = new ArrayList<>(batchSize);
+    List<Object> messages = new ArrayList<>(batchSize);
+    try {
+      while (takeBatch(batch)) {
+        for (Pending pending : batch) {
+          messages.add(pending.msg);
+        }
+        try {
+          if (messages.size() == 1) {
+            transport.sendToServer(messages.get(0));
+          } else {
+            transport.sendAllToServer(messages);
+          }
+          for (Pending pending : batch) {
+            pending.future.complete(null);
+          }
+        } catch (IOException | RuntimeException e) {
+          for (Pending pending : batch) {
+            pending.future.completeExceptionally(e);
+          }
+        }
+        batch.clear();
+        messages.clear();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Wait for the next batch and move it out of the queue
+   * @return false once closed and everything queued was written
+   */
+  private boolean takeBatch(List<Pending> batch) throws InterruptedException {
+    lock.lock();
+    try {
+      while (queue.isEmpty()) {
+        if (closed) {
+          return false;
+        }
+        notEmpty.await();
+      }
+      if (lingerNanos > 0) {
+        long remaining = lingerNanos;
+        while (queue.size() < batchSize && !closed && remaining > 0) {
+          remaining = notEmpty.awaitNanos(remaining);
+        }
+      }
+      while (batch.size() < batchSize && !queue.isEmpty()) {
+        batch.add(queue.poll());
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -6,17 +6,25 @@ package client;
 
 import ocsf.client.*;
 import common.*;
+import utils.CommandDispatcher;
 import utils.SCUtilities;
 
 import java.io.*;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Concrete class implementing AbstractClient of the OCSF framework
+ * The connection itself is carried by a ClientTransport, the OCSF one by default.
  * @author Pranav Kural
  * Student number: 300241227
  */
-public class ChatClient extends AbstractClient {
+public class ChatClient extends AbstractClient implements ClientHandler {
   //Instance variables **********************************************
 
   /**
@@ -31,14 +39,59 @@ public class ChatClient extends AbstractClient {
   String loginId;
 
   /**
-   * Specify signature of the command sent by client to set login id
+   * The transport carrying the connection to the server
    */
-  public static final String CLIENT_SET_LOGIN_ID_COMMAND = "#login";
+  private final ClientTransport transport;
+
+  /**
+   * Whether quit() exits the JVM
+   */
+  private final boolean exitOnQuit;
+
+  /**
+   * Writes chat messages and forwarded commands in the background, batching them
+   */
+  private final AsyncSender sender;
+
+  /**
+   * Seconds between two heartbeats, 0 for none
+   */
+  private final int heartbeatSeconds;
+
+  /**
+   * Sends the heartbeats of the current connection, null while there is none
+   */
+  private volatile ScheduledFuture<?> heartbeat;
+
+  /**
+   * nanoTime of the last message received from the server
+   */
+  private volatile long lastReceived;
+
+  /**
+   * Thread sending the heartbeats of every ChatClient of the JVM
+   */
+  private static final ScheduledExecutorService HEARTBEATS = Executors.newSingleThreadScheduledExecutor(task -> {
+    Thread thread = new Thread(task, "client-heartbeat");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /**
+   * Specify signature of the heartbeat sent to the server, and of its answer
+   */
+  private static final String PING_COMMAND = "#ping";
+  private static final String PONG_REPLY = "#pong";
 
   /**
-   * Specify delimiter used to separate command from arguments provided with it
+   * Most milliseconds quit() waits for the messages still queued to be written
    */
-  private static final String COMMAND_ARGUMENT_SEPARATOR = "\\s+";
+  private static final long QUIT_DRAIN_MILLIS = 2000;
+
+  /**
+   * Specify signature of the command sent by client to set login id
+   */
+  public static final String CLIENT_SET_LOGIN_ID_COMMAND = "#login";
 
   // define a structure for all commands
   // to avoid using hard-coded strings in multiple places
@@ -49,20 +102,29 @@ public class ChatClient extends AbstractClient {
     setport,
     login,
     gethost,
-    getport
+    getport,
+    msg, // private message: #msg <loginId> <text>
+    join, // join a room and talk in it: #join <room>
+    leave, // leave a room: #leave <room>
+    history, // last messages sent: #history <n>
+    search // newest messages holding all the terms: #search <terms>
   }
 
-  // list of accepted commands (common to all clients)
-  // storing in a HashMap for quickly checking if a given string value if a valid command (in O(1))
-  private final static HashMap<String, Boolean> ACCEPTED_COMMANDS = new HashMap<>() {{
-    put(COMMANDS.quit.name(), true);
-    put(COMMANDS.logoff.name(), true);
-    put(COMMANDS.sethost.name(), true);
-    put(COMMANDS.setport.name(), true);
-    put(COMMANDS.login.name(), true);
-    put(COMMANDS.gethost.name(), true);
-    put(COMMANDS.getport.name(), true);
-  }};
+  // handlers of the accepted commands (common to all clients), looked up by command name
+  private final CommandDispatcher<COMMANDS> commandDispatcher = new CommandDispatcher<>('#', COMMANDS.class)
+          .on(COMMANDS.quit, (line, argStart, argEnd) -> quit())
+          .on(COMMANDS.logoff, (line, argStart, argEnd) -> logoff())
+          .on(COMMANDS.sethost, (line, argStart, argEnd) -> changeHost(CommandDispatcher.argument(line, argStart, argEnd)))
+          .on(COMMANDS.setport, this::changePort)
+          .on(COMMANDS.login, (line, argStart, argEnd) -> login())
+          .on(COMMANDS.gethost, (line, argStart, argEnd) -> displayHost())
+          .on(COMMANDS.getport, (line, argStart, argEnd) -> displayPort())
+          // private messages, rooms, history and search are handled by the server
+          .on(COMMANDS.msg, (line, argStart, argEnd) -> forwardToServer(line))
+          .on(COMMANDS.join, (line, argStart, argEnd) -> forwardToServer(line))
+          .on(COMMANDS.leave, (line, argStart, argEnd) -> forwardToServer(line))
+          .on(COMMANDS.history, (line, argStart, argEnd) -> forwardToServer(line))
+          .on(COMMANDS.search, (line, argStart, argEnd) -> forwardToServer(line));
 
   //Constructors ****************************************************
 
@@ -75,9 +137,34 @@ public class ChatClient extends AbstractClient {
    */
 
   public ChatClient(String loginId, String host, int port, ChatIF clientUI) throws IllegalArgumentException {
+    this(loginId, host, port, clientUI, new ClientOptions());
+  }
+
+  /**
+   * Constructs an instance of the chat client.
+   *
+   * @param host     The server to connect to.
+   * @param port     The port number to connect on.
+   * @param clientUI The interface type variable.
+   * @param options  Startup options, including the transport and wire format to use.
+   */
+  public ChatClient(String loginId, String host, int port, ChatIF clientUI, ClientOptions options) throws IllegalArgumentException {
     super(host, port); //Call the superclass constructor
     this.clientUI = clientUI;
     setLoginId(loginId);
+    this.exitOnQuit = options.isExitOnQuit();
+    if (options.getCompressionThreshold() > 0 && options.getProtocol() != WireFormat.binary) {
+      throw new IllegalArgumentException("ERROR - Compression needs protocol=binary.");
+    }
+    if (options.getEngine() == ClientEngine.virtual) {
+      transport = SocketClientTransport.withVirtualThreads(this, host, port, options.getProtocol(), options.getCompressionThreshold());
+    } else if (options.getProtocol() == WireFormat.objectStream) {
+      transport = new OcsfClientTransport();
+    } else {
+      throw new IllegalArgumentException("ERROR - The " + options.getProtocol() + " protocol needs engine=virtual.");
+    }
+    sender = new AsyncSender(transport, options.getSendQueueCapacity(), options.getSendBatchSize(), options.getSendLingerMillis());
+    heartbeatSeconds = options.getHeartbeatSeconds();
   }
 
 
@@ -98,26 +185,74 @@ public class ChatClient extends AbstractClient {
     if (this.loginId == null || this.loginId.isEmpty()) {
       throw new IOException("ERROR - No login ID specified.  Connection aborted.");
     }
-    openConnection();
+    transport.openConnection();
   }
 
   /**
-   * This method handles all data that comes in from the server.
+   * @return the transport carrying the connection to the server
+   */
+  public ClientTransport getTransport() {
+    return transport;
+  }
+
+  /**
+   * Sends a message to the server through the client's transport.
+   *
+   * @param msg The message to be sent.
+   * @throws IOException if an I/O error occurs when sending the message.
+   */
+  @Override
+  public void sendToServer(Object msg) throws IOException {
+    transport.sendToServer(msg);
+  }
+
+  /**
+   * Queues a message for the server without waiting for it to be written. Messages queued
+   * together are written together (one socket write with the virtual engine).
+   *
+   * @param msg The message to be sent.
+   * @return completed once the message is written, or exceptionally with the IOException that
+   *         prevented it, including the send queue being full
+   */
+  public CompletableFuture<Void> sendAsync(Object msg) {
+    return sender.send(msg);
+  }
+
+  /**
+   * This method handles all data that comes in from the server. Lines starting with '#' are
+   * displayed like any other: other users' text reaches the client through the server, so it
+   * never runs what the server sends as a local command.
    *
    * @param msg The message from the server.
    */
+  @Override
   public void handleMessageFromServer(Object msg) {
+    lastReceived = System.nanoTime();
     String msgFromServer = msg.toString();
-    // if server has sent a command
-    if (msgFromServer.startsWith("#")) {
-      try {
-        clientUI.display("Server sent command to disconnect");
-        handleClientCommand(msgFromServer);
-      } catch (IOException e) {
-        clientUI.display("Unable to process server's request to disconnect");
+    if (msgFromServer.equals(PONG_REPLY)) {
+      // heartbeat answered, receiving it was all that mattered
+      return;
+    }
+    clientUI.display(msgFromServer);
+  }
+
+  /**
+   * Handles messages received together: they are displayed at once.
+   *
+   * @param msgs The messages from the server.
+   */
+  @Override
+  public void handleMessagesFromServer(List<Object> msgs) {
+    lastReceived = System.nanoTime();
+    List<String> lines = new ArrayList<>(msgs.size());
+    for (Object msg : msgs) {
+      String msgFromServer = msg.toString();
+      if (!msgFromServer.equals(PONG_REPLY)) {
+        lines.add(msgFromServer);
       }
-    } else {
-      clientUI.display(msgFromServer);
+    }
+    if (!lines.isEmpty()) {
+      clientUI.displayAll(lines);
     }
   }
 
@@ -138,20 +273,25 @@ public class ChatClient extends AbstractClient {
       if (message.startsWith("#")) {
         handleClientCommand(message);
       } else {
-        if (isConnected()) {
-          sendToServer(message);
-        } else {
-          this.clientUI.display("Client is not connected to server. Please open connection and try again!");
-        }
+        forwardToServer(message);
       }
     } catch (IOException e) {
-      String msg = "Could not send message to server. " + e.getMessage();
-      if (isConnected()) {
-        quit();
-        msg += "Terminating client";
-      }
-      clientUI.display(msg);
+      sendFailed(e);
+    }
+  }
+
+  private void sendFailed(Throwable e) {
+    if (e instanceof AsyncSender.QueueFullException) {
+      // only this message is dropped, the connection is fine
+      clientUI.display("Message not sent, " + e.getMessage() + ".");
+      return;
+    }
+    String msg = "Could not send message to server. " + e.getMessage();
+    if (transport.isConnected()) {
+      quit();
+      msg += "Terminating client";
     }
+    clientUI.display(msg);
   }
 
   /**
@@ -160,113 +300,139 @@ public class ChatClient extends AbstractClient {
    * @throws IOException throws IOException is I/O error occurs while sending to server
    */
   private void handleClientCommand(String clientCommand) throws IOException {
-    // get command and command args separately
-    String[] commandAndArgs = SCUtilities.extractCommandAndArgs(clientCommand, COMMAND_ARGUMENT_SEPARATOR);
-    // guard-clause, check if processed input is not null
-    if (!SCUtilities.isValidArray(commandAndArgs)) {
-      throw new NullPointerException("Invalid value provided for command & arguments (clientCommand)");
-    }
-    // extract command and args from processed input
-    String command = commandAndArgs[0].substring(1); // get command without the command identifier (ex: '#')
-    String commandArgs = commandAndArgs[1]; // will be null if no args supplied
-
-    // check if the command is valid (not empty, or unhandled)
-    if (!SCUtilities.isValidCommand(command, ACCEPTED_COMMANDS)) {
-      this.clientUI.display("not a valid command: #" + command);
-      return;
+    if (!commandDispatcher.dispatch(clientCommand)) {
+      this.clientUI.display("not a valid command: #" + CommandDispatcher.commandName(clientCommand));
     }
+  }
 
-    if (command.equals(COMMANDS.quit.name())) {
-      // close connection to server and quit
-      quit();
-    } else if (command.equals(COMMANDS.logoff.name())) {
-      // close connection (but not quit)
-      if (isConnected()) {
-        // closeConnection();
-        // not using AbstractClient's method because doing so does not trigger the "connectionClosed()" method
-        // implemented in the AbstractServer, so we don't get message on serverUI indicating a client has disconnected
-        // Therefore, sending the request to server
+  /**
+   * Close the connection to the server, without quitting
+   */
+  private void logoff() throws IOException {
+    if (transport.isConnected()) {
+      // closeConnection();
+      // not using AbstractClient's method because doing so does not trigger the "connectionClosed()" method
+      // implemented in the AbstractServer, so we don't get message on serverUI indicating a client has disconnected
+      // Therefore, sending the request to server
 //        sendToServer("#logoff");
-        closeConnection();
-        this.clientUI.display("Connection terminated with the server.");
-      } else {
-        this.clientUI.display("Invalid command! No active connection.");
-      }
+      transport.closeConnection();
+      this.clientUI.display("Connection terminated with the server.");
+    } else {
+      this.clientUI.display("Invalid command! No active connection.");
+    }
+  }
 
-    } else if (command.equals(COMMANDS.sethost.name())) {
-      // setting a new hostname
-      // make sure client is not already connected
-      if (isConnected()) {
-        this.clientUI.display("Can not change hostname while connection is active. Please disconnect first (#logoff), then try again.");
-      }
-      // validate command arguments
-      if (SCUtilities.isValidString(commandArgs)) {
-        setHost(commandArgs);
-      } else {
-        this.clientUI.display("Invalid command argument, no host provided.");
-      }
-    } else if (command.equals(COMMANDS.setport.name())) {
-      // setting a new port
-      // make sure client is not already connected
-      if (isConnected()) {
-        this.clientUI.display("Can not change port while connection is active. Please disconnect first (#logoff), then try again.");
-      }
-      // validate command arguments
-      if (!SCUtilities.isValidString(commandArgs)) {
-        this.clientUI.display("Invalid command argument, no port number provided.");
-      } else {
-        int port;
-        // validate input
-        try {
-          port = Integer.parseInt(commandArgs);
-          // set the new port if parsing was successful
-          setPort(port);
-        } catch (NumberFormatException e) {
-          this.clientUI.display("Invalid value provided for port number: " + commandArgs);
-        }
-      }
-    } else if (command.equals(COMMANDS.login.name())) {
-      // established a connection to the server; displays error is already connected
-      if (isConnected()) {
-        this.clientUI.display("Invalid command! Client is already connected to host " + getHost() + " on port " + getPort());
-      } else {
-        // open connection
-        openConnection();
+  /**
+   * Set a new hostname
+   * @param host the hostname, null if none was provided
+   */
+  private void changeHost(String host) {
+    // make sure client is not already connected
+    if (transport.isConnected()) {
+      this.clientUI.display("Can not change hostname while connection is active. Please disconnect first (#logoff), then try again.");
+    }
+    // validate command arguments
+    if (SCUtilities.isValidString(host)) {
+      transport.setHost(host);
+    } else {
+      this.clientUI.display("Invalid command argument, no host provided.");
+    }
+  }
+
+  /**
+   * Set a new port, parsed straight from the command line
+   */
+  private void changePort(String line, int argStart, int argEnd) {
+    // make sure client is not already connected
+    if (transport.isConnected()) {
+      this.clientUI.display("Can not change port while connection is active. Please disconnect first (#logoff), then try again.");
+    }
+    // validate command arguments
+    if (argStart == argEnd) {
+      this.clientUI.display("Invalid command argument, no port number provided.");
+    } else {
+      // validate input
+      try {
+        // set the new port if parsing was successful
+        transport.setPort(Integer.parseInt(line, argStart, argEnd, 10));
+      } catch (NumberFormatException e) {
+        this.clientUI.display("Invalid value provided for port number: " + line.substring(argStart, argEnd));
       }
-    } else if (command.equals(COMMANDS.gethost.name())) {
-      // display current host name
-      this.clientUI.display("Current client's host set to: " + getHost());
-    } else if (command.equals(COMMANDS.getport.name())) {
-      // display current port
-      this.clientUI.display("Current client's port set to: " + getPort());
     }
+  }
+
+  /**
+   * Display current host name
+   */
+  private void displayHost() {
+    this.clientUI.display("Current client's host set to: " + transport.getHost());
+  }
+
+  /**
+   * Display current port
+   */
+  private void displayPort() {
+    this.clientUI.display("Current client's port set to: " + transport.getPort());
+  }
+
+  /**
+   * Establish a connection to the server; displays error if already connected
+   */
+  private void login() throws IOException {
+    if (transport.isConnected()) {
+      this.clientUI.display("Invalid command! Client is already connected to host " + transport.getHost() + " on port " + transport.getPort());
+    } else {
+      // open connection
+      transport.openConnection();
+    }
+  }
 
-    // not one of the yet implemented accepted commands
-    else {
-      this.clientUI.display("Command not available yet");
+  /**
+   * Queue a message or a command the server handles as is, reporting a failed write once it happens
+   * @param message the message or command line
+   */
+  private void forwardToServer(String message) {
+    if (transport.isConnected()) {
+      sendAsync(message).whenComplete((written, e) -> {
+        if (e != null) {
+          sendFailed(e);
+        }
+      });
+    } else {
+      this.clientUI.display("Client is not connected to server. Please open connection and try again!");
     }
   }
 
   /**
-   * This method terminates the client.
+   * This method terminates the client, and the JVM unless the exitOnQuit option is off.
    */
   public void quit() {
+    stopHeartbeat();
+    // lines typed just before quitting still reach the server
+    try {
+      sender.close(QUIT_DRAIN_MILLIS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
     // try to disconnect is currently connected
-    if (isConnected()) {
+    if (transport.isConnected()) {
       try {
-        closeConnection();
+        transport.closeConnection();
       } catch (IOException e) {
         this.clientUI.display("Unable to close connection");
       }
     }
-    System.exit(0);
+    if (exitOnQuit) {
+      System.exit(0);
+    }
   }
 
   /**
    * Hook method called after the connection has been closed
    */
   @Override
-  protected void connectionClosed() {
+  public void connectionClosed() {
+    stopHeartbeat();
     this.clientUI.display("Server connection closed.");
   }
 
@@ -277,7 +443,8 @@ public class ChatClient extends AbstractClient {
    * @param exception the exception raised.
    */
   @Override
-  protected void connectionException(Exception exception) {
+  public void connectionException(Exception exception) {
+    stopHeartbeat();
 //    this.clientUI.display("The server has shut down");
     quit();
   }
@@ -286,13 +453,100 @@ public class ChatClient extends AbstractClient {
    * Hook method called after a connection has been established.
    */
   @Override
-  protected void connectionEstablished() {
+  public void connectionEstablished() {
     // send server command to set loginId
     try {
       sendToServer(CLIENT_SET_LOGIN_ID_COMMAND + " " + loginId);
     } catch (IOException e) {
       System.out.println("Unable to send login command to server");
-      System.exit(1);
+      if (exitOnQuit) {
+        System.exit(1);
+      }
+    }
+    startHeartbeat();
+  }
+
+  /**
+   * Send a heartbeat every heartbeatSeconds, so the server knows this client is still there
+   * while it says nothing, and close the connection once the server has not answered for three
+   */
+  private void startHeartbeat() {
+    stopHeartbeat();
+    if (heartbeatSeconds > 0) {
+      lastReceived = System.nanoTime();
+      heartbeat = HEARTBEATS.scheduleAtFixedRate(this::sendHeartbeat, heartbeatSeconds, heartbeatSeconds, TimeUnit.SECONDS);
+    }
+  }
+
+  private void stopHeartbeat() {
+    ScheduledFuture<?> current = heartbeat;
+    if (current != null) {
+      current.cancel(false);
+      heartbeat = null;
+    }
+  }
+
+  private void sendHeartbeat() {
+    long silentSeconds = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - lastReceived);
+    if (silentSeconds >= 3L * heartbeatSeconds) {
+      stopHeartbeat();
+      clientUI.display("No answer from the server for " + silentSeconds + " seconds, closing the connection.");
+      try {
+        transport.closeConnection();
+      } catch (IOException e) {
+        clientUI.display("Unable to close connection");
+      }
+    } else {
+      sendAsync(PING_COMMAND);
+    }
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * The original OCSF transport: delegates to the AbstractClient this ChatClient extends,
+   * whose hooks are the ones implemented above.
+   */
+  private class OcsfClientTransport implements ClientTransport {
+
+    @Override
+    public void openConnection() throws IOException {
+      ChatClient.this.openConnection();
+    }
+
+    @Override
+    public void closeConnection() throws IOException {
+      ChatClient.this.closeConnection();
+    }
+
+    @Override
+    public void sendToServer(Object msg) throws IOException {
+      ChatClient.super.sendToServer(msg);
+    }
+
+    @Override
+    public boolean isConnected() {
+      return ChatClient.this.isConnected();
+    }
+
+    @Override
+    public String getHost() {
+      return ChatClient.this.getHost();
+    }
+
+    @Override
+    public void setHost(String host) {
+      ChatClient.this.setHost(host);
+    }
+
+    @Override
+    public int getPort() {
+      return ChatClient.this.getPort();
+    }
+
+    @Override
+    public void setPort(int port) {
+      ChatClient.this.setPort(port);
     }
   }
 }
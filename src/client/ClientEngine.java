@@ -0,0 +1,10 @@
+package client;
+
+/**
+ * Transports ChatClient can run on, selected at startup.
+ */
+public enum ClientEngine
+{
+  ocsf, // OCSF AbstractClient, reads on a platform thread
+  virtual, // blocking socket read on a virtual thread
+}
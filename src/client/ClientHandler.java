@@ -0,0 +1,42 @@
+package client;
+
+import java.util.List;
+
+/**
+ * Hooks a client transport calls into, matching the hook methods of OCSF's AbstractClient.
+ */
+public interface ClientHandler
+{
+  /**
+   * Handles a message received from the server.
+   * @param msg the message from the server.
+   */
+  void handleMessageFromServer(Object msg);
+
+  /**
+   * Handles messages received from the server together, in order. Called by transports that
+   * read several messages at once, by default handles them one by one.
+   * @param msgs the messages from the server.
+   */
+  default void handleMessagesFromServer(List<Object> msgs) {
+    for (Object msg : msgs) {
+      handleMessageFromServer(msg);
+    }
+  }
+
+  /**
+   * Called after a connection has been established, on the thread reading from the server.
+   */
+  void connectionEstablished();
+
+  /**
+   * Called after the connection has been closed.
+   */
+  void connectionClosed();
+
+  /**
+   * Called when the thread reading from the server raises an exception.
+   * @param exception the exception raised.
+   */
+  void connectionException(Exception exception);
+}
@@ -0,0 +1,210 @@
+package client;
+
+import common.WireFormat;
+
+/**
+ * Startup options of a ChatClient, given on the ClientConsole command line as name=value pairs
+ * after the port number (ex: "alice localhost 5555 engine=virtual protocol=binary compression.threshold=1024").
+ */
+public class ClientOptions
+{
+  //Instance variables **********************************************
+
+  /**
+   * Transport carrying the connection
+   */
+  private ClientEngine engine = ClientEngine.ocsf;
+
+  /**
+   * Wire format of the connection, binary needs the virtual engine
+   */
+  private WireFormat protocol = WireFormat.objectStream;
+
+  /**
+   * Whether quitting (or losing the connection) exits the JVM, false when the client is embedded
+   */
+  private boolean exitOnQuit = true;
+
+  /**
+   * Messages encoding to at least this many bytes are deflated if the server accepts it,
+   * 0 for never, needs the binary protocol
+   */
+  private int compressionThreshold;
+
+  /**
+   * Most messages waiting to be written to the server, further sends fail
+   */
+  private int sendQueueCapacity = 4096;
+
+  /**
+   * Most queued messages written to the server at once
+   */
+  private int sendBatchSize = 64;
+
+  /**
+   * How long (ms) queued messages wait for more to fill a batch, 0 to write at once
+   */
+  private long sendLingerMillis;
+
+  /**
+   * Seconds between two heartbeats sent to the server, 0 for none; a server silent for three
+   * heartbeats is considered gone
+   */
+  private int heartbeatSeconds = 30;
+
+  //Instance methods ************************************************
+
+  public ClientEngine getEngine() {
+    return engine;
+  }
+
+  public void setEngine(ClientEngine engine) {
+    if (engine == null) {
+      throw new IllegalArgumentException("No engine provided");
+    }
+    this.engine = engine;
+  }
+
+  public WireFormat getProtocol() {
+    return protocol;
+  }
+
+  public void setProtocol(WireFormat protocol) {
+    if (protocol == null) {
+      throw new IllegalArgumentException("No protocol provided");
+    }
+    this.protocol = protocol;
+  }
+
+  public boolean isExitOnQuit() {
+    return exitOnQuit;
+  }
+
+  public void setExitOnQuit(boolean exitOnQuit) {
+    this.exitOnQuit = exitOnQuit;
+  }
+
+  public int getCompressionThreshold() {
+    return compressionThreshold;
+  }
+
+  public void setCompressionThreshold(int compressionThreshold) {
+    if (compressionThreshold < 0) {
+      throw new IllegalArgumentException("Compression threshold can not be negative");
+    }
+    this.compressionThreshold = compressionThreshold;
+  }
+
+  public int getSendQueueCapacity() {
+    return sendQueueCapacity;
+  }
+
+  public void setSendQueueCapacity(int sendQueueCapacity) {
+    if (sendQueueCapacity < 1) {
+      throw new IllegalArgumentException("Send queue capacity must be at least 1");
+    }
+    this.sendQueueCapacity = sendQueueCapacity;
+  }
+
+  public int getSendBatchSize() {
+    return sendBatchSize;
+  }
+
+  public void setSendBatchSize(int sendBatchSize) {
+    if (sendBatchSize < 1) {
+      throw new IllegalArgumentException("Send batch size must be at least 1");
+    }
+    this.sendBatchSize = sendBatchSize;
+  }
+
+  public long getSendLingerMillis() {
+    return sendLingerMillis;
+  }
+
+  public void setSendLingerMillis(long sendLingerMillis) {
+    if (sendLingerMillis < 0 || sendLingerMillis > 1000) {
+      throw new IllegalArgumentException("Send linger must be between 0 and 1000 ms");
+    }
+    this.sendLingerMillis = sendLingerMillis;
+  }
+
+  public int getHeartbeatSeconds() {
+    return heartbeatSeconds;
+  }
+
+  public void setHeartbeatSeconds(int heartbeatSeconds) {
+    if (heartbeatSeconds < 0 || heartbeatSeconds > 3600) {
+      throw new IllegalArgumentException("Heartbeat interval must be between 0 and 3600 seconds");
+    }
+    this.heartbeatSeconds = heartbeatSeconds;
+  }
+
+  /**
+   * Set a single option from its name and string value
+   * @param name option name
+   * @param value option value
+   * @throws IllegalArgumentException if the option is unknown or its value invalid
+   */
+  public void set(String name, String value) {
+    switch (name) {
+      case "engine":
+        setEngine(ClientEngine.valueOf(value));
+        break;
+      case "protocol":
+        setProtocol(WireFormat.valueOf(value));
+        break;
+      case "exitOnQuit":
+        if (!value.equals("true") && !value.equals("false")) {
+          throw new IllegalArgumentException("Invalid value provided for " + name + ": " + value);
+        }
+        setExitOnQuit(Boolean.parseBoolean(value));
+        break;
+      case "compression.threshold":
+        setCompressionThreshold(parseInt(name, value));
+        break;
+      case "send.queue":
+        setSendQueueCapacity(parseInt(name, value));
+        break;
+      case "send.batch":
+        setSendBatchSize(parseInt(name, value));
+        break;
+      case "send.linger":
+        setSendLingerMillis(parseInt(name, value));
+        break;
+      case "heartbeat.interval":
+        setHeartbeatSeconds(parseInt(name, value));
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown client option: " + name);
+    }
+  }
+
+  //Class methods ***************************************************
+
+  private static int parseInt(String name, String value) {
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid value provided for " + name + ": " + value);
+    }
+  }
+
+  /**
+   * Parse name=value pairs
+   * @param args command line arguments
+   * @param offset index of the first option in args
+   * @return the parsed options, defaults for anything not provided
+   * @throws IllegalArgumentException if an argument is malformed or an option invalid
+   */
+  public static ClientOptions parse(String[] args, int offset) {
+    ClientOptions options = new ClientOptions();
+    for (int i = offset; i < args.length; i++) {
+      int separator = args[i].indexOf('=');
+      if (separator <= 0) {
+        throw new IllegalArgumentException("Expected name=value, got: " + args[i]);
+      }
+      options.set(args[i].substring(0, separator), args[i].substring(separator + 1));
+    }
+    return options;
+  }
+}
@@ -0,0 +1,55 @@
+package client;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A transport carrying a ChatClient's connection to the server.
+ * Same operations as OCSF's AbstractClient.
+ */
+public interface ClientTransport
+{
+  /**
+   * Opens the connection with the server and starts the thread reading from it.
+   * @throws IOException if an I/O error occurs when opening.
+   */
+  void openConnection() throws IOException;
+
+  /**
+   * Closes the connection to the server.
+   * @throws IOException if an I/O error occurs when closing.
+   */
+  void closeConnection() throws IOException;
+
+  /**
+   * Sends a message to the server.
+   * @param msg the message to be sent.
+   * @throws IOException if an I/O error occurs when sending the message.
+   */
+  void sendToServer(Object msg) throws IOException;
+
+  /**
+   * Sends several messages in order. Transports writing raw frames write them all at once;
+   * others send them one by one.
+   * @param msgs the messages to be sent.
+   * @throws IOException if an I/O error occurs when sending the messages.
+   */
+  default void sendAllToServer(List<?> msgs) throws IOException {
+    for (Object msg : msgs) {
+      sendToServer(msg);
+    }
+  }
+
+  /**
+   * @return true if the client is connected.
+   */
+  boolean isConnected();
+
+  String getHost();
+
+  void setHost(String host);
+
+  int getPort();
+
+  void setPort(int port);
+}
@@ -0,0 +1,252 @@
+package client;
+
+import common.BinaryCodec;
+import common.MessageDecoder;
+import common.WireFormat;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Client transport reading the server's messages on a thread from a ThreadFactory.
+ * The object stream format talks to every server engine, the binary one needs a server
+ * engine that negotiates formats (nio, virtual). With a virtual thread factory the
+ * blocking read does not hold a platform thread, so a process can run many sessions.
+ * With a compression threshold, a binary connection offers to deflate large frames and does
+ * so once the server's header accepts.
+ * Locks rather than synchronized are used so the virtual thread never pins its carrier.
+ */
+public class SocketClientTransport implements ClientTransport
+{
+  private static final int INITIAL_READ_BUFFER_SIZE = 8 * 1024;
+
+  private final ClientHandler handler;
+
+  private final ThreadFactory threadFactory;
+
+  private final WireFormat format;
+
+  // frames of at least this many bytes are deflated if the server accepts it, 0 for never
+  private final int compressionThreshold;
+
+  // guards opening/closing, and serializes writers so a frame is always written whole
+  private final ReentrantLock lock = new ReentrantLock();
+
+  private volatile String host;
+
+  private volatile int port;
+
+  private volatile Socket socket;
+
+  private volatile OutputStream output;
+
+  private volatile Thread reader;
+
+  // set by the reader once the server's header accepts deflated frames
+  private volatile BinaryCodec.Compressor compressor;
+
+  private volatile boolean readyToStop;
+
+  public SocketClientTransport(ClientHandler handler, String host, int port, ThreadFactory threadFactory, WireFormat format) {
+    this(handler, host, port, threadFactory, format, 0);
+  }
+
+  public SocketClientTransport(ClientHandler handler, String host, int port, ThreadFactory threadFactory, WireFormat format, int compressionThreshold) {
+    if (compressionThreshold < 0) {
+      throw new IllegalArgumentException("Compression threshold can not be negative");
+    }
+    this.handler = handler;
+    this.host = host;
+    this.port = port;
+    this.threadFactory = threadFactory;
+    this.format = format;
+    this.compressionThreshold = compressionThreshold;
+  }
+
+  /**
+   * @return a transport reading on a virtual thread
+   */
+  public static SocketClientTransport withVirtualThreads(ClientHandler handler, String host, int port, WireFormat format) {
+    return withVirtualThreads(handler, host, port, format, 0);
+  }
+
+  /**
+   * @param compressionThreshold frames of at least this many bytes are deflated if the server accepts it, 0 for never
+   * @return a transport reading on a virtual thread
+   */
+  public static SocketClientTransport withVirtualThreads(ClientHandler handler, String host, int port, WireFormat format, int compressionThreshold) {
+    return new SocketClientTransport(handler, host, port, Thread.ofVirtual().name("client-reader-", 0).factory(), format, compressionThreshold);
+  }
+
+  @Override
+  public void openConnection() throws IOException {
+    lock.lock();
+    try {
+      if (isConnected()) {
+        return;
+      }
+      Socket newSocket = new Socket(host, port);
+      InputStream input;
+      try {
+        output = newSocket.getOutputStream();
+        output.write(format.header(compressionThreshold > 0));
+        input = newSocket.getInputStream();
+      } catch (IOException e) {
+        newSocket.close();
+        throw e;
+      }
+      socket = newSocket;
+      compressor = null;
+      readyToStop = false;
+      reader = threadFactory.newThread(() -> read(newSocket, input));
+      reader.start();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void read(Socket readSocket, InputStream input) {
+    handler.connectionEstablished();
+    MessageDecoder decoder = format.newDecoder();
+    ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+    List<Object> received = new ArrayList<>();
+    try {
+      while (!readyToStop) {
+        int read = input.read(readBuffer.array(), readBuffer.position(), readBuffer.remaining());
+        if (read < 0) {
+          throw new EOFException();
+        }
+        readBuffer.position(readBuffer.position() + read);
+        readBuffer = decoder.decodeAndCompact(readBuffer, received::add);
+        // everything decoded from one read is handed over at once
+        if (received.size() == 1) {
+          handler.handleMessageFromServer(received.get(0));
+        } else if (!received.isEmpty()) {
+          handler.handleMessagesFromServer(received);
+        }
+        received.clear();
+        if (compressor == null && compressionThreshold > 0 && decoder.isDeflateNegotiated()) {
+          compressor = new BinaryCodec.Compressor(compressionThreshold);
+        }
+      }
+    } catch (Exception exception) {
+      if (!readyToStop) {
+        closeSocket(readSocket);
+        handler.connectionException(exception);
+      }
+    } finally {
+      if (reader == Thread.currentThread()) {
+        reader = null;
+      }
+    }
+  }
+
+  @Override
+  public void sendToServer(Object msg) throws IOException {
+    OutputStream out = output;
+    if (socket == null || out == null) {
+      throw new SocketException("socket does not exist");
+    }
+    byte[] frame = format.encode(msg);
+    BinaryCodec.Compressor deflate = compressor;
+    if (deflate != null) {
+      frame = deflate.compress(frame);
+    }
+    lock.lock();
+    try {
+      out.write(frame);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void sendAllToServer(List<?> msgs) throws IOException {
+    OutputStream out = output;
+    if (socket == null || out == null) {
+      throw new SocketException("socket does not exist");
+    }
+    byte[][] frames = new byte[msgs.size()][];
+    int length = 0;
+    BinaryCodec.Compressor deflate = compressor;
+    for (int i = 0; i < frames.length; i++) {
+      byte[] frame = format.encode(msgs.get(i));
+      frames[i] = (deflate == null) ? frame : deflate.compress(frame);
+      length += frames[i].length;
+    }
+    // one write for the whole batch
+    byte[] batch = new byte[length];
+    int offset = 0;
+    for (byte[] frame : frames) {
+      System.arraycopy(frame, 0, batch, offset, frame.length);
+      offset += frame.length;
+    }
+    lock.lock();
+    try {
+      out.write(batch);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void closeConnection() throws IOException {
+    readyToStop = true;
+    lock.lock();
+    try {
+      closeSocket(socket);
+      reader = null;
+    } finally {
+      lock.unlock();
+      handler.connectionClosed();
+    }
+  }
+
+  private void closeSocket(Socket closing) {
+    if (closing == null) {
+      return;
+    }
+    try {
+      closing.close();
+    } catch (IOException ignored) {}
+    if (socket == closing) {
+      socket = null;
+      output = null;
+    }
+  }
+
+  @Override
+  public boolean isConnected() {
+    Thread current = reader;
+    return current != null && current.isAlive();
+  }
+
+  @Override
+  public String getHost() {
+    return host;
+  }
+
+  @Override
+  public void setHost(String host) {
+    this.host = host;
+  }
+
+  @Override
+  public int getPort() {
+    return port;
+  }
+
+  @Override
+  public void setPort(int port) {
+    this.port = port;
+  }
+}
@@ -0,0 +1,406 @@
+package common;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact length-prefixed framing for simpleChat messages, an alternative to Java serialization.
+ * <p>
+ * Each peer starts with a 4 byte header: 'S' 'C' version flags. Then every message is one frame:
+ * <pre>
+ *   [type: 1 byte][command code: 1 byte][payload length: unsigned varint][payload: UTF-8]
+ * </pre>
+ * Commands known to both sides travel as a one byte code plus their arguments, everything else
+ * (chat lines, unknown commands) as text. Decoding always yields the exact original String.
+ * <p>
+ * A peer setting FLAG_DEFLATE in its header can inflate frames. Once both headers carry it,
+ * either side may send a large frame deflated, wrapped in a frame of its own:
+ * <pre>
+ *   [TYPE_DEFLATED][0][payload length: unsigned varint]
+ *   [payload: [inflated frame length: unsigned varint][raw deflate data]]
+ * </pre>
+ */
+public final class BinaryCodec {
+
+  /**
+   * First two bytes of the header, also how a server tells this format from an object stream
+   */
+  static final byte MAGIC_0 = 'S';
+  static final byte MAGIC_1 = 'C';
+
+  private static final byte VERSION = 1;
+
+  // frame types
+  private static final byte TYPE_NULL = 0;
+  private static final byte TYPE_TEXT = 1; // payload is the whole message
+  private static final byte TYPE_COMMAND = 2; // "#<command> <payload>"
+  private static final byte TYPE_BARE_COMMAND = 3; // "#<command>", no payload
+  private static final byte TYPE_DEFLATED = 4; // payload is another frame, deflated
+
+  /**
+   * Header flag: this peer inflates deflated frames
+   */
+  static final byte FLAG_DEFLATE = 1;
+
+  /**
+   * Frames smaller than this are not worth deflating by default, in bytes
+   */
+  public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
+  // commands with a wire code, the index is the code (0 = none), only ever append to this list
+  private static final String[] COMMAND_CODES = { null, "login", "logoff", "msg", "join", "leave", "history" };
+
+  private BinaryCodec() {}
+
+  /**
+   * @return the header every binary stream starts with
+   */
+  public static byte[] header() {
+    return header(false);
+  }
+
+  /**
+   * @param deflate whether this peer inflates deflated frames
+   * @return the header every binary stream starts with
+   */
+  public static byte[] header(boolean deflate) {
+    return new byte[]{ MAGIC_0, MAGIC_1, VERSION, deflate ? FLAG_DEFLATE : 0 };
+  }
+
+  /**
+   * Encode a message into one frame
+   * @param msg the message to encode (a String or null)
+   * @return the encoded frame
+   * @throws NotSerializableException if the message is not a String
+   */
+  public static byte[] encode(Object msg) throws NotSerializableException {
+    if (msg == null) {
+      return new byte[]{ TYPE_NULL, 0, 0 };
+    }
+    if (!(msg instanceof String)) {
+      throw new NotSerializableException(msg.getClass().getName());
+    }
+    String str = (String) msg;
+
+    byte type = TYPE_TEXT;
+    int code = 0;
+    int payloadStart = 0;
+    if (str.startsWith("#")) {
+      for (int i = 1; i < COMMAND_CODES.length; i++) {
+        String name = COMMAND_CODES[i];
+        if (str.startsWith(name, 1)) {
+          int end = 1 + name.length();
+          if (str.length() == end) {
+            type = TYPE_BARE_COMMAND;
+          } else if (str.charAt(end) == ' ') {
+            type = TYPE_COMMAND;
+            payloadStart = end + 1;
+          } else {
+            continue;
+          }
+          code = i;
+          break;
+        }
+      }
+    }
+
+    byte[] payload = (type == TYPE_BARE_COMMAND)
+            ? new byte[0]
+            : str.substring(payloadStart).getBytes(StandardCharsets.UTF_8);
+    byte[] frame = new byte[2 + varintLength(payload.length) + payload.length];
+    frame[0] = type;
+    frame[1] = (byte) code;
+    int pos = writeVarint(frame, 2, payload.length);
+    System.arraycopy(payload, 0, frame, pos, payload.length);
+    return frame;
+  }
+
+  /**
+   * Encode a chat line into one text frame, writing a pre-encoded prefix and the text straight
+   * into the frame: no intermediate String or byte array, the frame is the only allocation
+   * @param prefix the UTF-8 bytes the line starts with (ex: "loginId: "), copied as they are
+   * @param text the rest of the line
+   * @return the encoded frame, which decodes to the prefix followed by the text
+   */
+  public static byte[] encodeText(byte[] prefix, String text) {
+    int payloadLength = prefix.length + Utf8.length(text);
+    byte[] frame = new byte[2 + varintLength(payloadLength) + payloadLength];
+    frame[0] = TYPE_TEXT;
+    int pos = writeVarint(frame, 2, payloadLength);
+    System.arraycopy(prefix, 0, frame, pos, prefix.length);
+    Utf8.encode(text, frame, pos + prefix.length);
+    return frame;
+  }
+
+  /**
+   * Decode one whole frame produced by encode or encodeText
+   * @param frame the frame, not deflated
+   * @return the message it carries
+   * @throws StreamCorruptedException if the array is not exactly one valid frame
+   */
+  static Object decode(byte[] frame) throws StreamCorruptedException {
+    int length = 0;
+    int shift = 0;
+    int pos = 2;
+    byte b;
+    do {
+      if (pos >= frame.length || shift > 28) {
+        throw new StreamCorruptedException("malformed payload length");
+      }
+      b = frame[pos++];
+      length |= (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    if (length < 0 || pos + length != frame.length) {
+      throw new StreamCorruptedException("not a single frame");
+    }
+    return Decoder.toMessage(frame[0], frame[1] & 0xFF, new String(frame, pos, length, StandardCharsets.UTF_8));
+  }
+
+  private static int varintLength(int value) {
+    int length = 1;
+    while ((value >>>= 7) != 0) {
+      length++;
+    }
+    return length;
+  }
+
+  private static int writeVarint(byte[] target, int pos, int value) {
+    while ((value & ~0x7F) != 0) {
+      target[pos++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    target[pos++] = (byte) value;
+    return pos;
+  }
+
+  /**
+   * Deflates the large frames sent on one connection, reusing a single Deflater.
+   * Thread-safe, senders take turns.
+   */
+  public static final class Compressor {
+
+    private final int threshold;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private static final int INITIAL_BUFFER = 8 * 1024;
+
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+
+    private byte[] buffer = new byte[INITIAL_BUFFER];
+
+    /**
+     * @param threshold frames shorter than this many bytes are sent as they are
+     */
+    public Compressor(int threshold) {
+      if (threshold < 1) {
+        throw new IllegalArgumentException("Compression threshold must be at least 1 byte");
+      }
+      this.threshold = threshold;
+    }
+
+    /**
+     * @param frame a binary frame
+     * @return the frame deflated, or the frame itself if it is short or does not shrink
+     */
+    public byte[] compress(byte[] frame) {
+      if (frame.length < threshold || frame[0] == TYPE_DEFLATED) {
+        return frame;
+      }
+      lock.lock();
+      try {
+        deflater.reset();
+        deflater.setInput(frame);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+          if (length == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+          }
+          length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+
+        int payloadLength = varintLength(frame.length) + length;
+        int frameLength = 2 + varintLength(payloadLength) + payloadLength;
+        if (frameLength >= frame.length) {
+          return frame;
+        }
+        byte[] deflated = new byte[frameLength];
+        deflated[0] = TYPE_DEFLATED;
+        int pos = writeVarint(deflated, 2, payloadLength);
+        pos = writeVarint(deflated, pos, frame.length);
+        System.arraycopy(buffer, 0, deflated, pos, length);
+        if (buffer.length > MAX_RETAINED_BUFFER) {
+          // a one-off huge frame, do not hold on to its buffer
+          buffer = new byte[INITIAL_BUFFER];
+        }
+        return deflated;
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Incremental decoder for one binary stream. Not thread-safe, each connection owns one.
+   */
+  public static final class Decoder implements MessageDecoder {
+
+    private boolean headerRead;
+
+    private boolean peerDeflates;
+
+    // created on the first deflated frame, then reused
+    private Inflater inflater;
+
+    @Override
+    public void decode(ByteBuffer buffer, Consumer<Object> sink) throws IOException {
+      if (!headerRead) {
+        if (buffer.remaining() < 4) {
+          return;
+        }
+        if (buffer.get() != MAGIC_0 || buffer.get() != MAGIC_1 || buffer.get() != VERSION) {
+          throw new StreamCorruptedException("invalid binary stream header");
+        }
+        peerDeflates = (buffer.get() & FLAG_DEFLATE) != 0;
+        headerRead = true;
+      }
+
+      while (buffer.remaining() >= 3) {
+        int start = buffer.position();
+        byte type = buffer.get();
+        int code = buffer.get() & 0xFF;
+
+        // payload length, unsigned varint
+        int length = 0;
+        int shift = 0;
+        boolean complete = false;
+        while (buffer.hasRemaining()) {
+          byte b = buffer.get();
+          length |= (b & 0x7F) << shift;
+          if ((b & 0x80) == 0) {
+            complete = true;
+            break;
+          }
+          shift += 7;
+          if (shift > 28) {
+            throw new StreamCorruptedException("malformed payload length");
+          }
+        }
+        if (complete && (length < 0 || length > MAX_MESSAGE_LENGTH)) {
+          throw new StreamCorruptedException("payload length out of range: " + length);
+        }
+        if (!complete || buffer.remaining() < length) {
+          buffer.position(start);
+          return;
+        }
+
+        if (type == TYPE_DEFLATED) {
+          ByteBuffer inflated = inflate(buffer, length);
+          buffer.position(buffer.position() + length);
+          decode(inflated, sink);
+          if (inflated.hasRemaining()) {
+            throw new StreamCorruptedException("truncated deflated frame");
+          }
+          continue;
+        }
+        String payload = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        sink.accept(toMessage(type, code, payload));
+      }
+    }
+
+    @Override
+    public boolean isDeflateNegotiated() {
+      return peerDeflates;
+    }
+
+    /**
+     * Inflate the payload of a deflated frame, leaving the buffer's position where it was
+     * @return the inner frame, in read mode
+     */
+    private ByteBuffer inflate(ByteBuffer buffer, int length) throws StreamCorruptedException {
+      int start = buffer.arrayOffset() + buffer.position();
+      int end = start + length;
+      byte[] array = buffer.array();
+      int inflatedLength = 0;
+      int shift = 0;
+      int pos = start;
+      while (true) {
+        if (pos == end || shift > 28) {
+          throw new StreamCorruptedException("malformed inflated length");
+        }
+        byte b = array[pos++];
+        inflatedLength |= (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          break;
+        }
+        shift += 7;
+      }
+      if (inflatedLength < 3 || inflatedLength > MAX_MESSAGE_LENGTH) {
+        throw new StreamCorruptedException("inflated length out of range: " + inflatedLength);
+      }
+
+      if (inflater == null) {
+        inflater = new Inflater(true);
+      }
+      inflater.reset();
+      inflater.setInput(array, pos, end - pos);
+      byte[] frame = new byte[inflatedLength];
+      try {
+        int inflated = 0;
+        while (inflated < frame.length) {
+          int n = inflater.inflate(frame, inflated, frame.length - inflated);
+          if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+            break;
+          }
+          inflated += n;
+        }
+        if (inflated != frame.length) {
+          throw new StreamCorruptedException("deflated frame shorter than announced");
+        }
+      } catch (DataFormatException e) {
+        throw new StreamCorruptedException("corrupt deflated frame: " + e.getMessage());
+      }
+      // a deflated frame never holds another one
+      if (frame[0] == TYPE_DEFLATED) {
+        throw new StreamCorruptedException("nested deflated frame");
+      }
+      return ByteBuffer.wrap(frame);
+    }
+
+    private static Object toMessage(byte type, int code, String payload) throws StreamCorruptedException {
+      switch (type) {
+        case TYPE_NULL:
+          return null;
+        case TYPE_TEXT:
+          return payload;
+        case TYPE_COMMAND:
+          return "#" + commandName(code) + " " + payload;
+        case TYPE_BARE_COMMAND:
+          return "#" + commandName(code);
+        default:
+          throw new StreamCorruptedException("unsupported frame type: " + type);
+      }
+    }
+
+    private static String commandName(int code) throws StreamCorruptedException {
+      if (code <= 0 || code >= COMMAND_CODES.length) {
+        throw new StreamCorruptedException("unknown command code: " + code);
+      }
+      return COMMAND_CODES[code];
+    }
+  }
+}
@@ -5,6 +5,8 @@
 
 package common;
 
+import java.util.List;
+
 /**
  * This interface implements the abstract method used to display
  * objects onto the client or server UIs.
@@ -20,4 +22,15 @@ public interface ChatIF
    * a UI.
    */
   public abstract void display(String message);
+
+  /**
+   * Display several messages at once, ex: everything received in one read from the network.
+   * UIs writing to a console or a file should override it to write them together; by default
+   * each message is displayed on its own.
+   */
+  default void displayAll(List<String> messages) {
+    for (String message : messages) {
+      display(message);
+    }
+  }
 }
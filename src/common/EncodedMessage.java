@@ -0,0 +1,117 @@
+package common;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A message together with its wire encodings, each computed at most once no matter how many
+ * connections it is written to. Encoded frames are shared and must never be modified.
+ * A message may also start out as its binary frame, the message itself is then only decoded
+ * if a connection in another format, or getMessage(), needs it.
+ */
+public final class EncodedMessage
+{
+  // the message while not decoded from its binary frame yet
+  private static final Object UNDECODED = new Object();
+
+  // a racing second decode produces an equal message so no locking is needed
+  private volatile Object message;
+
+  // one lazily encoded frame per WireFormat, indexed by ordinal
+  // a racing second encode produces an identical frame so no locking is needed
+  private final AtomicReferenceArray<byte[]> frames = new AtomicReferenceArray<>(WireFormat.values().length);
+
+  // the binary frame once through a compressor, the connections of a server share one threshold
+  private volatile byte[] compressedFrame;
+
+  public EncodedMessage(Object message) {
+    this.message = message;
+  }
+
+  private EncodedMessage(byte[] binaryFrame) {
+    this.message = UNDECODED;
+    frames.set(WireFormat.binary.ordinal(), binaryFrame);
+  }
+
+  /**
+   * @param frame a frame in the binary format (ex: from BinaryCodec.encodeText), not deflated
+   * @return the message carried by the frame, written as it is to binary connections
+   */
+  public static EncodedMessage ofBinaryFrame(byte[] frame) {
+    return new EncodedMessage(frame);
+  }
+
+  /**
+   * @return the original message
+   */
+  public Object getMessage() {
+    Object decoded = message;
+    if (decoded == UNDECODED) {
+      try {
+        decoded = BinaryCodec.decode(frames.get(WireFormat.binary.ordinal()));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      message = decoded;
+    }
+    return decoded;
+  }
+
+  /**
+   * @param format the wire format of the connection the frame is written to
+   * @return the frame of the message in that format, shared by every caller (read-only)
+   * @throws IOException if the message can not be encoded in that format
+   */
+  public byte[] frame(WireFormat format) throws IOException {
+    byte[] encoded = frames.get(format.ordinal());
+    if (encoded == null) {
+      encoded = format.encode(getMessage());
+      frames.set(format.ordinal(), encoded);
+    }
+    return encoded;
+  }
+
+  /**
+   * @param format the wire format of the connection the frame is written to
+   * @param compressor the connection's compressor, null if it negotiated none
+   * @return the frame of the message in that format, deflated at most once for all recipients
+   *         if it is large enough, shared by every caller (read-only)
+   * @throws IOException if the message can not be encoded in that format
+   */
+  public byte[] frame(WireFormat format, BinaryCodec.Compressor compressor) throws IOException {
+    if (compressor == null) {
+      return frame(format);
+    }
+    byte[] compressed = compressedFrame;
+    if (compressed == null) {
+      compressed = compressor.compress(frame(format));
+      compressedFrame = compressed;
+    }
+    return compressed;
+  }
+
+  /**
+   * @param messages messages written back to back
+   * @param format the wire format of the connection the frames are written to
+   * @param compressor the connection's compressor, null if it negotiated none
+   * @return the frames of all the messages, in order, in one new array
+   * @throws IOException if a message can not be encoded in that format
+   */
+  public static byte[] frames(List<EncodedMessage> messages, WireFormat format, BinaryCodec.Compressor compressor) throws IOException {
+    byte[][] frames = new byte[messages.size()][];
+    int length = 0;
+    for (int i = 0; i < frames.length; i++) {
+      frames[i] = messages.get(i).frame(format, compressor);
+      length += frames[i].length;
+    }
+    byte[] joined = new byte[length];
+    int offset = 0;
+    for (byte[] frame : frames) {
+      System.arraycopy(frame, 0, joined, offset, frame.length);
+      offset += frame.length;
+    }
+    return joined;
+  }
+}
@@ -0,0 +1,58 @@
+package common;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * Incremental decoder for the messages of one connection, in any WireFormat.
+ * Not thread-safe, each connection owns one.
+ */
+public interface MessageDecoder
+{
+  /**
+   * Largest message payload accepted from a peer, guards against allocating on corrupt lengths
+   */
+  int MAX_MESSAGE_LENGTH = 16 * 1024 * 1024;
+
+  /**
+   * Decode every complete message in the buffer and hand it to the sink.
+   * Bytes of a trailing partial message are left in the buffer (position points at them).
+   * @param buffer buffer in read mode
+   * @param sink receives each decoded message
+   * @throws IOException if the stream is corrupt or carries an unsupported message
+   */
+  void decode(ByteBuffer buffer, Consumer<Object> sink) throws IOException;
+
+  /**
+   * @return whether the peer's header said it inflates deflated frames (binary format only)
+   */
+  default boolean isDeflateNegotiated() {
+    return false;
+  }
+
+  /**
+   * Decode what was read into a buffer, then compact it for the next read.
+   * @param buffer buffer in write mode, holding the bytes read so far
+   * @param sink receives each decoded message
+   * @return the buffer to read into next, a larger one if a single message did not fit
+   * @throws IOException if the stream is corrupt or a message is too large
+   */
+  default ByteBuffer decodeAndCompact(ByteBuffer buffer, Consumer<Object> sink) throws IOException {
+    buffer.flip();
+    decode(buffer, sink);
+    buffer.compact();
+    if (buffer.hasRemaining()) {
+      return buffer;
+    }
+    // a single message larger than the buffer, make room for the rest of it
+    if (buffer.capacity() > MAX_MESSAGE_LENGTH) {
+      throw new StreamCorruptedException("message too large");
+    }
+    ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+    buffer.flip();
+    larger.put(buffer);
+    return larger;
+  }
+}
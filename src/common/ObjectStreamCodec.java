@@ -0,0 +1,181 @@
+package common;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Encodes and decodes messages using the exact bytes an ObjectOutputStream / ObjectInputStream
+ * pair puts on the wire. Transports that do not own an object stream (ex: the NIO server engine)
+ * use it to stay compatible with OCSF clients and servers.
+ * Only String (and null) messages are supported, which is all simpleChat ever sends.
+ */
+public final class ObjectStreamCodec {
+
+  // stream constants, see java.io.ObjectStreamConstants
+  private static final short STREAM_MAGIC = (short) 0xaced;
+  private static final short STREAM_VERSION = 5;
+  private static final byte TC_NULL = (byte) 0x70;
+  private static final byte TC_REFERENCE = (byte) 0x71;
+  private static final byte TC_STRING = (byte) 0x74;
+  private static final byte TC_RESET = (byte) 0x79;
+  private static final byte TC_LONGSTRING = (byte) 0x7C;
+  private static final int BASE_WIRE_HANDLE = 0x7e0000;
+
+  private ObjectStreamCodec() {}
+
+  /**
+   * @return the header every object stream starts with
+   */
+  public static byte[] streamHeader() {
+    return new byte[]{ (byte) (STREAM_MAGIC >> 8), (byte) STREAM_MAGIC, 0, (byte) STREAM_VERSION };
+  }
+
+  /**
+   * Encode a message the way ObjectOutputStream.writeObject() followed by reset() would.
+   * Every frame ends with a reset so frames carry no back-references and can be shared
+   * between any number of streams.
+   * @param msg the message to encode (a String or null)
+   * @return the encoded frame
+   * @throws NotSerializableException if the message is not a String
+   */
+  public static byte[] encode(Object msg) throws NotSerializableException {
+    if (msg == null) {
+      return new byte[]{ TC_NULL, TC_RESET };
+    }
+    if (!(msg instanceof String)) {
+      throw new NotSerializableException(msg.getClass().getName());
+    }
+    String str = (String) msg;
+    long utfLength = utfLength(str);
+    boolean longString = utfLength > 0xFFFF;
+    int headerLength = longString ? 9 : 3;
+    byte[] frame = new byte[(int) (headerLength + utfLength + 1)];
+    if (longString) {
+      frame[0] = TC_LONGSTRING;
+      for (int i = 0; i < 8; i++) {
+        frame[1 + i] = (byte) (utfLength >>> (56 - 8 * i));
+      }
+    } else {
+      frame[0] = TC_STRING;
+      frame[1] = (byte) (utfLength >>> 8);
+      frame[2] = (byte) utfLength;
+    }
+    int pos = headerLength;
+    for (int i = 0; i < str.length(); i++) {
+      char c = str.charAt(i);
+      if (c >= 0x0001 && c <= 0x007F) {
+        frame[pos++] = (byte) c;
+      } else if (c > 0x07FF) {
+        frame[pos++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+        frame[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+        frame[pos++] = (byte) (0x80 | (c & 0x3F));
+      } else {
+        frame[pos++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+        frame[pos++] = (byte) (0x80 | (c & 0x3F));
+      }
+    }
+    frame[pos] = TC_RESET;
+    return frame;
+  }
+
+  /**
+   * @return number of bytes needed to hold the string in modified UTF-8
+   */
+  private static long utfLength(String str) {
+    long length = 0;
+    for (int i = 0; i < str.length(); i++) {
+      char c = str.charAt(i);
+      length += (c >= 0x0001 && c <= 0x007F) ? 1 : (c > 0x07FF ? 3 : 2);
+    }
+    return length;
+  }
+
+  /**
+   * Incremental decoder for one object stream. Not thread-safe, each connection owns one.
+   */
+  public static final class Decoder implements MessageDecoder {
+
+    // strings read so far, indexed by wire handle (cleared on every reset)
+    private final ArrayList<String> handles = new ArrayList<>();
+
+    private boolean headerRead;
+
+    @Override
+    public void decode(ByteBuffer buffer, Consumer<Object> sink) throws IOException {
+      if (!headerRead) {
+        if (buffer.remaining() < 4) {
+          return;
+        }
+        if (buffer.getShort() != STREAM_MAGIC || buffer.getShort() != STREAM_VERSION) {
+          throw new StreamCorruptedException("invalid stream header");
+        }
+        headerRead = true;
+      }
+
+      while (buffer.hasRemaining()) {
+        int start = buffer.position();
+        byte tc = buffer.get();
+        if (tc == TC_RESET) {
+          handles.clear();
+        } else if (tc == TC_NULL) {
+          sink.accept(null);
+        } else if (tc == TC_REFERENCE) {
+          if (buffer.remaining() < 4) {
+            buffer.position(start);
+            return;
+          }
+          int index = buffer.getInt() - BASE_WIRE_HANDLE;
+          if (index < 0 || index >= handles.size()) {
+            throw new StreamCorruptedException("invalid handle value");
+          }
+          sink.accept(handles.get(index));
+        } else if (tc == TC_STRING || tc == TC_LONGSTRING) {
+          int lengthBytes = (tc == TC_STRING) ? 2 : 8;
+          if (buffer.remaining() < lengthBytes) {
+            buffer.position(start);
+            return;
+          }
+          long length = (tc == TC_STRING) ? (buffer.getShort() & 0xFFFF) : buffer.getLong();
+          if (length < 0 || length > MAX_MESSAGE_LENGTH) {
+            throw new StreamCorruptedException("string length out of range: " + length);
+          }
+          if (buffer.remaining() < length) {
+            buffer.position(start);
+            return;
+          }
+          String str = decodeUtf(buffer, (int) length);
+          handles.add(str);
+          sink.accept(str);
+        } else {
+          throw new StreamCorruptedException(String.format("unsupported type code: %02X", tc));
+        }
+      }
+    }
+  }
+
+  /**
+   * Decode a modified UTF-8 string of the given byte length starting at the buffer's position
+   */
+  private static String decodeUtf(ByteBuffer buffer, int length) throws StreamCorruptedException {
+    char[] chars = new char[length];
+    int count = 0;
+    int end = buffer.position() + length;
+    while (buffer.position() < end) {
+      int b = buffer.get() & 0xFF;
+      if (b < 0x80) {
+        chars[count++] = (char) b;
+      } else if ((b & 0xE0) == 0xC0 && buffer.position() < end) {
+        chars[count++] = (char) (((b & 0x1F) << 6) | (buffer.get() & 0x3F));
+      } else if ((b & 0xF0) == 0xE0 && buffer.position() + 1 < end) {
+        chars[count++] = (char) (((b & 0x0F) << 12) | ((buffer.get() & 0x3F) << 6) | (buffer.get() & 0x3F));
+      } else {
+        throw new StreamCorruptedException("malformed input around byte " + buffer.position());
+      }
+    }
+    return new String(chars, 0, count);
+  }
+}
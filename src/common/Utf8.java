@@ -0,0 +1,76 @@
+package common;
+
+/**
+ * UTF-8 length and encoding of Strings straight into a caller's array, for frames assembled
+ * from several parts without an intermediate byte array per part. Encodes exactly like
+ * String.getBytes(StandardCharsets.UTF_8), unpaired surrogates included (as '?').
+ */
+public final class Utf8 {
+
+  private Utf8() {}
+
+  /**
+   * @return number of bytes the string takes in UTF-8, without encoding it
+   */
+  public static int length(String str) {
+    int length = str.length();
+    for (int i = 0; i < str.length(); i++) {
+      char c = str.charAt(i);
+      if (c < 0x80) {
+        continue;
+      }
+      if (c < 0x800) {
+        length++;
+      } else if (Character.isHighSurrogate(c) && i + 1 < str.length() && Character.isLowSurrogate(str.charAt(i + 1))) {
+        // 4 bytes for the 2 chars of the pair
+        length += 2;
+        i++;
+      } else if (!Character.isSurrogate(c)) {
+        length += 2;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Encode a string into an array large enough to hold length(str) bytes from pos
+   * @return position following the last byte written
+   */
+  public static int encode(String str, byte[] target, int pos) {
+    int length = str.length();
+    int i = 0;
+    // ASCII prefix, the common case, one byte per char
+    while (i < length) {
+      char c = str.charAt(i);
+      if (c >= 0x80) {
+        break;
+      }
+      target[pos++] = (byte) c;
+      i++;
+    }
+    for (; i < length; i++) {
+      char c = str.charAt(i);
+      if (c < 0x80) {
+        target[pos++] = (byte) c;
+      } else if (c < 0x800) {
+        target[pos++] = (byte) (0xC0 | (c >> 6));
+        target[pos++] = (byte) (0x80 | (c & 0x3F));
+      } else if (Character.isSurrogate(c)) {
+        if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(str.charAt(i + 1))) {
+          int codePoint = Character.toCodePoint(c, str.charAt(++i));
+          target[pos++] = (byte) (0xF0 | (codePoint >> 18));
+          target[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+          target[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+          target[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else {
+          target[pos++] = '?';
+        }
+      } else {
+        target[pos++] = (byte) (0xE0 | (c >> 12));
+        target[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+        target[pos++] = (byte) (0x80 | (c & 0x3F));
+      }
+    }
+    return pos;
+  }
+}
@@ -0,0 +1,108 @@
+package common;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+/**
+ * Wire formats a connection can use. The client picks one by the header it sends first,
+ * and servers that do not own an object stream (nio and virtual engines) answer in kind,
+ * so old object stream clients and binary clients share the same port.
+ */
+public enum WireFormat
+{
+  objectStream { // Java serialization, what OCSF uses
+    @Override
+    public byte[] header() {
+      return ObjectStreamCodec.streamHeader();
+    }
+
+    @Override
+    public byte[] encode(Object msg) throws IOException {
+      return ObjectStreamCodec.encode(msg);
+    }
+
+    @Override
+    public MessageDecoder newDecoder() {
+      return new ObjectStreamCodec.Decoder();
+    }
+  },
+
+  binary { // compact length-prefixed frames, see BinaryCodec
+    @Override
+    public byte[] header() {
+      return BinaryCodec.header();
+    }
+
+    @Override
+    public byte[] header(boolean deflate) {
+      return BinaryCodec.header(deflate);
+    }
+
+    @Override
+    public byte[] encode(Object msg) throws IOException {
+      return BinaryCodec.encode(msg);
+    }
+
+    @Override
+    public MessageDecoder newDecoder() {
+      return new BinaryCodec.Decoder();
+    }
+  };
+
+  /**
+   * @return the bytes a peer using this format sends before any message
+   */
+  public abstract byte[] header();
+
+  /**
+   * @param deflate whether this peer inflates deflated frames, only the binary format supports it
+   * @return the bytes a peer using this format sends before any message
+   */
+  public byte[] header(boolean deflate) {
+    return header();
+  }
+
+  /**
+   * @param msg the message to encode
+   * @return the frame carrying the message
+   * @throws IOException if the message can not be encoded in this format
+   */
+  public abstract byte[] encode(Object msg) throws IOException;
+
+  /**
+   * @return a decoder for a stream in this format, expecting the peer's header first
+   */
+  public abstract MessageDecoder newDecoder();
+
+  /**
+   * Tell the format of a stream from its first bytes, without consuming them
+   * @param buffer buffer in read mode, holding the first bytes received from the peer
+   * @return the peer's format, or null if not enough bytes were received yet (a binary header
+   *         is only reported once complete, so its flags can be read)
+   * @throws StreamCorruptedException if the bytes match no known format
+   */
+  public static WireFormat detect(ByteBuffer buffer) throws StreamCorruptedException {
+    if (buffer.remaining() < 2) {
+      return null;
+    }
+    byte first = buffer.get(buffer.position());
+    byte second = buffer.get(buffer.position() + 1);
+    if (first == (byte) 0xAC && second == (byte) 0xED) {
+      return objectStream;
+    } else if (first == BinaryCodec.MAGIC_0 && second == BinaryCodec.MAGIC_1) {
+      return buffer.remaining() < 4 ? null : binary;
+    }
+    throw new StreamCorruptedException(String.format("unknown stream header: %02X%02X", first, second));
+  }
+
+  /**
+   * @param buffer buffer in read mode, holding a complete header as reported by detect
+   * @return whether the peer's header says it inflates deflated frames
+   */
+  public static boolean offersDeflate(ByteBuffer buffer) {
+    return buffer.remaining() >= 4
+            && buffer.get(buffer.position()) == BinaryCodec.MAGIC_0
+            && (buffer.get(buffer.position() + 3) & BinaryCodec.FLAG_DEFLATE) != 0;
+  }
+}
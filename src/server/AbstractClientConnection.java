@@ -0,0 +1,27 @@
+package server;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Base class for connections owned by the engines in this package (not OCSF threads).
+ * Keeps the client's info map, which several threads may read while the client's own
+ * messages are handled.
+ */
+public abstract class AbstractClientConnection implements ClientConnection
+{
+  private final ConcurrentHashMap<String, Object> savedInfo = new ConcurrentHashMap<>(8);
+
+  @Override
+  public void setInfo(String infoType, Object info) {
+    if (info == null) {
+      savedInfo.remove(infoType);
+    } else {
+      savedInfo.put(infoType, info);
+    }
+  }
+
+  @Override
+  public Object getInfo(String infoType) {
+    return savedInfo.get(infoType);
+  }
+}
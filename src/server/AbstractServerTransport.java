@@ -0,0 +1,152 @@
+package server;
+
+import common.BinaryCodec;
+import common.WireFormat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Bookkeeping shared by the engines in this package: the port, the set of live connections,
+ * the limits of their outbound queues, frame compression and the rules for when each
+ * ServerHandler hook fires.
+ */
+public abstract class AbstractServerTransport implements ServerTransport
+{
+  /**
+   * The hooks driven by this transport
+   */
+  protected final ServerHandler handler;
+
+  /**
+   * Bounds of each connection's outbound queue
+   */
+  protected final OutboundLimits outboundLimits;
+
+  private final OutboundStats outboundStats = new OutboundStats();
+
+  private final Set<ClientConnection> connections = ConcurrentHashMap.newKeySet();
+
+  private volatile int port;
+
+  // binary frames of at least this many bytes are deflated for clients that accept it, 0 for never
+  private volatile int compressionThreshold;
+
+  protected AbstractServerTransport(ServerHandler handler, int port) {
+    this(handler, port, OutboundLimits.DEFAULT);
+  }
+
+  protected AbstractServerTransport(ServerHandler handler, int port, OutboundLimits outboundLimits) {
+    this.handler = handler;
+    this.port = port;
+    this.outboundLimits = outboundLimits;
+  }
+
+  @Override
+  public int getPort() {
+    return port;
+  }
+
+  @Override
+  public void setPort(int port) {
+    this.port = port;
+  }
+
+  @Override
+  public int getNumberOfClients() {
+    return connections.size();
+  }
+
+  @Override
+  public List<ClientConnection> getClientConnections() {
+    return new ArrayList<>(connections);
+  }
+
+  /**
+   * Encodes the message once, then hands the same frame to every connection.
+   * @param msg the message to be sent.
+   */
+  @Override
+  public void sendToAllClients(Object msg) {
+    sendToClients(connections, msg);
+  }
+
+  public int getCompressionThreshold() {
+    return compressionThreshold;
+  }
+
+  /**
+   * @param compressionThreshold binary frames of at least this many bytes are deflated for
+   *                             clients that accept it, 0 to never deflate; applies to new connections
+   */
+  public void setCompressionThreshold(int compressionThreshold) {
+    if (compressionThreshold < 0) {
+      throw new IllegalArgumentException("Compression threshold can not be negative");
+    }
+    this.compressionThreshold = compressionThreshold;
+  }
+
+  @Override
+  public OutboundStats getOutboundStats() {
+    return outboundStats;
+  }
+
+  /**
+   * @return a new outbound queue for one connection, counting into this transport's stats
+   */
+  <T> OutboundQueue<T> newOutboundQueue() {
+    return new OutboundQueue<>(outboundLimits, outboundStats);
+  }
+
+  /**
+   * @param discard called with each frame of the queue that will never be written
+   * @return a new outbound queue for one connection, counting into this transport's stats
+   */
+  <T> OutboundQueue<T> newOutboundQueue(Consumer<? super T> discard) {
+    return new OutboundQueue<>(outboundLimits, outboundStats, discard);
+  }
+
+  /**
+   * @param header the client's complete header
+   * @return a compressor for the connection, null unless both the client and this transport deflate
+   */
+  BinaryCodec.Compressor negotiateCompressor(ByteBuffer header) {
+    int threshold = compressionThreshold;
+    return (threshold > 0 && WireFormat.offersDeflate(header)) ? new BinaryCodec.Compressor(threshold) : null;
+  }
+
+  /**
+   * Registers a freshly accepted connection and fires clientConnected.
+   * @param client the new connection
+   */
+  protected void connectionOpened(ClientConnection client) {
+    connections.add(client);
+    handler.clientConnected(client);
+  }
+
+  /**
+   * Unregisters a connection closed through close() and fires clientDisconnected once.
+   * @param client the closed connection
+   */
+  protected void connectionClosed(ClientConnection client) {
+    if (connections.remove(client)) {
+      handler.clientDisconnected(client);
+    }
+  }
+
+  /**
+   * Unregisters a connection that failed (including the client going away) and fires
+   * clientException once, like OCSF does when a client's read loop throws.
+   * @param client the failed connection
+   * @param exception the cause
+   */
+  protected void connectionFailed(ClientConnection client, Throwable exception) {
+    if (connections.remove(client)) {
+      handler.clientException(client, exception);
+    }
+  }
+}
@@ -0,0 +1,188 @@
+package server;
+
+import common.BinaryCodec;
+import common.EncodedMessage;
+import common.MessageDecoder;
+import common.WireFormat;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A client connection served by two threads with blocking socket I/O: a reader, and a writer
+ * draining the connection's bounded outbound queue so senders never wait on a slow client.
+ * The wire format is the one the client's header asks for.
+ * Nothing here holds a monitor while blocked, so virtual threads never pin their carrier.
+ */
+final class BlockingClientConnection extends AbstractClientConnection implements Runnable
+{
+  private static final int INITIAL_READ_BUFFER_SIZE = 8 * 1024;
+
+  private final BlockingServerTransport transport;
+
+  private final Socket socket;
+
+  private final InputStream input;
+
+  // only written by the writer thread (and by the reader before the writer starts)
+  private final OutputStream output;
+
+  // filled by any thread, drained by the writer thread
+  private final OutboundQueue<byte[]> outbound;
+
+  private final AtomicBoolean closed = new AtomicBoolean();
+
+  // chosen from the client's first bytes, then fixed for the connection's lifetime
+  private volatile WireFormat format;
+
+  // deflates large frames when the client accepts them, null otherwise, fixed like the format
+  private volatile BinaryCodec.Compressor compressor;
+
+  BlockingClientConnection(BlockingServerTransport transport, Socket socket) throws IOException {
+    this.transport = transport;
+    this.socket = socket;
+    this.input = socket.getInputStream();
+    this.output = new BufferedOutputStream(socket.getOutputStream());
+    this.outbound = transport.newOutboundQueue();
+  }
+
+  @Override
+  public void run() {
+    MessageDecoder decoder = null;
+    ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+    try {
+      while (!closed.get()) {
+        int read = input.read(readBuffer.array(), readBuffer.position(), readBuffer.remaining());
+        if (read < 0) {
+          throw new EOFException();
+        }
+        readBuffer.position(readBuffer.position() + read);
+        if (decoder == null) {
+          // pick the wire format from the client's header, answer with ours and report the connection
+          WireFormat detected = WireFormat.detect(readBuffer.duplicate().flip());
+          if (detected == null) {
+            continue;
+          }
+          compressor = transport.negotiateCompressor(readBuffer.duplicate().flip());
+          format = detected;
+          decoder = detected.newDecoder();
+          output.write(detected.header(compressor != null));
+          output.flush();
+          transport.newThread(this::drain).start();
+          transport.connectionOpened(this);
+        }
+        readBuffer = decoder.decodeAndCompact(readBuffer, msg -> {
+          if (!closed.get()) {
+            transport.handler.handleMessageFromClient(msg, this);
+          }
+        });
+      }
+    } catch (Exception e) {
+      fail(e);
+    }
+  }
+
+  @Override
+  public void sendToClient(Object msg) throws IOException {
+    if (closed.get()) {
+      throw new SocketException("socket does not exist");
+    }
+    BinaryCodec.Compressor deflate = compressor;
+    byte[] frame = format.encode(msg);
+    write(deflate == null ? frame : deflate.compress(frame));
+  }
+
+  @Override
+  public void sendToClient(EncodedMessage msg) throws IOException {
+    if (closed.get()) {
+      throw new SocketException("socket does not exist");
+    }
+    write(msg.frame(format, compressor));
+  }
+
+  @Override
+  public void sendAllToClient(List<EncodedMessage> msgs) throws IOException {
+    if (closed.get()) {
+      throw new SocketException("socket does not exist");
+    }
+    // one queue entry, so the whole batch goes out in as few socket writes as possible
+    write(EncodedMessage.frames(msgs, format, compressor));
+  }
+
+  private void write(byte[] frame) {
+    if (!outbound.offer(frame)) {
+      // too far behind, give up on the client
+      try {
+        close();
+      } catch (IOException ignored) {}
+    }
+  }
+
+  /**
+   * Writer thread: drains the outbound queue, flushing whenever it runs empty so frames queued
+   * together leave in as few socket writes as possible
+   */
+  private void drain() {
+    try {
+      byte[] frame;
+      while ((frame = outbound.take()) != null) {
+        output.write(frame);
+        if (outbound.isEmpty()) {
+          output.flush();
+        }
+        outbound.written();
+      }
+    } catch (IOException e) {
+      fail(e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public boolean awaitFlushed(long deadline) throws InterruptedException {
+    return outbound.awaitDrained(deadline);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed.compareAndSet(false, true)) {
+      outbound.close();
+      try {
+        socket.close();
+      } finally {
+        transport.connectionClosed(this);
+      }
+    }
+  }
+
+  private void fail(Throwable exception) {
+    if (closed.compareAndSet(false, true)) {
+      outbound.close();
+      try {
+        socket.close();
+      } catch (IOException ignored) {}
+      transport.connectionFailed(this, exception);
+    }
+  }
+
+  @Override
+  public InetAddress getInetAddress() {
+    return closed.get() ? null : socket.getInetAddress();
+  }
+
+  @Override
+  public String toString() {
+    InetAddress address = getInetAddress();
+    return address == null ? null : address.getHostName() + " (" + address.getHostAddress() + ")";
+  }
+}
@@ -0,0 +1,113 @@
+package server;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Server engine running the accept loop and every connection's read loop on threads from a
+ * ThreadFactory. With a virtual thread factory this keeps OCSF's simple blocking model while
+ * the JVM multiplexes the connections over a handful of carrier threads.
+ */
+public class BlockingServerTransport extends AbstractServerTransport
+{
+  private final ThreadFactory threadFactory;
+
+  private volatile ServerSocket serverSocket;
+
+  private boolean opened;
+
+  /**
+   * @param handler hooks to drive
+   * @param port port to listen on
+   * @param threadFactory creates the acceptor and per-connection threads
+   * @param outboundLimits bounds of each connection's outbound queue
+   */
+  public BlockingServerTransport(ServerHandler handler, int port, ThreadFactory threadFactory, OutboundLimits outboundLimits) {
+    super(handler, port, outboundLimits);
+    this.threadFactory = threadFactory;
+  }
+
+  /**
+   * @param handler hooks to drive
+   * @param port port to listen on
+   * @param outboundLimits bounds of each connection's outbound queue
+   * @return a transport running each connection's reader and writer on virtual threads
+   */
+  public static BlockingServerTransport withVirtualThreads(ServerHandler handler, int port, OutboundLimits outboundLimits) {
+    return new BlockingServerTransport(handler, port, Thread.ofVirtual().name("connection-", 0).factory(), outboundLimits);
+  }
+
+  /**
+   * @param task work of one connection (reading or writing)
+   * @return an unstarted thread from this transport's factory
+   */
+  Thread newThread(Runnable task) {
+    return threadFactory.newThread(task);
+  }
+
+  @Override
+  public synchronized void listen() throws IOException {
+    if (isListening()) {
+      return;
+    }
+    ServerSocket socket = new ServerSocket(getPort(), 128);
+    serverSocket = socket;
+    opened = true;
+    threadFactory.newThread(() -> accept(socket)).start();
+  }
+
+  private void accept(ServerSocket socket) {
+    handler.serverStarted();
+    try {
+      while (true) {
+        Socket clientSocket = socket.accept();
+        try {
+          threadFactory.newThread(new BlockingClientConnection(this, clientSocket)).start();
+        } catch (IOException e) {
+          clientSocket.close();
+        }
+      }
+    } catch (IOException e) {
+      if (socket.isClosed()) {
+        // stopListening() closed the socket
+        handler.serverStopped();
+      } else {
+        serverSocket = null;
+        handler.listeningException(e);
+      }
+    }
+  }
+
+  @Override
+  public synchronized void stopListening() {
+    ServerSocket socket = serverSocket;
+    serverSocket = null;
+    if (socket != null) {
+      try {
+        socket.close();
+      } catch (IOException ignored) {}
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (!opened) {
+      return;
+    }
+    stopListening();
+    for (ClientConnection client : getClientConnections()) {
+      try {
+        client.close();
+      } catch (Exception ignored) {}
+    }
+    opened = false;
+    handler.serverClosed();
+  }
+
+  @Override
+  public boolean isListening() {
+    return serverSocket != null;
+  }
+}
@@ -0,0 +1,71 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A logged in client as the author of chat lines: its login id, and the UTF-8 prefix its lines
+ * start with in its current room ("loginId: ", or "[room] loginId: " outside the default room),
+ * encoded once at login and again only when it changes rooms, not for every line it sends.
+ */
+final class ChatSender
+{
+  /**
+   * The prefix of lines sent to one room
+   */
+  private static final class RoomPrefix
+  {
+    final String room;
+    final byte[] bytes;
+
+    RoomPrefix(String room, byte[] bytes) {
+      this.room = room;
+      this.bytes = bytes;
+    }
+  }
+
+  //Instance variables **********************************************
+
+  private final String loginId;
+
+  private final String defaultRoom;
+
+  private final byte[] loginPrefix;
+
+  // prefix of the last room sent to, replaced as a whole so readers never see half of it
+  private volatile RoomPrefix roomPrefix;
+
+  //Constructors ****************************************************
+
+  /**
+   * @param loginId the client's login id
+   * @param defaultRoom the room whose lines carry no room name
+   */
+  ChatSender(String loginId, String defaultRoom) {
+    this.loginId = loginId;
+    this.defaultRoom = defaultRoom;
+    this.loginPrefix = (loginId + ": ").getBytes(StandardCharsets.UTF_8);
+    this.roomPrefix = new RoomPrefix(defaultRoom, loginPrefix);
+  }
+
+  //Instance methods ************************************************
+
+  String getLoginId() {
+    return loginId;
+  }
+
+  /**
+   * @param room the room a line is sent to
+   * @return the UTF-8 bytes the line starts with, shared (read-only)
+   */
+  byte[] linePrefix(String room) {
+    RoomPrefix prefix = roomPrefix;
+    if (!prefix.room.equals(room)) {
+      byte[] bytes = defaultRoom.equals(room)
+              ? loginPrefix
+              : ("[" + room + "] " + loginId + ": ").getBytes(StandardCharsets.UTF_8);
+      prefix = new RoomPrefix(room, bytes);
+      roomPrefix = prefix;
+    }
+    return prefix.bytes;
+  }
+}
@@ -0,0 +1,87 @@
+package server;
+
+import common.EncodedMessage;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.List;
+
+/**
+ * A server's view of one connected client, independent of the transport engine carrying it.
+ * Mirrors the parts of OCSF's ConnectionToClient used by EchoServer so the same command and
+ * chat logic runs on every engine.
+ */
+public interface ClientConnection
+{
+  /**
+   * Sends a message to the client.
+   *
+   * @param msg the message to be sent.
+   * @throws IOException if an I/O error occurs when sending the message.
+   */
+  void sendToClient(Object msg) throws IOException;
+
+  /**
+   * Sends an already encoded message, so a broadcast is encoded once for all recipients.
+   * Connections that can not write raw frames (OCSF) send the original message instead.
+   *
+   * @param msg the encoded message to be sent.
+   * @throws IOException if an I/O error occurs when sending the message.
+   */
+  default void sendToClient(EncodedMessage msg) throws IOException {
+    sendToClient(msg.getMessage());
+  }
+
+  /**
+   * Sends several encoded messages in order. Connections writing raw frames queue them as a
+   * single write; others send them one by one.
+   *
+   * @param msgs the encoded messages to be sent.
+   * @throws IOException if an I/O error occurs when sending the messages.
+   */
+  default void sendAllToClient(List<EncodedMessage> msgs) throws IOException {
+    for (EncodedMessage msg : msgs) {
+      sendToClient(msg);
+    }
+  }
+
+  /**
+   * Waits until everything sent to the client so far was written to its socket. Connections
+   * writing on the sender's thread (OCSF) have nothing left to write.
+   *
+   * @param deadline System.nanoTime() after which to give up
+   * @return false if messages were still waiting at the deadline
+   * @throws InterruptedException if interrupted while waiting
+   */
+  default boolean awaitFlushed(long deadline) throws InterruptedException {
+    return true;
+  }
+
+  /**
+   * Closes the connection with the client.
+   *
+   * @throws IOException if an I/O error occurs when closing the connection.
+   */
+  void close() throws IOException;
+
+  /**
+   * @return the address of the client, or null if the connection is closed.
+   */
+  InetAddress getInetAddress();
+
+  /**
+   * Saves information about this client.
+   *
+   * @param infoType identifies the type of information
+   * @param info the information itself (null removes it)
+   */
+  void setInfo(String infoType, Object info);
+
+  /**
+   * Returns information about the client saved using setInfo.
+   *
+   * @param infoType identifies the type of information
+   * @return the saved information, or null if none was saved
+   */
+  Object getInfo(String infoType);
+}
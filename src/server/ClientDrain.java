@@ -0,0 +1,103 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Closes many client connections at once, each on a virtual thread of its own, so one hung
+ * socket holds up nobody else and the whole drain ends by a single deadline. A connection may
+ * first be given until the deadline to write what is still queued for it.
+ */
+final class ClientDrain
+{
+  /**
+   * How a drain went
+   */
+  static final class Report
+  {
+    private int clean;
+
+    private int forced;
+
+    private int unfinished;
+
+    /**
+     * @return connections closed after everything queued for them was written
+     */
+    int getClean() {
+      return clean;
+    }
+
+    /**
+     * @return connections closed with messages still queued, or whose close failed
+     */
+    int getForced() {
+      return forced;
+    }
+
+    /**
+     * @return connections still closing at the deadline, left to finish in the background
+     */
+    int getUnfinished() {
+      return unfinished;
+    }
+
+    @Override
+    public String toString() {
+      return clean + " closed cleanly, " + (forced + unfinished) + " forcibly"
+              + (unfinished > 0 ? " (" + unfinished + " still closing at the deadline)" : "");
+    }
+  }
+
+  private ClientDrain() {}
+
+  //Class methods ***************************************************
+
+  /**
+   * Close the connections, waiting at most the timeout for all of them
+   * @param clients the connections
+   * @param flush whether to let each connection write what is queued for it before closing it
+   * @param timeoutMillis how long the whole drain may take
+   * @return how many connections closed cleanly and how many forcibly
+   */
+  static Report closeAll(List<ClientConnection> clients, boolean flush, long timeoutMillis) {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    Report report = new Report();
+    ExecutorService closers = Executors.newVirtualThreadPerTaskExecutor();
+    List<Future<Boolean>> closing = new ArrayList<>(clients.size());
+    for (ClientConnection client : clients) {
+      closing.add(closers.submit(() -> {
+        boolean flushed = !flush || client.awaitFlushed(deadline);
+        client.close();
+        return flushed;
+      }));
+    }
+    // no more tasks, but do not wait for the hung ones
+    closers.shutdown();
+
+    for (Future<Boolean> future : closing) {
+      try {
+        if (future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+          report.clean++;
+        } else {
+          report.forced++;
+        }
+      } catch (TimeoutException e) {
+        report.unfinished++;
+      } catch (ExecutionException e) {
+        // the close itself failed, the connection is gone anyway
+        report.forced++;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        report.unfinished++;
+      }
+    }
+    return report;
+  }
+}
@@ -0,0 +1,192 @@
+package server;
+
+import client.ClientHandler;
+import client.SocketClientTransport;
+import common.WireFormat;
+import utils.LogLevel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outbound link from this node to one peer, carried like a chat client connection to the peer's
+ * client port. Everything this node relays to the peer goes through this link; what the peer
+ * relays here arrives on the peer's own link, as one of this node's client connections.
+ * Relays are queued and written by the link's own thread, so a slow peer never holds up the
+ * server; a peer falling too far behind loses its link. A lost link is reopened after a delay
+ * growing up to MAX_RETRY_SECONDS.
+ */
+final class ClusterLink implements ClientHandler
+{
+  private static final long MAX_RETRY_SECONDS = 10;
+
+  // a peer that does not take relays for 5 seconds is unlinked, it catches up on presence when relinked
+  private static final OutboundLimits LIMITS = new OutboundLimits(16 * 1024, SlowConsumerPolicy.disconnect, 5000);
+
+  //Instance variables **********************************************
+
+  private final ClusterNode node;
+
+  private final InetSocketAddress address;
+
+  private final SocketClientTransport transport;
+
+  /**
+   * Node id of the peer once it accepted the link, null while the link is down
+   */
+  private volatile String peerNodeId;
+
+  /**
+   * Relays waiting to be written, replaced each time the link comes up
+   */
+  private volatile OutboundQueue<String> outbound;
+
+  private volatile boolean closed;
+
+  private volatile long retrySeconds = 1;
+
+  //Constructors ****************************************************
+
+  ClusterLink(ClusterNode node, InetSocketAddress address, WireFormat format) {
+    this.node = node;
+    this.address = address;
+    this.transport = SocketClientTransport.withVirtualThreads(this, address.getHostString(), address.getPort(), format);
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * @return node id of the peer, null while the link is down
+   */
+  String getPeerNodeId() {
+    return peerNodeId;
+  }
+
+  /**
+   * @return the peer's address as configured, "host:port"
+   */
+  String getAddress() {
+    return address.getHostString() + ":" + address.getPort();
+  }
+
+  /**
+   * Try to open the link, scheduling another try if the peer can not be reached
+   */
+  void connect() {
+    if (closed) {
+      return;
+    }
+    try {
+      transport.openConnection();
+    } catch (IOException e) {
+      node.getLogger().log(LogLevel.debug, "Cluster peer {} unreachable: {}", getAddress(), e.getMessage());
+      scheduleReconnect();
+    }
+  }
+
+  /**
+   * Send a message to the peer
+   * @param msg a cluster command
+   * @return false if the link is down, the message is then lost
+   */
+  boolean send(String msg) {
+    OutboundQueue<String> queue = outbound;
+    if (peerNodeId == null || queue == null) {
+      return false;
+    }
+    if (!queue.offer(msg)) {
+      node.getLogger().log(LogLevel.warn, "Cluster peer {} is not keeping up, unlinking it", peerNodeId);
+      closeConnection();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Close the link for good
+   */
+  void close() {
+    closed = true;
+    closeConnection();
+  }
+
+  private void closeConnection() {
+    try {
+      transport.closeConnection();
+    } catch (IOException ignored) {}
+  }
+
+  /**
+   * Writer thread: sends queued relays until the link goes down
+   */
+  private void drain(OutboundQueue<String> queue) {
+    try {
+      String msg;
+      while ((msg = queue.take()) != null) {
+        transport.sendToServer(msg);
+      }
+    } catch (IOException e) {
+      closeConnection();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void scheduleReconnect() {
+    if (closed) {
+      return;
+    }
+    long delay = retrySeconds;
+    retrySeconds = Math.min(retrySeconds * 2, MAX_RETRY_SECONDS);
+    node.schedule(this::connect, delay, TimeUnit.SECONDS);
+  }
+
+  @Override
+  public void connectionEstablished() {
+    try {
+      transport.sendToServer(node.helloCommand());
+    } catch (IOException e) {
+      node.getLogger().log(LogLevel.warn, "Unable to greet cluster peer {}: {}", getAddress(), e.getMessage());
+    }
+  }
+
+  @Override
+  public void handleMessageFromServer(Object msg) {
+    String peer = ClusterNode.welcomedBy(msg);
+    if (peer != null) {
+      OutboundQueue<String> queue = new OutboundQueue<>(LIMITS, node.getOutboundStats());
+      outbound = queue;
+      Thread.ofVirtual().name("cluster-link-" + peer).start(() -> drain(queue));
+      peerNodeId = peer;
+      retrySeconds = 1;
+      node.linkUp(this);
+    } else if (peerNodeId == null) {
+      // anything before the welcome is the peer turning the link down (ex: wrong secret)
+      node.getLogger().log(LogLevel.warn, "Cluster peer {} refused the link: {}", getAddress(), msg);
+    }
+  }
+
+  @Override
+  public void connectionClosed() {
+    linkDown();
+  }
+
+  @Override
+  public void connectionException(Exception exception) {
+    linkDown();
+  }
+
+  private void linkDown() {
+    String peer = peerNodeId;
+    peerNodeId = null;
+    OutboundQueue<String> queue = outbound;
+    if (queue != null) {
+      queue.close();
+    }
+    if (peer != null) {
+      node.linkDown(this, peer);
+    }
+    scheduleReconnect();
+  }
+}
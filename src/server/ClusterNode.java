@@ -0,0 +1,408 @@
+package server;
+
+import common.WireFormat;
+import utils.AsyncLogger;
+import utils.LogLevel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This server's membership in a cluster of EchoServers. Every node opens a ClusterLink to each
+ * peer it is given (so every node must list all the others) and relays over it what its own
+ * clients do: room messages, private messages to users logged in elsewhere, server broadcasts
+ * and logins/logoffs. Peers relay to this node through its client port, using "#cluster"
+ * commands that are only accepted once the peer said hello with the cluster's secret. The
+ * secret is sent in plaintext, it keeps clients from posing as peers but not eavesdroppers out.
+ * <p>
+ * Relayed messages are delivered on one hop and never relayed again. Messages relayed while a
+ * link is down are lost, and presence converges again when the link comes back.
+ */
+public class ClusterNode
+{
+  /**
+   * Prefix of every command exchanged between nodes
+   */
+  public static final String COMMAND_PREFIX = "#cluster ";
+
+  /**
+   * Receives what peers relay to this node
+   */
+  public interface Listener
+  {
+    /**
+     * @param room the room the message was sent to
+     * @param loginId who sent it
+     * @param text the message
+     */
+    void roomMessage(String room, String loginId, String text);
+
+    /**
+     * @param fromLoginId who sent it
+     * @param toLoginId who it is for, logged in on this node
+     * @param text the message
+     */
+    void privateMessage(String fromLoginId, String toLoginId, String text);
+
+    /**
+     * @param text a message for every client
+     */
+    void broadcast(String text);
+  }
+
+  // links carry a heartbeat this often, so peers never close them for being idle
+  private static final long HEARTBEAT_SECONDS = 2;
+
+  // key of the node id of a client connection that is a peer's link
+  private static final String PEER_NODE_KEY = "clusterNode";
+
+  //Instance variables **********************************************
+
+  private final String nodeId;
+
+  private final String secret;
+
+  private final Listener listener;
+
+  private final LoginIndex loginIndex;
+
+  private final AsyncLogger logger;
+
+  private final List<ClusterLink> links = new ArrayList<>();
+
+  /**
+   * Links that are up, by the peer's node id
+   */
+  private final ConcurrentHashMap<String, ClusterLink> linksByNode = new ConcurrentHashMap<>();
+
+  /**
+   * Users logged in on other nodes, by login id, with the connection of the node they are on
+   */
+  private final ConcurrentHashMap<String, ClientConnection> remoteLogins = new ConcurrentHashMap<>();
+
+  private final OutboundStats outboundStats = new OutboundStats();
+
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+    Thread thread = new Thread(task, "cluster-links");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  //Constructors ****************************************************
+
+  /**
+   * @param nodeId name of this node, unique in the cluster
+   * @param secret what peers must present to link to this node, not empty
+   * @param peers client ports of the other nodes
+   * @param format wire format of the links
+   * @param listener receives what peers relay
+   * @param loginIndex the users logged in on this node, announced to peers when they link
+   * @param logger where link events are logged
+   */
+  public ClusterNode(String nodeId, String secret, List<InetSocketAddress> peers, WireFormat format,
+                     Listener listener, LoginIndex loginIndex, AsyncLogger logger) {
+    if (nodeId.isEmpty() || nodeId.indexOf(' ') >= 0) {
+      throw new IllegalArgumentException("Invalid cluster node id: " + nodeId);
+    }
+    if (secret.isEmpty()) {
+      // any client could say hello as a peer, then relay as any user
+      throw new IllegalArgumentException("A cluster requires a secret");
+    }
+    this.nodeId = nodeId;
+    this.secret = secret;
+    this.listener = listener;
+    this.loginIndex = loginIndex;
+    this.logger = logger;
+    for (InetSocketAddress peer : peers) {
+      links.add(new ClusterLink(this, peer, format));
+    }
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Open the links to every peer, peers not up yet are retried in the background
+   */
+  public void start() {
+    for (ClusterLink link : links) {
+      schedule(link::connect, 0, TimeUnit.SECONDS);
+    }
+    scheduler.scheduleAtFixedRate(() -> relayToAll("#ping"), HEARTBEAT_SECONDS, HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Close every link
+   */
+  public void close() {
+    scheduler.shutdownNow();
+    for (ClusterLink link : links) {
+      link.close();
+    }
+  }
+
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  /**
+   * Relay a room message to every peer
+   */
+  public void relayRoomMessage(String room, String loginId, String text) {
+    relayToAll(COMMAND_PREFIX + "room " + room + " " + loginId + " " + text);
+  }
+
+  /**
+   * Relay a server broadcast to every peer
+   */
+  public void relayBroadcast(String text) {
+    relayToAll(COMMAND_PREFIX + "all " + text);
+  }
+
+  /**
+   * Relay a private message to the node the recipient is logged in on
+   * @return false if the recipient is not logged in on another node, or its node can not be reached
+   */
+  public boolean relayPrivateMessage(String fromLoginId, String toLoginId, String text) {
+    ClientConnection peer = remoteLogins.get(toLoginId);
+    ClusterLink link = (peer == null) ? null : linksByNode.get((String) peer.getInfo(PEER_NODE_KEY));
+    return link != null && link.send(COMMAND_PREFIX + "pm " + fromLoginId + " " + toLoginId + " " + text);
+  }
+
+  /**
+   * Announce a user logged in on this node
+   */
+  public void loggedIn(String loginId) {
+    relayToAll(COMMAND_PREFIX + "on " + loginId);
+  }
+
+  /**
+   * Announce a user of this node logged off
+   */
+  public void loggedOut(String loginId) {
+    relayToAll(COMMAND_PREFIX + "off " + loginId);
+  }
+
+  /**
+   * @param loginId a login id
+   * @return whether a user is logged in with that id on another node
+   */
+  public boolean isLoggedInElsewhere(String loginId) {
+    return remoteLogins.containsKey(loginId);
+  }
+
+  /**
+   * Handle a "#cluster" command received from a client connection
+   * @param msg the message received
+   * @param client the connection it came from
+   * @return false if the message is not a cluster command
+   */
+  public boolean handle(String msg, ClientConnection client) {
+    if (!msg.startsWith(COMMAND_PREFIX)) {
+      return false;
+    }
+    int kindEnd = msg.indexOf(' ', COMMAND_PREFIX.length());
+    String kind = msg.substring(COMMAND_PREFIX.length(), kindEnd < 0 ? msg.length() : kindEnd);
+    String args = kindEnd < 0 ? "" : msg.substring(kindEnd + 1);
+
+    if (kind.equals("hello")) {
+      acceptPeer(args, client);
+      return true;
+    }
+    String peer = (String) client.getInfo(PEER_NODE_KEY);
+    if (peer == null) {
+      refuse(client, "Not a cluster peer.");
+      return true;
+    }
+
+    String[] parts;
+    switch (kind) {
+      case "room":
+        if ((parts = split(args, 3)) != null && validLoginId(parts[1], peer)) {
+          listener.roomMessage(parts[0], parts[1], parts[2]);
+        }
+        break;
+      case "pm":
+        if ((parts = split(args, 3)) != null && validLoginId(parts[0], peer)) {
+          listener.privateMessage(parts[0], parts[1], parts[2]);
+        }
+        break;
+      case "all":
+        listener.broadcast(args);
+        break;
+      case "on":
+        if (validLoginId(args, peer)) {
+          remoteLogins.put(args, client);
+        }
+        break;
+      case "off":
+        remoteLogins.remove(args, client);
+        break;
+      default:
+        logger.log(LogLevel.warn, "Unknown cluster command from {}: {}", peer, msg);
+    }
+    return true;
+  }
+
+  /**
+   * Check a login id relayed by a peer the way this node checks its own logins, lines sent to
+   * clients start with it
+   * @return false, after logging it, if the id is not valid
+   */
+  private boolean validLoginId(String loginId, String peer) {
+    if (LoginIndex.isValid(loginId)) {
+      return true;
+    }
+    logger.log(LogLevel.warn, "Invalid login id relayed by cluster node {}: {}", peer, loginId);
+    return false;
+  }
+
+  /**
+   * Forget the users of a peer whose link to this node went down
+   * @param client a disconnected client connection, possibly a peer's link
+   */
+  public void clientDisconnected(ClientConnection client) {
+    Object peer = client.getInfo(PEER_NODE_KEY);
+    if (peer != null) {
+      remoteLogins.values().removeIf(connection -> connection == client);
+      logger.log(LogLevel.info, "Cluster node {} unlinked from this node", peer);
+    }
+  }
+
+  /**
+   * @param client a client connection
+   * @return whether the connection is a peer's link rather than a user
+   */
+  public static boolean isPeer(ClientConnection client) {
+    return client.getInfo(PEER_NODE_KEY) != null;
+  }
+
+  /**
+   * @return a few lines describing the links and the users logged in elsewhere
+   */
+  public List<String> report() {
+    List<String> lines = new ArrayList<>();
+    lines.add(String.format("cluster node %s: %d of %d peer links up, %d users logged in on other nodes",
+            nodeId, linksByNode.size(), links.size(), remoteLogins.size()));
+    lines.add("  relay queues: " + outboundStats);
+    for (ClusterLink link : links) {
+      String peer = link.getPeerNodeId();
+      lines.add("  " + link.getAddress() + " " + (peer == null ? "down" : "up, node " + peer));
+    }
+    return lines;
+  }
+
+  /**
+   * Handle "#cluster hello <nodeId> [secret]" from a peer opening its link to this node
+   */
+  private void acceptPeer(String args, ClientConnection client) {
+    int separator = args.indexOf(' ');
+    String peer = separator < 0 ? args : args.substring(0, separator);
+    String presented = separator < 0 ? "" : args.substring(separator + 1);
+    if (peer.isEmpty() || peer.equals(nodeId)
+            || !MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8), presented.getBytes(StandardCharsets.UTF_8))) {
+      logger.log(LogLevel.warn, "Cluster link from {} refused", String.valueOf(client));
+      refuse(client, "Cluster link refused.");
+      return;
+    }
+    client.setInfo(PEER_NODE_KEY, peer);
+    try {
+      client.sendToClient(COMMAND_PREFIX + "welcome " + nodeId);
+      logger.log(LogLevel.info, "Cluster node {} linked to this node", peer);
+    } catch (IOException e) {
+      logger.log(LogLevel.warn, "Unable to welcome cluster node {}: {}", peer, e.getMessage());
+    }
+  }
+
+  private void refuse(ClientConnection client, String reason) {
+    try {
+      client.sendToClient(reason);
+      client.close();
+    } catch (IOException ignored) {}
+  }
+
+  private void relayToAll(String msg) {
+    for (ClusterLink link : linksByNode.values()) {
+      link.send(msg);
+    }
+  }
+
+  /**
+   * @return the command greeting a peer on a new link
+   */
+  String helloCommand() {
+    return COMMAND_PREFIX + "hello " + nodeId + (secret.isEmpty() ? "" : " " + secret);
+  }
+
+  /**
+   * A link was accepted by its peer: tell the peer who is logged in here
+   */
+  void linkUp(ClusterLink link) {
+    String peer = link.getPeerNodeId();
+    linksByNode.put(peer, link);
+    logger.log(LogLevel.info, "Linked to cluster node {} at {}", peer, link.getAddress());
+    for (String loginId : loginIndex.loginIds()) {
+      link.send(COMMAND_PREFIX + "on " + loginId);
+    }
+  }
+
+  void linkDown(ClusterLink link, String peer) {
+    if (linksByNode.remove(peer, link)) {
+      logger.log(LogLevel.info, "Link to cluster node {} lost", peer);
+    }
+  }
+
+  void schedule(Runnable task, long delay, TimeUnit unit) {
+    try {
+      scheduler.schedule(task, delay, unit);
+    } catch (RejectedExecutionException ignored) {
+      // closed, links are not reopened any more
+    }
+  }
+
+  AsyncLogger getLogger() {
+    return logger;
+  }
+
+  OutboundStats getOutboundStats() {
+    return outboundStats;
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * @param msg a message received on a link
+   * @return the peer's node id if the message is its welcome, null otherwise
+   */
+  static String welcomedBy(Object msg) {
+    String welcome = COMMAND_PREFIX + "welcome ";
+    return (msg instanceof String && ((String) msg).startsWith(welcome)) ? ((String) msg).substring(welcome.length()) : null;
+  }
+
+  /**
+   * Split at the first count - 1 spaces, the last part keeps any further spaces
+   * @return the parts, null if there are fewer
+   */
+  private static String[] split(String args, int count) {
+    String[] parts = new String[count];
+    int start = 0;
+    for (int i = 0; i < count - 1; i++) {
+      int end = args.indexOf(' ', start);
+      if (end < 0) {
+        return null;
+      }
+      parts[i] = args.substring(start, end);
+      start = end + 1;
+    }
+    parts[count - 1] = args.substring(start);
+    return parts;
+  }
+}
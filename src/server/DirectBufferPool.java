@@ -0,0 +1,98 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pool of direct buffers in power of two size classes, so frames written to many sockets are
+ * copied to native memory once without paying for a direct allocation every time. Buffers
+ * larger than the largest class are allocated on demand and left to the garbage collector, and
+ * each class retains at most its share of a byte budget. Thread-safe.
+ */
+final class DirectBufferPool
+{
+  // smallest size class, 256 bytes
+  private static final int MIN_SHIFT = 8;
+
+  //Instance variables **********************************************
+
+  private final int maxShift;
+
+  private final ArrayDeque<ByteBuffer>[] free;
+
+  private final int[] maxFree;
+
+  private final ReentrantLock lock = new ReentrantLock();
+
+  //Constructors ****************************************************
+
+  /**
+   * @param maxBufferSize largest buffer pooled, rounded up to a power of two
+   * @param maxRetainedBytes most bytes kept by the pool when idle, shared evenly by the classes
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  DirectBufferPool(int maxBufferSize, long maxRetainedBytes) {
+    if (maxBufferSize < 1 || maxRetainedBytes < 0) {
+      throw new IllegalArgumentException("Invalid direct buffer pool limits");
+    }
+    this.maxShift = Math.max(MIN_SHIFT, shiftFor(maxBufferSize));
+    int classes = maxShift - MIN_SHIFT + 1;
+    this.free = new ArrayDeque[classes];
+    this.maxFree = new int[classes];
+    for (int i = 0; i < classes; i++) {
+      free[i] = new ArrayDeque<>();
+      maxFree[i] = (int) Math.min(Integer.MAX_VALUE, maxRetainedBytes / classes >> (MIN_SHIFT + i));
+    }
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * @param size bytes needed
+   * @return a cleared direct buffer of at least that capacity, to give back through release
+   */
+  ByteBuffer acquire(int size) {
+    int shift = Math.max(MIN_SHIFT, shiftFor(size));
+    if (shift > maxShift) {
+      return ByteBuffer.allocateDirect(size);
+    }
+    ByteBuffer buffer;
+    lock.lock();
+    try {
+      buffer = free[shift - MIN_SHIFT].poll();
+    } finally {
+      lock.unlock();
+    }
+    return buffer == null ? ByteBuffer.allocateDirect(1 << shift) : buffer.clear();
+  }
+
+  /**
+   * Give a buffer back, it must not be used any more
+   * @param buffer a buffer from acquire
+   */
+  void release(ByteBuffer buffer) {
+    int capacity = buffer.capacity();
+    int shift = shiftFor(capacity);
+    if (Integer.bitCount(capacity) != 1 || shift < MIN_SHIFT || shift > maxShift) {
+      // not pooled
+      return;
+    }
+    lock.lock();
+    try {
+      ArrayDeque<ByteBuffer> queue = free[shift - MIN_SHIFT];
+      if (queue.size() < maxFree[shift - MIN_SHIFT]) {
+        queue.push(buffer);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return log2 of the smallest power of two at least size
+   */
+  private static int shiftFor(int size) {
+    return 32 - Integer.numberOfLeadingZeros(Math.max(1, size) - 1);
+  }
+}
@@ -4,18 +4,38 @@ package server;
 // license found at www.lloseng.com 
 
 
+import common.BinaryCodec;
 import common.ChatIF;
+import common.EncodedMessage;
+import common.WireFormat;
 import  ocsf.server.*;
+import utils.AsyncLogger;
+import utils.CommandDispatcher;
+import utils.LogLevel;
 import utils.SCUtilities;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.management.JMException;
 
 /**
  * Concrete class implementing AbstractServer of the OCSF framework
+ * The chat logic is written against ServerHandler/ClientConnection, so besides the OCSF
+ * engine it can also run on the other engines listed in ServerEngine.
  * @author Pranav Kural
  * Student number: 300241227
  */
-public class EchoServer extends AbstractServer
+public class EchoServer extends AbstractServer implements ServerHandler
 {
   //Class variables *************************************************
 
@@ -25,6 +45,92 @@ public class EchoServer extends AbstractServer
    */
   ChatIF serverUI;
 
+  /**
+   * The transport engine carrying client connections
+   */
+  private final ServerTransport transport;
+
+  /**
+   * Live counters and latencies of this server
+   */
+  private final ServerMetrics metrics;
+
+  /**
+   * Logger writing server events (and the server console) from a background thread
+   */
+  private final AsyncLogger logger;
+
+  /**
+   * Journal of the chat messages, null if the server keeps no history
+   */
+  private final MessageJournal journal;
+
+  /**
+   * Full-text index of the journal, null if the server keeps no history
+   */
+  private final SearchIndex searchIndex;
+
+  /**
+   * Private messages kept for users who are not connected, null if the server keeps none
+   */
+  private final OfflineMailboxes mailboxes;
+
+  /**
+   * This server's links to the other servers of its cluster, null when not clustered
+   */
+  private final ClusterNode cluster;
+
+  /**
+   * Rate limits of client messages and logins
+   */
+  private final RateLimiter rateLimiter;
+
+  /**
+   * Closes connections that sent nothing, not even heartbeats, for too long; null when they are kept
+   */
+  private final IdleReaper idleReaper;
+
+  /**
+   * How long (ms) disconnecting every client may take on #close and #quit
+   */
+  private final long shutdownTimeoutMillis;
+
+  /**
+   * Whether clients receive what is queued for them before being disconnected
+   */
+  private final boolean shutdownFlush;
+
+  /**
+   * Last messages of each room with members, sent to clients joining it, by room name
+   */
+  private final ConcurrentHashMap<String, RecentMessages> recentMessages = new ConcurrentHashMap<>();
+
+  /**
+   * Number of recent messages kept per room, 0 when none are
+   */
+  private final int backlogSize;
+
+  /**
+   * Most rooms keeping recent messages at once
+   */
+  private final int backlogRooms;
+
+  /**
+   * Whether chat lines are encoded straight into binary frames, false on engines only writing
+   * object streams (ocsf) where the binary frame would be wasted
+   */
+  private final boolean binaryChat;
+
+  /**
+   * Index of logged in clients by login id
+   */
+  private final LoginIndex loginIndex = new LoginIndex();
+
+  /**
+   * Index of room members by room name
+   */
+  private final RoomIndex roomIndex = new RoomIndex();
+
   /**
    * Specify the prefix character used to identify commands
    */
@@ -35,6 +141,26 @@ public class EchoServer extends AbstractServer
    */
   private static final String CLIENT_LOGIN_ID_KEY = "loginID";
 
+  /**
+   * Specify signature of the key value used for storing the rooms a client has joined
+   */
+  private static final String CLIENT_ROOMS_KEY = "rooms";
+
+  /**
+   * Specify signature of the key value used for storing the room a client's chat messages go to
+   */
+  private static final String CLIENT_CURRENT_ROOM_KEY = "room";
+
+  /**
+   * Specify signature of the key value used for storing a logged in client's ChatSender
+   */
+  private static final String CLIENT_SENDER_KEY = "chatSender";
+
+  /**
+   * Room every client joins when logging in
+   */
+  private static final String DEFAULT_ROOM = "lobby";
+
   /**
    * Specify signature of the command sent by client to set login id
    */
@@ -45,6 +171,67 @@ public class EchoServer extends AbstractServer
    */
   private static final String CLIENT_LOGOFF_COMMAND = "#logoff";
 
+  /**
+   * Specify signature of the command used to send a private message to one client
+   */
+  private static final String CLIENT_PRIVATE_MESSAGE_COMMAND = "#msg";
+
+  /**
+   * Specify signature of the command used to join a room (and talk in it)
+   */
+  private static final String CLIENT_JOIN_ROOM_COMMAND = "#join";
+
+  /**
+   * Specify signature of the command used to leave a room
+   */
+  private static final String CLIENT_LEAVE_ROOM_COMMAND = "#leave";
+
+  /**
+   * Specify signature of the command used to get the last messages sent
+   */
+  private static final String CLIENT_HISTORY_COMMAND = "#history";
+
+  /**
+   * Specify signature of the command used to search the history
+   */
+  private static final String CLIENT_SEARCH_COMMAND = "#search";
+
+  /**
+   * Specify signature of the heartbeat clients send, answered with CLIENT_PONG_REPLY
+   */
+  private static final String CLIENT_PING_COMMAND = "#ping";
+
+  /**
+   * Specify signature of the answer to a heartbeat
+   */
+  private static final String CLIENT_PONG_REPLY = "#pong";
+
+  /**
+   * Most messages a single #history command returns
+   */
+  private static final int MAX_HISTORY = 500;
+
+  /**
+   * Most journal records walked back looking for a #history of the client's rooms
+   */
+  private static final int HISTORY_SCAN_LIMIT = 200_000;
+
+  /**
+   * Most messages a single #search command returns, the newest ones
+   */
+  private static final int MAX_SEARCH_RESULTS = 20;
+
+  /**
+   * Most matches a single #search command looks at, from any room, to find those of the
+   * client's rooms
+   */
+  private static final int MAX_SEARCH_SCANNED = 20_480;
+
+  /**
+   * Time stamp of history lines, in the server's time zone
+   */
+  private static final DateTimeFormatter HISTORY_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+
   /**
    * Specify delimiter used to separate command from arguments provided with it
    */
@@ -60,18 +247,24 @@ public class EchoServer extends AbstractServer
     setport, // set new port (only when not listening)
     start, // start listening
     getport, // get the port server is listening on
+    queues, // show what the outbound queues dropped for slow clients
+    stats, // show message rates, latencies and connection counts
+    cluster, // show the links to the other servers of the cluster
+    limits, // show the rate limits and what clients over them had done to their messages
   }
 
-  // list of accepted commands (common to all clients)
-  // storing in a HashMap for quickly checking if a given string value is a valid command (in O(1))
-  private final static HashMap<String, Boolean> ACCEPTED_COMMANDS = new HashMap<>() {{
-    put(COMMANDS.quit.name(), true);
-    put(COMMANDS.stop.name(), true);
-    put(COMMANDS.close.name(), true);
-    put(COMMANDS.setport.name(), true);
-    put(COMMANDS.start.name(), true);
-    put(COMMANDS.getport.name(), true);
-  }};
+  // handlers of the accepted commands, looked up by command name
+  private final CommandDispatcher<COMMANDS> commandDispatcher = new CommandDispatcher<>('#', COMMANDS.class)
+          .on(COMMANDS.quit, (line, argStart, argEnd) -> quit())
+          .on(COMMANDS.stop, (line, argStart, argEnd) -> stop())
+          .on(COMMANDS.close, (line, argStart, argEnd) -> closeServer())
+          .on(COMMANDS.setport, this::changePort)
+          .on(COMMANDS.start, (line, argStart, argEnd) -> start())
+          .on(COMMANDS.getport, (line, argStart, argEnd) -> displayPort())
+          .on(COMMANDS.queues, (line, argStart, argEnd) -> displayOutboundStats())
+          .on(COMMANDS.stats, (line, argStart, argEnd) -> displayMetrics())
+          .on(COMMANDS.cluster, (line, argStart, argEnd) -> displayCluster())
+          .on(COMMANDS.limits, (line, argStart, argEnd) -> displayRateLimits());
   
   //Constructors ****************************************************
   
@@ -82,7 +275,7 @@ public class EchoServer extends AbstractServer
    */
   public EchoServer(int port) 
   {
-    super(port);
+    this(port, null);
   }
 
   /**
@@ -91,35 +284,159 @@ public class EchoServer extends AbstractServer
    * @param port The port number to connect on.
    */
   public EchoServer(int port, ChatIF serverUI)
+  {
+    this(port, serverUI, new ServerOptions());
+  }
+
+  /**
+   * Constructs an instance of the echo server.
+   *
+   * @param port The port number to connect on.
+   * @param serverUI The interface used to display messages.
+   * @param options Startup options, including the transport engine to run on.
+   */
+  public EchoServer(int port, ChatIF serverUI, ServerOptions options)
   {
     super(port);
     this.serverUI = serverUI;
+    this.logger = createLogger(options);
+    switch (options.getEngine()) {
+      case nio:
+        transport = new NioServerTransport(this, port, options.getEventLoops(), options.getOutboundLimits());
+        break;
+      case virtual:
+        transport = BlockingServerTransport.withVirtualThreads(this, port, options.getOutboundLimits());
+        break;
+      default:
+        transport = new OcsfServerTransport(this);
+    }
+    if (transport instanceof AbstractServerTransport) {
+      // OCSF speaks object streams only, which are never compressed
+      ((AbstractServerTransport) transport).setCompressionThreshold(options.getCompressionThreshold());
+    }
+
+    metrics = new ServerMetrics(transport::getNumberOfClients);
+    if (options.getStatsFile() != null) {
+      metrics.startDumping(options.getStatsFile(), options.getStatsIntervalSeconds(), logger);
+    }
+    if (options.isStatsJmx()) {
+      try {
+        metrics.registerMBean(port);
+      } catch (JMException e) {
+        logger.log(LogLevel.warn, "Unable to expose server metrics through JMX. Error: {}", e.getMessage());
+      }
+    }
+    // nio event loops serve many clients each, holding one back would hold them all
+    rateLimiter = new RateLimiter(options.getRateLimits(), options.getEngine() != ServerEngine.nio, logger);
+    shutdownTimeoutMillis = options.getShutdownTimeoutMillis();
+    shutdownFlush = options.isShutdownFlush();
+    idleReaper = options.getIdleTimeoutSeconds() > 0
+            ? new IdleReaper(options.getIdleTimeoutSeconds(), options.getIdleTickMillis(), logger) : null;
+    journal = openJournal(options);
+    searchIndex = indexJournal(journal);
+    mailboxes = openMailboxes(options);
+    backlogSize = options.getBacklogSize();
+    backlogRooms = options.getBacklogRooms();
+    binaryChat = options.getEngine() != ServerEngine.ocsf;
+    cluster = openCluster(options, port);
   }
   
   //Instance methods ************************************************
-  
+
   /**
-   * This method handles any messages received from the client.
+   * @return the transport engine carrying client connections
+   */
+  public ServerTransport getTransport() {
+    return transport;
+  }
+
+  /**
+   * @return the logger of this server
+   */
+  public AsyncLogger getLogger() {
+    return logger;
+  }
+
+  /**
+   * @return live counters and latencies of this server
+   */
+  public ServerMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * This method overrides the one in the superclass.  Called by the
+   * OCSF engine for each message received from a client.
    *
    * @param msg The message received from the client.
    * @param client The connection from which the message originated.
    */
   public void handleMessageFromClient(Object msg, ConnectionToClient client)
+  {
+    handleMessageFromClient(msg, client == null ? null : OcsfClientConnection.of(client));
+  }
+
+  /**
+   * This method handles any messages received from the client.
+   *
+   * @param msg The message received from the client.
+   * @param client The connection from which the message originated.
+   */
+  @Override
+  public void handleMessageFromClient(Object msg, ClientConnection client)
+  {
+    long start = System.nanoTime();
+    if (idleReaper != null && client != null) {
+      idleReaper.touch(client);
+    }
+    try {
+      processMessageFromClient(msg, client);
+    } finally {
+      metrics.messageHandled(msg instanceof String && ((String) msg).startsWith(COMMAND_PREFIX), System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Handle one message received from a client: a command, or a chat line for the client's room.
+   *
+   * @param msg The message received from the client.
+   * @param client The connection from which the message originated.
+   */
+  private void processMessageFromClient(Object msg, ClientConnection client)
   {
     // guard-clause
     if (client == null) {
-      System.out.println("Invalid call to handle message from client without providing a client instance");
+      logger.log(LogLevel.warn, "Invalid call to handle message from client without providing a client instance");
       return;
     } else if (msg == null || msg.toString().isEmpty()) {
-      System.out.println("Invalid message received from client: " + client);
+      logger.log(LogLevel.warn, "Invalid message received from client: {}", client);
       return;
     }
 
     String msgStr = (String) msg;
 
+    // servers of the cluster relay for all their clients, they are not limited
+    if (!ClusterNode.isPeer(client) && !rateLimiter.admit(msgStr, client)) {
+      return;
+    }
+
     if (msgStr.startsWith(COMMAND_PREFIX)) {
+      // if msg was relayed by another server of the cluster
+      if (cluster != null && cluster.handle(msgStr, client)) {
+        return;
+      }
+
+      // if msg is a heartbeat, receiving it was all that mattered
+      else if (msgStr.equals(CLIENT_PING_COMMAND)) {
+        sendMessageToClient(CLIENT_PONG_REPLY, client);
+      }
+
       // if msg received from client is "#login" command
-      if (msgStr.startsWith(CLIENT_SET_LOGIN_ID_COMMAND)) {
+      else if (msgStr.startsWith(CLIENT_SET_LOGIN_ID_COMMAND)) {
+        if (!rateLimiter.admitLogin()) {
+          refuseLogin(client);
+          return;
+        }
         try {
           // display a message
           serverUI.display("Message received: #login <loginID> from null.");
@@ -129,6 +446,11 @@ public class EchoServer extends AbstractServer
           serverUI.display(client.getInfo(CLIENT_LOGIN_ID_KEY) + " has logged on.");
           // let client know connecting was successful
           sendMessageToClient(client.getInfo(CLIENT_LOGIN_ID_KEY) + " has logged on.", client);
+          // everyone starts out talking in the default room
+          if (client.getInfo(CLIENT_CURRENT_ROOM_KEY) == null) {
+            joinRoom(DEFAULT_ROOM, client);
+          }
+          deliverMailbox(client);
         } catch (Exception e) {
           sendMessageToClient("Failed to set login id. Error: " + e.getMessage(), client);
         }
@@ -144,6 +466,37 @@ public class EchoServer extends AbstractServer
         }
       }
 
+      // if msg received from client is "#msg <loginId> <text>" command
+      else if (msgStr.startsWith(CLIENT_PRIVATE_MESSAGE_COMMAND)) {
+        sendPrivateMessage(msgStr, client);
+      }
+
+      // if msg received from client is "#join <room>" command
+      else if (msgStr.startsWith(CLIENT_JOIN_ROOM_COMMAND)) {
+        String room = roomArgument(msgStr, CLIENT_JOIN_ROOM_COMMAND, client);
+        if (room != null) {
+          joinRoom(room, client);
+        }
+      }
+
+      // if msg received from client is "#leave <room>" command
+      else if (msgStr.startsWith(CLIENT_LEAVE_ROOM_COMMAND)) {
+        String room = roomArgument(msgStr, CLIENT_LEAVE_ROOM_COMMAND, client);
+        if (room != null) {
+          leaveRoom(room, client);
+        }
+      }
+
+      // if msg received from client is "#history <n>" command
+      else if (msgStr.startsWith(CLIENT_HISTORY_COMMAND)) {
+        sendHistory(msgStr, client);
+      }
+
+      // if msg received from client is "#search <terms>" command
+      else if (msgStr.startsWith(CLIENT_SEARCH_COMMAND)) {
+        sendSearchResults(msgStr, client);
+      }
+
       else {
         sendMessageToClient("Invalid command: " + msgStr, client);
       }
@@ -154,17 +507,18 @@ public class EchoServer extends AbstractServer
     else {
       // make sure client has set the login id before sending any messages
       // this also ensures, client sent login command as first thing after establishing connection
-      if (client.getInfo(CLIENT_LOGIN_ID_KEY) != null) {
+      ChatSender chatSender = (ChatSender) client.getInfo(CLIENT_SENDER_KEY);
+      if (chatSender != null) {
         // send message to the server
-        System.out.println("Message received: " + msg + " from " + client.getInfo(CLIENT_LOGIN_ID_KEY));
-        this.sendToAllClients(client.getInfo(CLIENT_LOGIN_ID_KEY) + ": " + msg);
+        logger.log(LogLevel.debug, "Message received: {} from {}", msg, chatSender.getLoginId());
+        sendToRoom(client, chatSender, msgStr);
       } else {
         sendMessageToClient("Invalid request received. " + CLIENT_LOGIN_ID_KEY + " must be the first command after connection has established. Terminating connection.", client);
         try {
           // close client connection
           client.close();
         } catch (IOException e) {
-          System.out.println("Unable to close client connection");
+          logger.log(LogLevel.warn, "Unable to close client connection");
         }
       }
 
@@ -175,18 +529,30 @@ public class EchoServer extends AbstractServer
    * This method overrides the one in the superclass.  Called
    * when the server starts listening for connections.
    */
-  protected void serverStarted()
+  @Override
+  public void serverStarted()
   {
-    System.out.println("Server listening for connections on port " + getPort());
+    logger.log(LogLevel.info, "Server listening for connections on port {}", transport.getPort());
   }
   
   /**
    * This method overrides the one in the superclass.  Called
    * when the server stops listening for connections.
    */
-  protected void serverStopped()
+  @Override
+  public void serverStopped()
   {
-    System.out.println("Server has stopped listening for connections.");
+    logger.log(LogLevel.info, "Server has stopped listening for connections.");
+  }
+
+  /**
+   * This method overrides the one in the superclass.  Called
+   * when the server is closed.
+   */
+  @Override
+  public void serverClosed()
+  {
+    // nothing to report, serverStopped() already did
   }
 
   /**
@@ -195,6 +561,19 @@ public class EchoServer extends AbstractServer
    */
   @Override
   protected void clientConnected(ConnectionToClient client) {
+    clientConnected(OcsfClientConnection.of(client));
+  }
+
+  /**
+   * Hook method called each time a new client connection is accepted
+   * @param client the connection connected to the client
+   */
+  @Override
+  public void clientConnected(ClientConnection client) {
+    if (idleReaper != null) {
+      idleReaper.track(client);
+    }
+    metrics.connectionOpened();
     serverUI.display("A new client has connected to the server.");
   }
 
@@ -204,6 +583,21 @@ public class EchoServer extends AbstractServer
    */
   @Override
   synchronized protected void clientDisconnected(ConnectionToClient client) {
+    clientDisconnected(OcsfClientConnection.of(client));
+  }
+
+  /**
+   * Hook method called each time a client disconnects.
+   * @param client the connection with the client.
+   */
+  @Override
+  public void clientDisconnected(ClientConnection client) {
+    if (idleReaper != null) {
+      idleReaper.untrack(client);
+    }
+    logOff(client);
+    leaveAllRooms(client);
+    metrics.connectionClosed();
     serverUI.display("Connection disconnected with a client");
   }
 
@@ -214,9 +608,67 @@ public class EchoServer extends AbstractServer
    */
   @Override
   protected synchronized void clientException(ConnectionToClient client, Throwable exception) {
+    clientException(OcsfClientConnection.of(client), exception);
+  }
+
+  /**
+   * Hook method called each time a client connection raises an exception
+   * @param client the client that raised the exception.
+   * @param exception the exception raised.
+   */
+  @Override
+  public void clientException(ClientConnection client, Throwable exception) {
+    if (idleReaper != null) {
+      idleReaper.untrack(client);
+    }
+    logOff(client);
+    leaveAllRooms(client);
+    metrics.connectionError();
     serverUI.display("A client has terminated connection");
   }
 
+  /**
+   * Hook method called when the server stops accepting connections because of an error
+   * @param exception the exception raised.
+   */
+  @Override
+  public void listeningException(Throwable exception) {
+    serverUI.display("Server stopped listening for connections. Error: " + exception.getMessage());
+  }
+
+  /**
+   * Hook method called when a thread serving connections hits an error it can not pin on a
+   * single connection, or stops because of one
+   * @param thread the name of the thread.
+   * @param exception the exception raised.
+   */
+  @Override
+  public void engineException(String thread, Throwable exception) {
+    logger.log(LogLevel.error, "Error on engine thread {}: {}", thread, exception);
+  }
+
+  /**
+   * Sends a message to every connected client, on whichever engine the server runs.
+   * @param msg the message to be sent.
+   */
+  @Override
+  public void sendToAllClients(Object msg) {
+    long start = System.nanoTime();
+    transport.sendToAllClients(msg);
+    metrics.fanOut(transport.getNumberOfClients(), System.nanoTime() - start);
+  }
+
+  /**
+   * Sends a message to the given clients, such as the members of a room.
+   * @param clients the recipients.
+   * @param msg the message to be sent.
+   */
+  private void sendToClients(Collection<ClientConnection> clients, Object msg) {
+    long start = System.nanoTime();
+    transport.sendToClients(clients, msg);
+    metrics.fanOut(clients.size(), System.nanoTime() - start);
+  }
+
   /**
    * Method to handle input from user from the Server UI console
    * @param userInput the user's input on server UI
@@ -234,12 +686,15 @@ public class EchoServer extends AbstractServer
       if (userInput.startsWith(COMMAND_PREFIX)) {
         handleCommandFromServerUI(userInput);
       } else {
-        if (getNumberOfClients() == 0) {
+        if (transport.getNumberOfClients() == 0) {
           this.serverUI.display("No clients connected");
         } else {
           // print the userInput to all connected clients
           this.sendToAllClients("SERVER MSG> " + userInput);
         }
+        if (cluster != null) {
+          cluster.relayBroadcast("SERVER MSG> " + userInput);
+        }
 
         // print userInput on serverUI as well
         this.serverUI.display(userInput);
@@ -263,112 +718,182 @@ public class EchoServer extends AbstractServer
       throw new IOException("No command provided!");
     }
 
-    // get command and command args separately
-    String[] commandAndArgs = SCUtilities.extractCommandAndArgs(serverCommand, COMMAND_ARGUMENT_SEPARATOR);
-    // guard-clause, check if processed input is not null
-    if (!SCUtilities.isValidArray(commandAndArgs)) {
-      throw new NullPointerException("Invalid value provided for command & arguments (msgStr)");
+    if (!commandDispatcher.dispatch(serverCommand)) {
+      this.serverUI.display("not a valid command: " + COMMAND_PREFIX + CommandDispatcher.commandName(serverCommand));
     }
-    // extract command and args separately
-    String command = commandAndArgs[0].substring(1); // get command name without the COMMAND_PREFIX
-    String commandArgs = commandAndArgs[1]; // will be null if no args supplied
+  }
 
-    // check if the command is valid (not empty, or unaccepted)
-    if (!SCUtilities.isValidCommand(command, ACCEPTED_COMMANDS)) {
-      this.serverUI.display("not a valid command: " + COMMAND_PREFIX + command);
-      return;
+  /**
+   * Stop listening and shut down the server
+   */
+  private void quit() throws IOException {
+    if (transport.isListening()) {
+      transport.stopListening();
+    }
+    disconnectAllClients();
+    if (cluster != null) {
+      cluster.close();
+    }
+    if (idleReaper != null) {
+      idleReaper.close();
     }
+    transport.close();
+    if (journal != null) {
+      journal.force();
+    }
+    if (mailboxes != null) {
+      try {
+        mailboxes.close();
+      } catch (IOException e) {
+        logger.log(LogLevel.warn, "Offline messages kept in memory are lost. Error: {}", e.getMessage());
+      }
+    }
+    // close ServerConsole UI
+    System.exit(0);
+  }
 
-    // stop listening and shut down the server
-    if (command.equals(COMMANDS.quit.name())) {
-      close();
-      // close ServerConsole UI
-      System.exit(0);
+  /**
+   * Stop listening for connections
+   */
+  private void stop() {
+    if (transport.isListening()) {
+      transport.stopListening();
+    } else {
+      // if already not listening
+      this.serverUI.display("Invalid command! Server is already not listening for connections!");
     }
+  }
 
-    // stop listening for connections
-    else if (command.equals(COMMANDS.stop.name())) {
-      if (isListening()) {
-        stopListening();
-      } else {
-        // if already not listening
-        this.serverUI.display("Invalid command! Server is already not listening for connections!");
-      }
+  /**
+   * Disconnect all clients, then stop server gracefully
+   */
+  private void closeServer() throws IOException {
+    // make sure client is currently active
+    if (transport.isListening()) {
+      // first stop listening for new connections, so no new clients get added while we disconnect existing ones
+      transport.stopListening();
+      // disconnect all connected clients
+      disconnectAllClients();
+      // finally, close connection
+      transport.close();
+    } else {
+      // if already not listening
+      this.serverUI.display("Invalid command! Server is already not listening for connections!");
     }
+  }
 
-    // disconnect all clients, then stop server gracefully
-    else if (command.equals(COMMANDS.close.name())) {
-      // make sure client is currently active
-      if (isListening()) {
-        // first stop listening for new connections, so no new clients get added while we disconnect existing ones
-        stopListening();
-        // disconnect all connected clients
-        disconnectAllClients();
-        // finally, close connection
-        close();
-      } else {
-        // if already not listening
-        this.serverUI.display("Invalid command! Server is already not listening for connections!");
+  /**
+   * Set a new port, parsed straight from the command line
+   */
+  private void changePort(String line, int argStart, int argEnd) {
+    // make sure client is not already connected
+    if (transport.isListening()) {
+      this.serverUI.display("Can not change port while server is listening for connections. Please close the server first (" + COMMAND_PREFIX + "close), then try again.");
+    }
+    // validate command arguments
+    if (argStart == argEnd) {
+      this.serverUI.display("Invalid command argument, no port number provided.");
+    } else {
+      // validate input
+      try {
+        // set the new port if parsing was successful
+        transport.setPort(Integer.parseInt(line, argStart, argEnd, 10));
+      } catch (NumberFormatException e) {
+        this.serverUI.display("Invalid value provided for port number: " + line.substring(argStart, argEnd));
       }
     }
+  }
 
-    // setting a new port
-    else if (command.equals(COMMANDS.setport.name())) {
-      // make sure client is not already connected
-      if (isListening()) {
-        this.serverUI.display("Can not change port while server is listening for connections. Please close the server first (" + COMMAND_PREFIX + "close), then try again.");
-      }
-      // validate command arguments
-      if (!SCUtilities.isValidString(commandArgs)) {
-        this.serverUI.display("Invalid command argument, no port number provided.");
-      } else {
-        int port;
-        // validate input
-        try {
-          port = Integer.parseInt(commandArgs);
-          // set the new port if parsing was successful
-          setPort(port);
-        } catch (NumberFormatException e) {
-          this.serverUI.display("Invalid value provided for port number: " + commandArgs);
-        }
-      }
+  /**
+   * Start server to listen for connections
+   */
+  private void start() throws IOException {
+    // make sure server is not already running
+    if (transport.isListening()) {
+      this.serverUI.display("Invalid command! Server is already listening on port " + transport.getPort());
+    } else {
+      // start listening for connections
+      transport.listen();
     }
+  }
 
-    // start server to listen for connections
-    else if (command.equals(COMMANDS.start.name())) {
-      // make sure server is not already running
-      if (isListening()) {
-        this.serverUI.display("Invalid command! Server is already listening on port " + getPort());
-      } else {
-        // start listening for connections
-        listen();
-      }
+  /**
+   * Display the port the server listens on
+   */
+  private void displayPort() {
+    this.serverUI.display("Current server port: " + transport.getPort());
+  }
+
+  /**
+   * Show message rates, latencies and connection counts
+   */
+  private void displayMetrics() {
+    List<String> lines = new ArrayList<>(metrics.report());
+    if (idleReaper != null) {
+      lines.add("idle connections closed: " + idleReaper.getReaped());
+    }
+    if (searchIndex != null) {
+      lines.add("search index: " + searchIndex);
+    }
+    if (mailboxes != null) {
+      lines.add("offline messages: " + mailboxes);
     }
+    this.serverUI.displayAll(lines);
+  }
 
-    // get server's port
-    else if (command.equals(COMMANDS.getport.name())) {
-      // display port
-      this.serverUI.display("Current server port: " + getPort());
+  /**
+   * Show the links to the other servers of the cluster
+   */
+  private void displayCluster() {
+    if (cluster == null) {
+      this.serverUI.display("This server is not part of a cluster.");
+      return;
     }
+    this.serverUI.displayAll(cluster.report());
+  }
 
-    // not one of the yet implemented accepted commands
-    else {
-      this.serverUI.display("Command not available yet");
+  /**
+   * Show the rate limits and what was done to the messages of clients over them
+   */
+  private void displayRateLimits() {
+    this.serverUI.displayAll(List.of("Rate limits: " + rateLimiter.getLimits(), "Over limits: " + rateLimiter));
+  }
+
+  /**
+   * Show what the outbound queues dropped for slow clients
+   */
+  private void displayOutboundStats() {
+    OutboundStats stats = transport.getOutboundStats();
+    if (stats == null) {
+      this.serverUI.display("Outbound queues are not used by this server engine.");
+    } else {
+      this.serverUI.display("Outbound queues: " + stats);
     }
   }
 
-  private void disconnectAllClients() throws IOException {
-    Thread[] clientThreads = getClientConnections();
-    ConnectionToClient client;
-    for (Thread clientThread : clientThreads) {
-      client = (ConnectionToClient) clientThread;
-      client.close();
+  /**
+   * Tell every client the server is shutting down, then close all connections in parallel,
+   * giving up on the ones still closing once the shutdown timeout is over
+   */
+  private void disconnectAllClients() {
+    List<ClientConnection> clients = transport.getClientConnections();
+    if (clients.isEmpty()) {
+      return;
+    }
+    // one broadcast, encoded once for everybody
+    sendToClients(clients, "SERVER MSG> Server is shutting down, disconnecting.");
+    ClientDrain.Report report = ClientDrain.closeAll(clients, shutdownFlush, shutdownTimeoutMillis);
+
+    List<String> lines = new ArrayList<>(clients.size() + 1);
+    for (ClientConnection client : clients) {
       // print a message - Testcase 2008
-      serverUI.display(client.getInfo(CLIENT_LOGIN_ID_KEY) + " has disconnected.");
+      lines.add(client.getInfo(CLIENT_LOGIN_ID_KEY) + " has disconnected.");
     }
+    lines.add("Disconnected " + clients.size() + " clients: " + report + ".");
+    serverUI.displayAll(lines);
   }
 
-  private void setClientLoginId(String msgStr, ConnectionToClient client) {
+  private void setClientLoginId(String msgStr, ClientConnection client) {
     // guard-clause
     if (msgStr == null || msgStr.isEmpty() || client == null) {
       throw new NullPointerException("Method setClientLoginId called with invalid arguments");
@@ -390,23 +915,590 @@ public class EchoServer extends AbstractServer
       throw new IllegalArgumentException("No value provided for login id");
     }
 
+    // claim the login id, atomically rejecting one already in use by another client
+    String loginId = loginInput[1];
+    if (!loginIndex.register(loginId, client)) {
+      throw new IllegalArgumentException("Login id " + loginId + " is already in use");
+    }
+    Object previousLoginId = client.getInfo(CLIENT_LOGIN_ID_KEY);
+    if (cluster != null && !loginId.equals(previousLoginId)) {
+      // ids are unique across the cluster, as far as this server heard from the others
+      if (cluster.isLoggedInElsewhere(loginId)) {
+        loginIndex.unregister(loginId, client);
+        throw new IllegalArgumentException("Login id " + loginId + " is already in use");
+      }
+      cluster.loggedIn(loginId);
+    }
+    // release the previous login id if the client logs in again under a new one
+    if (previousLoginId != null && !previousLoginId.equals(loginId)) {
+      if (loginIndex.unregister((String) previousLoginId, client) && cluster != null) {
+        cluster.loggedOut((String) previousLoginId);
+      }
+    }
+
     // set client's login id
-    client.setInfo(CLIENT_LOGIN_ID_KEY, loginInput[1]);
+    client.setInfo(CLIENT_LOGIN_ID_KEY, loginId);
+    if (!loginId.equals(previousLoginId)) {
+      client.setInfo(CLIENT_SENDER_KEY, new ChatSender(loginId, DEFAULT_ROOM));
+    }
+  }
+
+  /**
+   * Turn a login away because too many clients are logging in, closing its connection
+   * @param client the client logging in
+   */
+  private void refuseLogin(ClientConnection client) {
+    logger.log(LogLevel.info, "Login refused, more than {} logins per second", rateLimiter.getLimits().getLoginsPerSecond());
+    sendMessageToClient("Server busy: too many clients are logging in, please try again later.", client);
+    try {
+      client.close();
+    } catch (IOException e) {
+      logger.log(LogLevel.warn, "Unable to close client connection");
+    }
+  }
+
+  /**
+   * Release the login id of a disconnecting client, and forget the users of a server of the
+   * cluster if the connection was its link
+   * @param client the disconnecting client
+   */
+  private void logOff(ClientConnection client) {
+    String loginId = (String) client.getInfo(CLIENT_LOGIN_ID_KEY);
+    if (loginIndex.unregister(loginId, client) && cluster != null) {
+      cluster.loggedOut(loginId);
+    }
+    if (cluster != null) {
+      cluster.clientDisconnected(client);
+    }
+  }
+
+  /**
+   * Handle "#msg <loginId> <text>": deliver the text to the one client logged in with that id
+   * @param msgStr the command received from the sender
+   * @param sender the client sending the private message
+   */
+  private void sendPrivateMessage(String msgStr, ClientConnection sender) {
+    Object senderLoginId = sender.getInfo(CLIENT_LOGIN_ID_KEY);
+    if (senderLoginId == null) {
+      sendMessageToClient("You must log in before sending private messages.", sender);
+      return;
+    }
+
+    // split "<loginId> <text>" following the command
+    String args = msgStr.substring(CLIENT_PRIVATE_MESSAGE_COMMAND.length()).trim();
+    int separator = args.indexOf(' ');
+    if (separator <= 0) {
+      sendMessageToClient("Usage: " + CLIENT_PRIVATE_MESSAGE_COMMAND + " <loginId> <message>", sender);
+      return;
+    }
+    String targetLoginId = args.substring(0, separator);
+    String text = args.substring(separator + 1).trim();
+
+    ClientConnection target = loginIndex.lookup(targetLoginId);
+    if (target == null) {
+      if (cluster != null && cluster.relayPrivateMessage((String) senderLoginId, targetLoginId, text)) {
+        sendMessageToClient("to " + targetLoginId + " (private): " + text, sender);
+      } else {
+        keepForLater((String) senderLoginId, targetLoginId, text, sender);
+      }
+      return;
+    }
+    sendMessageToClient(senderLoginId + " (private): " + text, target);
+    if (target != sender) {
+      sendMessageToClient("to " + targetLoginId + " (private): " + text, sender);
+    }
+  }
+
+  /**
+   * Keep a private message in the mailbox of a user who is not connected
+   * @param senderLoginId who sent it
+   * @param targetLoginId who it is for
+   * @param text the message text
+   * @param sender the client sending it, told whether the message was kept
+   */
+  private void keepForLater(String senderLoginId, String targetLoginId, String text, ClientConnection sender) {
+    // nobody can ever log in with an invalid id and collect its messages
+    if (mailboxes == null || !LoginIndex.isValid(targetLoginId)) {
+      sendMessageToClient(targetLoginId + " is not connected.", sender);
+      return;
+    }
+    boolean kept;
+    try {
+      kept = mailboxes.deposit(targetLoginId, senderLoginId, text);
+    } catch (IOException | IllegalArgumentException e) {
+      logger.log(LogLevel.warn, "Message for {} not kept in its mailbox. Error: {}", targetLoginId, e.getMessage());
+      kept = false;
+    }
+    if (!kept) {
+      sendMessageToClient(targetLoginId + " is not connected and can not receive more messages for now.", sender);
+      return;
+    }
+    sendMessageToClient("to " + targetLoginId + " (offline): " + text, sender);
+    // the target may have logged in while the message was being kept
+    ClientConnection target = loginIndex.lookup(targetLoginId);
+    if (target != null) {
+      deliverMailbox(target);
+    }
+  }
+
+  /**
+   * Send a client logging in the private messages kept for it, all in one write
+   * @param client the client, logged in
+   */
+  private void deliverMailbox(ClientConnection client) {
+    if (mailboxes == null) {
+      return;
+    }
+    String loginId = (String) client.getInfo(CLIENT_LOGIN_ID_KEY);
+    List<OfflineMailboxes.Message> messages;
+    try {
+      messages = mailboxes.collect(loginId);
+    } catch (IOException e) {
+      logger.log(LogLevel.warn, "Unable to read the mailbox of {}. Error: {}", loginId, e.getMessage());
+      return;
+    }
+    if (messages.isEmpty()) {
+      return;
+    }
+    List<EncodedMessage> batch = new ArrayList<>(messages.size() + 1);
+    batch.add(new EncodedMessage("Messages received while you were away (" + messages.size() + "):"));
+    for (OfflineMailboxes.Message message : messages) {
+      batch.add(new EncodedMessage("[" + HISTORY_TIME_FORMAT.format(Instant.ofEpochMilli(message.getTimeMillis())) + "] "
+              + message.getFromLoginId() + " (private): " + message.getText()));
+    }
+    try {
+      client.sendAllToClient(batch);
+    } catch (IOException e) {
+      logger.log(LogLevel.warn, "Mailbox of {} lost, the client could not receive it. Error: {}", loginId, e.getMessage());
+    }
+  }
+
+  /**
+   * Send a chat message to the members of the sender's current room.
+   * Messages in the default room keep the plain "loginId: text" format.
+   * The line is encoded once, from the sender's pre-encoded prefix, for all the members.
+   * @param sender the client sending the message
+   * @param chatSender the sender's login
+   * @param text the message text
+   */
+  private void sendToRoom(ClientConnection sender, ChatSender chatSender, String text) {
+    String room = (String) sender.getInfo(CLIENT_CURRENT_ROOM_KEY);
+    if (room == null) {
+      sendMessageToClient("You are not in any room. Use " + CLIENT_JOIN_ROOM_COMMAND + " <room>.", sender);
+      return;
+    }
+    String loginId = chatSender.getLoginId();
+    EncodedMessage line = binaryChat
+            ? EncodedMessage.ofBinaryFrame(BinaryCodec.encodeText(chatSender.linePrefix(room), text))
+            : new EncodedMessage(roomLine(room, loginId, text));
+    deliverToRoom(room, loginId, text, line);
+    if (cluster != null) {
+      cluster.relayRoomMessage(room, loginId, text);
+    }
+  }
+
+  /**
+   * Record a chat message and send it to the members of its room connected to this server
+   * @param room the room the message was sent to
+   * @param loginId who sent it
+   * @param text the message text
+   */
+  private void deliverToRoom(String room, String loginId, String text) {
+    deliverToRoom(room, loginId, text, new EncodedMessage(roomLine(room, loginId, text)));
+  }
+
+  /**
+   * @param line the chat line as room members see it
+   */
+  private void deliverToRoom(String room, String loginId, String text, EncodedMessage line) {
+    if (journal != null) {
+      try {
+        long sequence = journal.append(loginId, room, text);
+        searchIndex.add(sequence, text, journal.getFirstSequence());
+      } catch (IOException | IllegalArgumentException e) {
+        logger.log(LogLevel.warn, "Message from {} not added to the history. Error: {}", loginId, e.getMessage());
+      }
+    }
+    if (backlogSize > 0) {
+      // a plain lookup first, the capturing lambda would be allocated for every line
+      RecentMessages recent = recentMessages.get(room);
+      if (recent == null) {
+        recent = keepRecentMessages(room);
+      }
+      if (recent != null) {
+        recent.add(line);
+      }
+    }
+    sendToClients(roomIndex.members(room), line);
+  }
+
+  /**
+   * Start keeping the recent messages of a room, unless nobody is in it or too many rooms
+   * already keep theirs
+   * @param room the room name
+   * @return the room's recent messages, null if not kept
+   */
+  private RecentMessages keepRecentMessages(String room) {
+    if (roomIndex.members(room).isEmpty() || recentMessages.size() >= backlogRooms) {
+      return null;
+    }
+    RecentMessages recent = recentMessages.computeIfAbsent(room, name -> new RecentMessages(backlogSize));
+    // the last member may have left meanwhile, after dropping the room's messages
+    forgetIfEmpty(room);
+    return recent;
+  }
+
+  /**
+   * Drop the recent messages of a room once its last member left
+   * @param room the room name
+   */
+  private void forgetIfEmpty(String room) {
+    if (roomIndex.members(room).isEmpty()) {
+      recentMessages.remove(room);
+    }
+  }
+
+  /**
+   * Send the last messages of a room to a client joining it, all in one write
+   * @param room the room name
+   * @param client the joining client
+   */
+  private void sendRecentMessages(String room, ClientConnection client) {
+    RecentMessages recent = recentMessages.get(room);
+    if (recent == null) {
+      return;
+    }
+    List<EncodedMessage> batch = new ArrayList<>(recent.getCapacity() + 1);
+    batch.add(new EncodedMessage("Recent messages in room " + room + ":"));
+    if (recent.snapshot(backlogSize, batch) == 0) {
+      return;
+    }
+    try {
+      client.sendAllToClient(batch);
+    } catch (IOException e) {
+      logger.log(LogLevel.warn, "Failed to send recent messages to the client. Error: {}", e.getMessage());
+    }
+  }
+
+  /**
+   * @return a chat line the way room members see it, messages in the default room have no prefix
+   */
+  private static String roomLine(String room, String loginId, String text) {
+    String prefix = DEFAULT_ROOM.equals(room) ? "" : "[" + room + "] ";
+    return prefix + loginId + ": " + text;
+  }
+
+  /**
+   * Handle "#history <n>": send the last n chat messages of the rooms the requesting client is
+   * in, oldest first. Messages are read one by one from the journal, never a whole segment at once.
+   * @param msgStr the command received from the client
+   * @param client the client asking for the history
+   */
+  private void sendHistory(String msgStr, ClientConnection client) {
+    if (client.getInfo(CLIENT_LOGIN_ID_KEY) == null) {
+      sendMessageToClient("You must log in before asking for the history.", client);
+      return;
+    }
+    if (journal == null) {
+      sendMessageToClient("History is not enabled on this server.", client);
+      return;
+    }
+    int count;
+    try {
+      count = Integer.parseInt(msgStr.substring(CLIENT_HISTORY_COMMAND.length()).trim());
+    } catch (NumberFormatException e) {
+      count = 0;
+    }
+    if (count < 1) {
+      sendMessageToClient("Usage: " + CLIENT_HISTORY_COMMAND + " <number of messages>", client);
+      return;
+    }
+
+    Set<String> rooms = joinedRooms(client);
+    int sent = journal.readLast(Math.min(count, MAX_HISTORY), rooms::contains, HISTORY_SCAN_LIMIT, entry -> sendMessageToClient(
+            "[" + HISTORY_TIME_FORMAT.format(Instant.ofEpochMilli(entry.getTimeMillis())) + "] "
+                    + roomLine(entry.getRoom(), entry.getLoginId(), entry.getText()), client));
+    sendMessageToClient("End of history (" + sent + " messages).", client);
+  }
+
+  /**
+   * Handle "#search <terms>": send the newest chat messages holding all the terms, newest first,
+   * from the rooms the requesting client is in. Only the messages found are read from the journal.
+   * @param msgStr the command received from the client
+   * @param client the client searching the history
+   */
+  private void sendSearchResults(String msgStr, ClientConnection client) {
+    if (client.getInfo(CLIENT_LOGIN_ID_KEY) == null) {
+      sendMessageToClient("You must log in before searching the history.", client);
+      return;
+    }
+    if (searchIndex == null) {
+      sendMessageToClient("Search is not enabled on this server.", client);
+      return;
+    }
+    String query = msgStr.substring(CLIENT_SEARCH_COMMAND.length()).trim();
+    if (query.isEmpty()) {
+      sendMessageToClient("Usage: " + CLIENT_SEARCH_COMMAND + " <terms>", client);
+      return;
+    }
+
+    Set<String> rooms = joinedRooms(client);
+    List<EncodedMessage> batch = new ArrayList<>(MAX_SEARCH_RESULTS + 2);
+    batch.add(new EncodedMessage("Messages matching \"" + query + "\", newest first:"));
+    // matches from rooms the client is not in are skipped, so ask for more until enough are left
+    int limit = MAX_SEARCH_RESULTS;
+    long[] sequences;
+    do {
+      limit *= 4;
+      sequences = searchIndex.search(query, limit);
+      batch.subList(1, batch.size()).clear();
+      for (long sequence : sequences) {
+        MessageJournal.Entry entry = journal.read(sequence);
+        // null if its segment was deleted since
+        if (entry != null && rooms.contains(entry.getRoom())) {
+          batch.add(new EncodedMessage("[" + HISTORY_TIME_FORMAT.format(Instant.ofEpochMilli(entry.getTimeMillis())) + "] "
+                  + roomLine(entry.getRoom(), entry.getLoginId(), entry.getText())));
+          if (batch.size() > MAX_SEARCH_RESULTS) {
+            break;
+          }
+        }
+      }
+    } while (batch.size() <= MAX_SEARCH_RESULTS && sequences.length == limit && limit < MAX_SEARCH_SCANNED);
+    batch.add(new EncodedMessage("End of search results (" + (batch.size() - 1) + " messages)."));
+    try {
+      client.sendAllToClient(batch);
+    } catch (IOException e) {
+      logger.log(LogLevel.warn, "Failed to send search results to the client. Error: {}", e.getMessage());
+    }
+  }
+
+  /**
+   * Validate the "<room>" argument of a room command
+   * @param msgStr the command received from the client
+   * @param command the command the argument belongs to
+   * @param client the client sending the command
+   * @return the room name, or null after telling the client what is wrong
+   */
+  private String roomArgument(String msgStr, String command, ClientConnection client) {
+    if (client.getInfo(CLIENT_LOGIN_ID_KEY) == null) {
+      sendMessageToClient("You must log in before joining or leaving rooms.", client);
+      return null;
+    }
+    String room = msgStr.substring(command.length()).trim();
+    if (room.isEmpty() || msgStr.charAt(command.length()) != ' ' || room.indexOf(' ') >= 0) {
+      sendMessageToClient("Usage: " + command + " <room>", client);
+      return null;
+    }
+    return room;
+  }
+
+  /**
+   * Join a room and make it the one the client's chat messages go to
+   * @param room the room name
+   * @param client the joining client
+   */
+  private void joinRoom(String room, ClientConnection client) {
+    client.setInfo(CLIENT_CURRENT_ROOM_KEY, room);
+    if (!roomIndex.join(room, client)) {
+      sendMessageToClient("Now talking in room " + room + ".", client);
+      return;
+    }
+    joinedRooms(client).add(room);
+    sendRecentMessages(room, client);
+    String joined = client.getInfo(CLIENT_LOGIN_ID_KEY) + " has joined room " + room + ".";
+    if (room.equals(DEFAULT_ROOM)) {
+      // every login joins the lobby, telling all of it would cost each login one send per user
+      sendMessageToClient(joined, client);
+    } else {
+      sendToClients(roomIndex.members(room), joined);
+    }
+  }
+
+  /**
+   * Leave a room, switching the client to another of its rooms if it was talking in this one
+   * @param room the room name
+   * @param client the leaving client
+   */
+  private void leaveRoom(String room, ClientConnection client) {
+    Set<String> rooms = joinedRooms(client);
+    if (!rooms.remove(room) || !roomIndex.leave(room, client)) {
+      sendMessageToClient("You are not in room " + room + ".", client);
+      return;
+    }
+    forgetIfEmpty(room);
+    if (!room.equals(DEFAULT_ROOM)) {
+      sendToClients(roomIndex.members(room), client.getInfo(CLIENT_LOGIN_ID_KEY) + " has left room " + room + ".");
+    }
+
+    if (room.equals(client.getInfo(CLIENT_CURRENT_ROOM_KEY))) {
+      Iterator<String> remaining = rooms.iterator();
+      String next = remaining.hasNext() ? remaining.next() : null;
+      client.setInfo(CLIENT_CURRENT_ROOM_KEY, next);
+      sendMessageToClient("You left room " + room + ". "
+              + (next == null ? "You are not in any room." : "Now talking in room " + next + "."), client);
+    } else {
+      sendMessageToClient("You left room " + room + ".", client);
+    }
+  }
+
+  /**
+   * Remove a disconnecting client from every room it joined
+   * @param client the disconnecting client
+   */
+  private void leaveAllRooms(ClientConnection client) {
+    @SuppressWarnings("unchecked")
+    Set<String> rooms = (Set<String>) client.getInfo(CLIENT_ROOMS_KEY);
+    if (rooms == null) {
+      return;
+    }
+    for (String room : rooms) {
+      roomIndex.leave(room, client);
+      forgetIfEmpty(room);
+    }
+    rooms.clear();
+    client.setInfo(CLIENT_CURRENT_ROOM_KEY, null);
+  }
+
+  /**
+   * @param client a logged in client
+   * @return the (mutable) set of rooms the client has joined
+   */
+  @SuppressWarnings("unchecked")
+  private static Set<String> joinedRooms(ClientConnection client) {
+    Set<String> rooms = (Set<String>) client.getInfo(CLIENT_ROOMS_KEY);
+    if (rooms == null) {
+      rooms = ConcurrentHashMap.newKeySet();
+      client.setInfo(CLIENT_ROOMS_KEY, rooms);
+    }
+    return rooms;
   }
 
   //Class methods ***************************************************
 
+  /**
+   * Open the chat history journal if the options ask for one
+   * @param options the server options
+   * @return the journal, null if disabled or if it can not be opened
+   */
+  private MessageJournal openJournal(ServerOptions options) {
+    if (options.getJournalDirectory() == null) {
+      return null;
+    }
+    try {
+      return new MessageJournal(options.getJournalDirectory(), options.getJournalSegmentMegabytes() << 20, options.getJournalSegments());
+    } catch (IOException e) {
+      logger.log(LogLevel.warn, "Unable to open the history journal, history is disabled. Error: {}", e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Build the search index of the messages already in the journal
+   * @param journal the chat history journal, null if disabled
+   * @return the index, null without a journal
+   */
+  private static SearchIndex indexJournal(MessageJournal journal) {
+    if (journal == null) {
+      return null;
+    }
+    SearchIndex index = new SearchIndex();
+    long firstKept = journal.getFirstSequence();
+    journal.readLast(Integer.MAX_VALUE, entry -> index.add(entry.getSequence(), entry.getText(), firstKept));
+    return index;
+  }
+
+  /**
+   * Open the offline mailboxes unless the options disable them
+   * @param options the server options
+   * @return the mailboxes, null if disabled or if their directory can not be opened
+   */
+  private OfflineMailboxes openMailboxes(ServerOptions options) {
+    if (options.getMailboxQuotaKilobytes() == 0) {
+      return null;
+    }
+    try {
+      return new OfflineMailboxes(options.getMailboxDirectory(), (long) options.getMailboxQuotaKilobytes() << 10,
+              options.getMailboxMemoryKilobytes() << 10, (long) options.getMailboxTotalMegabytes() << 20,
+              (long) options.getMailboxDiskMegabytes() << 20, options.getMailboxUsers());
+    } catch (IOException e) {
+      logger.log(LogLevel.warn, "Unable to open the mailbox directory, offline messages are disabled. Error: {}", e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Join the cluster if the options list other servers
+   * @param options the server options
+   * @param port the port clients connect to
+   * @return the cluster membership, null if not clustered
+   */
+  private ClusterNode openCluster(ServerOptions options, int port) {
+    if (options.getClusterPeers().isEmpty()) {
+      return null;
+    }
+    String nodeId = options.getClusterNode();
+    if (nodeId == null) {
+      try {
+        nodeId = InetAddress.getLocalHost().getHostName() + ":" + port;
+      } catch (UnknownHostException e) {
+        nodeId = "localhost:" + port;
+      }
+    }
+    // links are chat connections to the peers, in the format the peers' engine speaks
+    WireFormat format = (options.getEngine() == ServerEngine.ocsf) ? WireFormat.objectStream : WireFormat.binary;
+    ClusterNode node = new ClusterNode(nodeId, options.getClusterSecret(), options.getClusterPeers(), format,
+            new ClusterNode.Listener() {
+              @Override
+              public void roomMessage(String room, String loginId, String text) {
+                deliverToRoom(room, loginId, text);
+              }
+
+              @Override
+              public void privateMessage(String fromLoginId, String toLoginId, String text) {
+                ClientConnection target = loginIndex.lookup(toLoginId);
+                if (target != null) {
+                  sendMessageToClient(fromLoginId + " (private): " + text, target);
+                }
+              }
+
+              @Override
+              public void broadcast(String text) {
+                sendToAllClients(text);
+              }
+            }, loginIndex, logger);
+    node.start();
+    return node;
+  }
+
+  /**
+   * Create the server's logger, falling back to the console alone if the log file can not be opened
+   * @param options the server options
+   * @return the logger
+   */
+  private static AsyncLogger createLogger(ServerOptions options) {
+    PrintStream console = options.isLogConsole() ? System.out : null;
+    if (options.getLogFile() != null) {
+      try {
+        return new AsyncLogger(options.getLogLevel(), console, options.getLogFile(), AsyncLogger.DEFAULT_CAPACITY);
+      } catch (IOException e) {
+        System.out.println("Unable to open log file " + options.getLogFile() + ", logging to the console only. Error: " + e.getMessage());
+        console = System.out;
+      }
+    }
+    return new AsyncLogger(options.getLogLevel(), console);
+  }
+
   /**
    * A helper method to send a message to a specific client
    * Used for sending error or other informative messages to specific client
    * @param message message to be sent
    * @param client client to which message needs to be sent
    */
-  private void sendMessageToClient(String message, ConnectionToClient client) {
+  private void sendMessageToClient(String message, ClientConnection client) {
     try {
       client.sendToClient(message);
     } catch (IOException e) {
-      System.out.println("Failed to send message to the client. Error: " + e.getMessage());
+      logger.log(LogLevel.warn, "Failed to send message to the client. Error: {}", e.getMessage());
     }
   }
 
@@ -0,0 +1,127 @@
+package server;
+
+import utils.AsyncLogger;
+import utils.LogLevel;
+import utils.TimingWheel;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Closes client connections that received nothing for longer than the idle timeout, which
+ * clients sending heartbeats never reach: what is left are half-open sockets whose client is
+ * gone. Receiving a message only records its time; each connection has a single timeout on a
+ * shared TimingWheel, which finds out when it fires whether the connection was active since and
+ * then schedules itself again for when it would next be idle too long.
+ */
+public class IdleReaper implements AutoCloseable
+{
+  // key of a client connection's tracker
+  private static final String TRACKER_KEY = "idleTracker";
+
+  private static final int WHEEL_SLOTS = 512;
+
+  /**
+   * Activity of one connection
+   */
+  private final class Tracker implements Runnable
+  {
+    final ClientConnection client;
+    volatile long lastActive = System.nanoTime();
+    volatile TimingWheel.Timeout timeout;
+    volatile boolean closed;
+
+    Tracker(ClientConnection client) {
+      this.client = client;
+    }
+
+    @Override
+    public void run() {
+      if (closed) {
+        return;
+      }
+      long idle = System.nanoTime() - lastActive;
+      if (idle < timeoutNanos) {
+        timeout = wheel.schedule(this, timeoutNanos - idle, TimeUnit.NANOSECONDS);
+        return;
+      }
+      reaped.increment();
+      logger.log(LogLevel.info, "Closing {}: nothing received for {} s", String.valueOf(client), TimeUnit.NANOSECONDS.toSeconds(idle));
+      // closing may block on a dead socket, keep it off the wheel thread
+      Thread.ofVirtual().start(() -> {
+        try {
+          client.close();
+        } catch (IOException ignored) {}
+      });
+    }
+  }
+
+  //Instance variables **********************************************
+
+  private final long timeoutNanos;
+
+  private final TimingWheel wheel;
+
+  private final AsyncLogger logger;
+
+  private final LongAdder reaped = new LongAdder();
+
+  //Constructors ****************************************************
+
+  /**
+   * @param timeoutSeconds how long a connection may receive nothing
+   * @param tickMillis precision of the timeout: connections are closed up to one tick late
+   * @param logger where closed connections are logged
+   */
+  public IdleReaper(long timeoutSeconds, long tickMillis, AsyncLogger logger) {
+    this.timeoutNanos = TimeUnit.SECONDS.toNanos(timeoutSeconds);
+    this.wheel = new TimingWheel("idle-reaper", tickMillis, WHEEL_SLOTS);
+    this.logger = logger;
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Start watching a new connection
+   */
+  public void track(ClientConnection client) {
+    Tracker tracker = new Tracker(client);
+    client.setInfo(TRACKER_KEY, tracker);
+    tracker.timeout = wheel.schedule(tracker, timeoutNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Record that something was received from a connection
+   */
+  public void touch(ClientConnection client) {
+    Tracker tracker = (Tracker) client.getInfo(TRACKER_KEY);
+    if (tracker != null) {
+      tracker.lastActive = System.nanoTime();
+    }
+  }
+
+  /**
+   * Stop watching a connection that closed
+   */
+  public void untrack(ClientConnection client) {
+    Tracker tracker = (Tracker) client.getInfo(TRACKER_KEY);
+    if (tracker != null) {
+      client.setInfo(TRACKER_KEY, null);
+      tracker.closed = true;
+      tracker.timeout.cancel();
+    }
+  }
+
+  /**
+   * @return connections closed for being idle
+   */
+  public long getReaped() {
+    return reaped.sum();
+  }
+
+  @Override
+  public void close() {
+    wheel.close();
+  }
+}
@@ -0,0 +1,82 @@
+package server;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Server-wide index from login id to the connection logged in with it.
+ * Lookups are constant time whatever the number of connected clients, and claiming a
+ * login id is atomic, so two clients racing for the same id can not both get it.
+ */
+public class LoginIndex
+{
+  private final ConcurrentHashMap<String, ClientConnection> clientsByLoginId = new ConcurrentHashMap<>();
+
+  /**
+   * Claim a login id for a connection
+   * @param loginId the login id
+   * @param client the connection claiming it
+   * @return true if the id is now held by the connection (or already was), false if another
+   * connection holds it
+   * @throws IllegalArgumentException if the login id is not valid
+   */
+  public boolean register(String loginId, ClientConnection client) {
+    if (!isValid(loginId)) {
+      throw new IllegalArgumentException("Invalid login id, it must not start with # nor hold spaces or control characters");
+    }
+    ClientConnection holder = clientsByLoginId.putIfAbsent(loginId, client);
+    return holder == null || holder == client;
+  }
+
+  /**
+   * Release a login id, only if the given connection still holds it
+   * @param loginId the login id
+   * @param client the connection releasing it
+   * @return true if the connection held the id
+   */
+  public boolean unregister(String loginId, ClientConnection client) {
+    return loginId != null && clientsByLoginId.remove(loginId, client);
+  }
+
+  /**
+   * @param loginId the login id
+   * @return the connection logged in with that id, or null if nobody is
+   */
+  public ClientConnection lookup(String loginId) {
+    return loginId == null ? null : clientsByLoginId.get(loginId);
+  }
+
+  /**
+   * @return the login ids in use, a live view
+   */
+  public Set<String> loginIds() {
+    return Collections.unmodifiableSet(clientsByLoginId.keySet());
+  }
+
+  /**
+   * @return number of logged in clients
+   */
+  public int size() {
+    return clientsByLoginId.size();
+  }
+
+  /**
+   * Lines sent to clients start with login ids, one starting with '#' would read as a command
+   * @param loginId a login id
+   * @return true if it is not empty, does not start with '#' and holds no whitespace or
+   * control characters
+   */
+  public static boolean isValid(String loginId) {
+    if (loginId == null || loginId.isEmpty() || loginId.charAt(0) == '#') {
+      return false;
+    }
+    for (int i = 0; i < loginId.length(); i++) {
+      char c = loginId.charAt(i);
+      if (Character.isWhitespace(c) || Character.isSpaceChar(c) || Character.isISOControl(c)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
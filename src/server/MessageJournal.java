@@ -0,0 +1,451 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Append-only journal of chat messages, kept in fixed-size segment files written through
+ * memory mappings. Each record is
+ * <pre>
+ *   [length: int][sequence: long][time: long][loginId length: short][loginId]
+ *   [room length: short][room][text: UTF-8][length: int]
+ * </pre>
+ * The trailing length lets readers walk the journal backward, so reading the last n messages
+ * touches only those records. The leading length is written last, a record cut short by a
+ * crash reads as the end of the journal. When a segment is full the next one is started, while
+ * a background thread flushes the full one to disk, and only the newest segments are kept. Each segment also keeps the offset of its records in
+ * memory, so a message is read by its sequence number without walking the segment.
+ */
+public class MessageJournal
+{
+  /**
+   * A journaled message
+   */
+  public static final class Entry
+  {
+    private final long sequence;
+    private final long timeMillis;
+    private final String loginId;
+    private final String room;
+    private final String text;
+
+    Entry(long sequence, long timeMillis, String loginId, String room, String text) {
+      this.sequence = sequence;
+      this.timeMillis = timeMillis;
+      this.loginId = loginId;
+      this.room = room;
+      this.text = text;
+    }
+
+    public long getSequence() {
+      return sequence;
+    }
+
+    public long getTimeMillis() {
+      return timeMillis;
+    }
+
+    public String getLoginId() {
+      return loginId;
+    }
+
+    public String getRoom() {
+      return room;
+    }
+
+    public String getText() {
+      return text;
+    }
+  }
+
+  /**
+   * One segment file and its mapping
+   */
+  private static final class Segment
+  {
+    final Path path;
+    final MappedByteBuffer buffer;
+    final long firstSequence;
+    // end of the last complete record, only ever grows
+    volatile int end;
+    // offset of each record, by sequence number less the first one; replaced when it grows,
+    // before count is raised, so readers always get an array holding count offsets
+    volatile int[] offsets = new int[1024];
+    volatile int count;
+
+    Segment(Path path, MappedByteBuffer buffer, long firstSequence) {
+      this.path = path;
+      this.buffer = buffer;
+      this.firstSequence = firstSequence;
+    }
+
+    /**
+     * Record the offset of the next record, by its only writer
+     */
+    void addOffset(int offset) {
+      int[] current = offsets;
+      if (count == current.length) {
+        current = Arrays.copyOf(current, current.length * 2);
+        offsets = current;
+      }
+      current[count] = offset;
+      count = count + 1;
+    }
+  }
+
+  private static final String SUFFIX = ".journal";
+
+  // length + sequence + time + two string lengths + trailer
+  private static final int RECORD_OVERHEAD = 4 + 8 + 8 + 2 + 2 + 4;
+
+  //Instance variables **********************************************
+
+  private final Path directory;
+
+  private final int segmentSize;
+
+  private final int maxSegments;
+
+  /**
+   * Retained segments, oldest first, the last one is written to. Replaced, never modified.
+   */
+  private volatile List<Segment> segments;
+
+  private long nextSequence;
+
+  private final ReentrantLock appendLock = new ReentrantLock();
+
+  // flushes full segments to disk, off the appending threads and the lock
+  private final ExecutorService syncer = Executors.newSingleThreadExecutor(task -> {
+    Thread thread = new Thread(task, "journal-sync");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  //Constructors ****************************************************
+
+  /**
+   * Open the journal in a directory, recovering the segments already there
+   * @param directory where segment files are kept, created if needed
+   * @param segmentSize size of each segment file in bytes
+   * @param maxSegments number of segments kept, older ones are deleted
+   * @throws IOException if the directory or a segment can not be opened
+   */
+  public MessageJournal(Path directory, int segmentSize, int maxSegments) throws IOException {
+    if (segmentSize < 1024) {
+      throw new IllegalArgumentException("Journal segments must be at least 1024 bytes");
+    }
+    if (maxSegments < 1) {
+      throw new IllegalArgumentException("Journal must keep at least one segment");
+    }
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.maxSegments = maxSegments;
+    Files.createDirectories(directory);
+
+    List<Path> paths = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+      files.forEach(paths::add);
+    }
+    // names are zero-padded first sequence numbers, so they sort chronologically
+    paths.sort(null);
+
+    List<Segment> recovered = new ArrayList<>();
+    for (Path path : paths) {
+      recovered.add(recover(path));
+    }
+    if (recovered.isEmpty()) {
+      recovered.add(createSegment(0));
+    } else {
+      Segment last = recovered.get(recovered.size() - 1);
+      nextSequence = (last.end == 0) ? firstSequence(last.path) : lastSequence(last) + 1;
+    }
+    segments = List.copyOf(recovered);
+    enforceRetention();
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Append a message
+   * @param loginId who sent it
+   * @param room the room it was sent to
+   * @param text the message
+   * @return the message's sequence number
+   * @throws IOException if a new segment can not be created
+   * @throws IllegalArgumentException if the message can not fit in a segment
+   */
+  public long append(String loginId, String room, String text) throws IOException {
+    byte[] login = loginId.getBytes(StandardCharsets.UTF_8);
+    byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+    byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+    int recordLength = RECORD_OVERHEAD + login.length + roomBytes.length + textBytes.length;
+    if (recordLength > segmentSize || login.length > Short.MAX_VALUE || roomBytes.length > Short.MAX_VALUE) {
+      throw new IllegalArgumentException("Message too large for the journal: " + recordLength + " bytes");
+    }
+    int bodyLength = recordLength - 8;
+
+    appendLock.lock();
+    try {
+      Segment segment = segments.get(segments.size() - 1);
+      if (segment.end + recordLength > segmentSize) {
+        Segment full = segment;
+        syncer.execute(() -> full.buffer.force());
+        segment = createSegment(nextSequence);
+        List<Segment> rolled = new ArrayList<>(segments);
+        rolled.add(segment);
+        segments = List.copyOf(rolled);
+        enforceRetention();
+      }
+
+      long sequence = nextSequence++;
+      ByteBuffer record = segment.buffer.duplicate();
+      int start = segment.end;
+      record.position(start + 4);
+      record.putLong(sequence);
+      record.putLong(System.currentTimeMillis());
+      record.putShort((short) login.length).put(login);
+      record.putShort((short) roomBytes.length).put(roomBytes);
+      record.put(textBytes);
+      record.putInt(bodyLength);
+      // the leading length goes last: until then the record does not exist
+      record.putInt(start, bodyLength);
+      segment.addOffset(start);
+      segment.end = start + recordLength;
+      return sequence;
+    } finally {
+      appendLock.unlock();
+    }
+  }
+
+  /**
+   * Hand the last messages to a consumer, oldest first. Records are decoded one at a time
+   * straight from the mapped segments.
+   * @param count number of messages wanted
+   * @param consumer receives each message
+   * @return number of messages handed over, less than count if the journal holds fewer
+   */
+  public int readLast(int count, Consumer<Entry> consumer) {
+    List<Segment> snapshot = segments;
+    int[] ends = new int[snapshot.size()];
+    for (int i = 0; i < ends.length; i++) {
+      ends[i] = snapshot.get(i).end;
+    }
+
+    // walk backward over the trailers to the first record wanted
+    int segmentIndex = snapshot.size() - 1;
+    int position = ends[segmentIndex];
+    int found = 0;
+    while (found < count) {
+      if (position == 0) {
+        if (segmentIndex == 0) {
+          break;
+        }
+        segmentIndex--;
+        position = ends[segmentIndex];
+        continue;
+      }
+      int bodyLength = snapshot.get(segmentIndex).buffer.getInt(position - 4);
+      position -= bodyLength + 8;
+      found++;
+    }
+
+    // then forward, decoding each record
+    for (int i = segmentIndex; i < snapshot.size(); i++) {
+      ByteBuffer buffer = snapshot.get(i).buffer.duplicate();
+      for (int pos = (i == segmentIndex) ? position : 0; pos < ends[i]; pos += buffer.getInt(pos) + 8) {
+        consumer.accept(decode(buffer, pos));
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Hand the last messages sent to some rooms to a consumer, oldest first. Only the room of the
+   * records walked over is decoded, the messages handed over are decoded once found.
+   * @param count number of messages wanted
+   * @param rooms tells the rooms whose messages are wanted
+   * @param maxScanned most records walked over looking for them
+   * @param consumer receives each message
+   * @return number of messages handed over, less than count if fewer were found
+   */
+  public int readLast(int count, Predicate<String> rooms, int maxScanned, Consumer<Entry> consumer) {
+    List<Segment> snapshot = segments;
+    // segment index and position of each match, newest first
+    long[] matches = new long[Math.min(count, 64)];
+    int found = 0;
+    int scanned = 0;
+    for (int i = snapshot.size() - 1; i >= 0 && found < count && scanned < maxScanned; i--) {
+      ByteBuffer buffer = snapshot.get(i).buffer.duplicate();
+      int position = snapshot.get(i).end;
+      while (position > 0 && found < count && scanned < maxScanned) {
+        position -= buffer.getInt(position - 4) + 8;
+        scanned++;
+        if (rooms.test(decodeRoom(buffer, position))) {
+          if (found == matches.length) {
+            matches = Arrays.copyOf(matches, Math.min(count, found * 2));
+          }
+          matches[found++] = ((long) i << 32) | position;
+        }
+      }
+    }
+    for (int i = found - 1; i >= 0; i--) {
+      Segment segment = snapshot.get((int) (matches[i] >>> 32));
+      consumer.accept(decode(segment.buffer.duplicate(), (int) matches[i]));
+    }
+    return found;
+  }
+
+  /**
+   * Read one message
+   * @param sequence the message's sequence number
+   * @return the message, null if it was never written or its segment is no longer kept
+   */
+  public Entry read(long sequence) {
+    List<Segment> snapshot = segments;
+    // the last segment starting at or before the sequence number
+    int low = 0;
+    int high = snapshot.size() - 1;
+    while (low < high) {
+      int middle = (low + high + 1) >>> 1;
+      if (snapshot.get(middle).firstSequence <= sequence) {
+        low = middle;
+      } else {
+        high = middle - 1;
+      }
+    }
+    Segment segment = snapshot.get(low);
+    long index = sequence - segment.firstSequence;
+    int count = segment.count;
+    if (index < 0 || index >= count) {
+      return null;
+    }
+    return decode(segment.buffer.duplicate(), segment.offsets[(int) index]);
+  }
+
+  /**
+   * @return sequence number of the oldest message kept
+   */
+  public long getFirstSequence() {
+    return segments.get(0).firstSequence;
+  }
+
+  /**
+   * Flush the segment being written to disk, and the full ones not flushed yet
+   */
+  public void force() {
+    Segment last = segments.get(segments.size() - 1);
+    // queued behind the full segments, so they are flushed too once it is done
+    Future<?> flushed = syncer.submit(() -> {
+      last.buffer.force();
+    });
+    try {
+      flushed.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Journal segment not flushed to disk", e.getCause());
+    }
+  }
+
+  private Segment createSegment(long firstSequence) throws IOException {
+    Path path = directory.resolve(String.format("%020d%s", firstSequence, SUFFIX));
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      return new Segment(path, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize), firstSequence);
+    }
+  }
+
+  /**
+   * Map an existing segment and find the end of its last complete record
+   */
+  private Segment recover(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      long size = Math.max(channel.size(), segmentSize);
+      Segment segment = new Segment(path, channel.map(FileChannel.MapMode.READ_WRITE, 0, size), firstSequence(path));
+      ByteBuffer buffer = segment.buffer;
+      int pos = 0;
+      while (pos + RECORD_OVERHEAD <= buffer.capacity()) {
+        int bodyLength = buffer.getInt(pos);
+        if (bodyLength < RECORD_OVERHEAD - 8 || pos + bodyLength + 8 > buffer.capacity()
+                || buffer.getInt(pos + 4 + bodyLength) != bodyLength) {
+          break;
+        }
+        segment.addOffset(pos);
+        pos += bodyLength + 8;
+      }
+      segment.end = pos;
+      return segment;
+    }
+  }
+
+  /**
+   * Delete the oldest segments beyond the number kept
+   */
+  private void enforceRetention() throws IOException {
+    List<Segment> current = segments;
+    if (current.size() <= maxSegments) {
+      return;
+    }
+    List<Segment> expired = current.subList(0, current.size() - maxSegments);
+    segments = List.copyOf(current.subList(current.size() - maxSegments, current.size()));
+    for (Segment segment : expired) {
+      // readers still holding the mapping keep reading it, the file is gone once they drop it
+      Files.deleteIfExists(segment.path);
+    }
+  }
+
+  private long lastSequence(Segment segment) {
+    int bodyLength = segment.buffer.getInt(segment.end - 4);
+    return segment.buffer.getLong(segment.end - 8 - bodyLength + 4);
+  }
+
+  //Class methods ***************************************************
+
+  private static long firstSequence(Path path) {
+    String name = path.getFileName().toString();
+    return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+  }
+
+  private static Entry decode(ByteBuffer buffer, int pos) {
+    int bodyLength = buffer.getInt(pos);
+    buffer.position(pos + 4);
+    long sequence = buffer.getLong();
+    long time = buffer.getLong();
+    String loginId = readString(buffer, buffer.getShort());
+    String room = readString(buffer, buffer.getShort());
+    int textLength = pos + 4 + bodyLength - buffer.position();
+    String text = readString(buffer, textLength);
+    return new Entry(sequence, time, loginId, room, text);
+  }
+
+  private static String decodeRoom(ByteBuffer buffer, int pos) {
+    // past the leading length, sequence number and time, then the login id
+    int loginLength = buffer.getShort(pos + 20);
+    int roomAt = pos + 22 + loginLength;
+    buffer.position(roomAt + 2);
+    return readString(buffer, buffer.getShort(roomAt));
+  }
+
+  private static String readString(ByteBuffer buffer, int length) {
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
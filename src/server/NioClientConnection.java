@@ -0,0 +1,343 @@
+package server;
+
+import common.BinaryCodec;
+import common.EncodedMessage;
+import common.MessageDecoder;
+import common.WireFormat;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A client connection served by a NioEventLoop. The wire format is the one the client's header
+ * asks for, so OCSF clients connect unchanged next to binary ones. Queued frames are written
+ * with gathering writes, as many as the socket takes in one call.
+ */
+final class NioClientConnection extends AbstractClientConnection
+{
+  private static final int INITIAL_READ_BUFFER_SIZE = 8 * 1024;
+
+  // most frames handed to one gathering write
+  private static final int MAX_GATHERED_FRAMES = 64;
+
+  /**
+   * A frame queued for this connection: its bytes with this connection's read position, and
+   * the broadcast frame they belong to if shared with other connections
+   */
+  private static final class Pending
+  {
+    final ByteBuffer buffer;
+    final SharedFrame shared;
+
+    Pending(ByteBuffer buffer) {
+      this.buffer = buffer;
+      this.shared = null;
+    }
+
+    Pending(SharedFrame shared) {
+      this.buffer = shared.retain();
+      this.shared = shared;
+    }
+
+    void release() {
+      if (shared != null) {
+        shared.release();
+      }
+    }
+  }
+
+  private final NioServerTransport transport;
+
+  private final NioEventLoop loop;
+
+  private final SocketChannel channel;
+
+  // chosen from the client's first bytes, then fixed for the connection's lifetime
+  private volatile WireFormat format;
+
+  // deflates large frames when the client accepts them, null otherwise, fixed like the format
+  private volatile BinaryCodec.Compressor compressor;
+
+  private MessageDecoder decoder;
+
+  // filled by any thread, drained by the loop
+  private final OutboundQueue<Pending> outbound;
+
+  // frames taken from the queue and not fully written yet, from writingStart to writingEnd,
+  // owned by the loop; gathered holds their buffers for the gathering write
+  private final Pending[] writing = new Pending[MAX_GATHERED_FRAMES];
+
+  private final ByteBuffer[] gathered = new ByteBuffer[MAX_GATHERED_FRAMES];
+
+  private int writingStart;
+
+  private int writingEnd;
+
+  private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+  private final AtomicBoolean closed = new AtomicBoolean();
+
+  private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+
+  private SelectionKey key;
+
+  NioClientConnection(NioServerTransport transport, NioEventLoop loop, SocketChannel channel) {
+    this.transport = transport;
+    this.loop = loop;
+    this.channel = channel;
+    this.outbound = transport.newOutboundQueue(Pending::release);
+  }
+
+  /**
+   * Register with the loop's selector, must run on the loop.
+   * The connection is reported open once the client's header tells its wire format.
+   */
+  void register() {
+    try {
+      channel.configureBlocking(false);
+      key = channel.register(loop.selector(), SelectionKey.OP_READ, this);
+    } catch (IOException | RuntimeException e) {
+      closeChannel();
+    }
+  }
+
+  @Override
+  public void sendToClient(Object msg) throws IOException {
+    if (closed.get()) {
+      throw new SocketException("socket does not exist");
+    }
+    BinaryCodec.Compressor deflate = compressor;
+    byte[] frame = format.encode(msg);
+    write(new Pending(ByteBuffer.wrap(deflate == null ? frame : deflate.compress(frame))));
+  }
+
+  @Override
+  public void sendToClient(EncodedMessage msg) throws IOException {
+    if (closed.get()) {
+      throw new SocketException("socket does not exist");
+    }
+    // the frame is shared, each connection only gets its own read position over it
+    write(new Pending(ByteBuffer.wrap(msg.frame(format, compressor)).asReadOnlyBuffer()));
+  }
+
+  /**
+   * Send one message of a broadcast, writing it from direct memory shared with the other
+   * recipients in the same wire format
+   * @param msg the message
+   * @param frames the broadcast's shared frames, by format and compression, filled the first
+   *               time a recipient needs one; the caller releases them once done broadcasting
+   * @throws IOException if the connection is closed or the message can not be encoded
+   */
+  void sendToClient(EncodedMessage msg, SharedFrame[] frames) throws IOException {
+    if (closed.get()) {
+      throw new SocketException("socket does not exist");
+    }
+    BinaryCodec.Compressor deflate = compressor;
+    int variant = format.ordinal() * 2 + (deflate == null ? 0 : 1);
+    SharedFrame frame = frames[variant];
+    if (frame == null) {
+      frame = transport.share(msg.frame(format, deflate));
+      frames[variant] = frame;
+    }
+    write(new Pending(frame));
+  }
+
+  @Override
+  public void sendAllToClient(List<EncodedMessage> msgs) throws IOException {
+    if (closed.get()) {
+      throw new SocketException("socket does not exist");
+    }
+    // one queue entry, so the whole batch goes out in as few socket writes as possible
+    write(new Pending(ByteBuffer.wrap(EncodedMessage.frames(msgs, format, compressor))));
+  }
+
+  private void write(Pending frame) {
+    if (!outbound.offer(frame)) {
+      // too far behind, give up on the client
+      try {
+        close();
+      } catch (IOException ignored) {}
+      return;
+    }
+    if (loop.inEventLoop()) {
+      flush();
+    } else if (flushScheduled.compareAndSet(false, true)) {
+      loop.execute(this::flush);
+    }
+  }
+
+  /**
+   * Called by the loop when the channel has data to read
+   */
+  void onReadable() {
+    try {
+      int read = channel.read(readBuffer);
+      if (read < 0) {
+        fail(new EOFException());
+        return;
+      }
+      if (decoder == null && !negotiate()) {
+        return;
+      }
+      readBuffer = decoder.decodeAndCompact(readBuffer, msg -> {
+        if (!closed.get()) {
+          transport.handler.handleMessageFromClient(msg, this);
+        }
+      });
+    } catch (Exception e) {
+      fail(e);
+    }
+  }
+
+  /**
+   * Pick the wire format from the client's header, answer with ours and report the connection
+   * @return false if more bytes are needed to tell the format
+   */
+  private boolean negotiate() throws IOException {
+    WireFormat detected = WireFormat.detect(readBuffer.duplicate().flip());
+    if (detected == null) {
+      return false;
+    }
+    ByteBuffer header = readBuffer.duplicate().flip();
+    compressor = transport.negotiateCompressor(header);
+    format = detected;
+    decoder = detected.newDecoder();
+    write(new Pending(ByteBuffer.wrap(detected.header(compressor != null))));
+    transport.connectionOpened(this);
+    return true;
+  }
+
+  /**
+   * Called by the loop when a previously full socket buffer can take more data
+   */
+  void onWritable() {
+    flush();
+  }
+
+  private void flush() {
+    flushScheduled.set(false);
+    if (key == null || !key.isValid()) {
+      releaseWriting();
+      return;
+    }
+    try {
+      while (takeFrames()) {
+        channel.write(gathered, writingStart, writingEnd - writingStart);
+        while (writingStart < writingEnd && !gathered[writingStart].hasRemaining()) {
+          writing[writingStart].release();
+          writing[writingStart] = null;
+          gathered[writingStart] = null;
+          writingStart++;
+        }
+        if (writingStart < writingEnd) {
+          // socket buffer full, wait until the selector reports it writable again
+          key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+          return;
+        }
+        outbound.written();
+      }
+      key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    } catch (IOException | CancelledKeyException e) {
+      // a key cancelled by a close from another thread: fail() finds the connection closed and
+      // the flush that close scheduled releases the frames
+      fail(e);
+    }
+  }
+
+  /**
+   * Move queued frames behind those still being written, up to what one write gathers
+   * @return false if there is nothing to write
+   */
+  private boolean takeFrames() {
+    if (writingStart > 0) {
+      int left = writingEnd - writingStart;
+      System.arraycopy(writing, writingStart, writing, 0, left);
+      System.arraycopy(gathered, writingStart, gathered, 0, left);
+      Arrays.fill(writing, left, writingEnd, null);
+      Arrays.fill(gathered, left, writingEnd, null);
+      writingStart = 0;
+      writingEnd = left;
+    }
+    Pending frame;
+    while (writingEnd < MAX_GATHERED_FRAMES && (frame = outbound.poll()) != null) {
+      writing[writingEnd] = frame;
+      gathered[writingEnd] = frame.buffer;
+      writingEnd++;
+    }
+    return writingEnd > 0;
+  }
+
+  /**
+   * Release the frames being written once the channel is closed, on the loop that owns them
+   */
+  private void releaseWriting() {
+    for (int i = writingStart; i < writingEnd; i++) {
+      writing[i].release();
+      writing[i] = null;
+      gathered[i] = null;
+    }
+    writingStart = 0;
+    writingEnd = 0;
+  }
+
+  @Override
+  public boolean awaitFlushed(long deadline) throws InterruptedException {
+    return outbound.awaitDrained(deadline);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed.compareAndSet(false, true)) {
+      try {
+        closeChannel();
+      } finally {
+        transport.connectionClosed(this);
+      }
+    }
+  }
+
+  /**
+   * Close the connection after an error, reporting it unless already closed
+   */
+  void fail(Throwable exception) {
+    if (closed.compareAndSet(false, true)) {
+      closeChannel();
+      transport.connectionFailed(this, exception);
+    }
+  }
+
+  private void closeChannel() {
+    try {
+      channel.close();
+    } catch (IOException ignored) {}
+    outbound.close();
+    // the loop may be writing from the frames it took, it releases them itself
+    if (loop.inEventLoop()) {
+      releaseWriting();
+    } else {
+      loop.execute(this::flush);
+    }
+  }
+
+  @Override
+  public InetAddress getInetAddress() {
+    Socket socket = channel.socket();
+    return closed.get() ? null : socket.getInetAddress();
+  }
+
+  @Override
+  public String toString() {
+    InetAddress address = getInetAddress();
+    return address == null ? null : address.getHostName() + " (" + address.getHostAddress() + ")";
+  }
+}
@@ -0,0 +1,142 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One selector thread serving a share of the nio engine's connections.
+ * Every read, write and close of a connection happens on the loop that owns it;
+ * other threads hand work over through execute().
+ */
+final class NioEventLoop implements Runnable
+{
+  private final ServerHandler handler;
+
+  private final Selector selector;
+
+  private final Thread thread;
+
+  // work submitted from other threads, run between selects
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+  // avoids waking up the selector once per submitted task
+  private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+  private volatile boolean running = true;
+
+  NioEventLoop(String name, ServerHandler handler) throws IOException {
+    this.handler = handler;
+    selector = Selector.open();
+    thread = new Thread(this, name);
+    thread.setDaemon(true);
+  }
+
+  void start() {
+    thread.start();
+  }
+
+  Selector selector() {
+    return selector;
+  }
+
+  /**
+   * @return true if the calling thread is this loop's thread
+   */
+  boolean inEventLoop() {
+    return Thread.currentThread() == thread;
+  }
+
+  /**
+   * Run a task on this loop's thread
+   * @param task the task to run
+   */
+  void execute(Runnable task) {
+    tasks.add(task);
+    if (!inEventLoop() && wakeupPending.compareAndSet(false, true)) {
+      selector.wakeup();
+    }
+  }
+
+  /**
+   * Stop the loop, connections still registered are left to their owner to close
+   */
+  void shutdown() {
+    running = false;
+    selector.wakeup();
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (running) {
+        selector.select();
+        wakeupPending.set(false);
+        runTasks();
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          dispatch(key);
+        }
+      }
+      runTasks();
+    } catch (Throwable e) {
+      handler.engineException(thread.getName(), e);
+      // nobody else is left to serve them
+      failAll(e);
+    } finally {
+      try {
+        selector.close();
+      } catch (IOException ignored) {}
+    }
+  }
+
+  /**
+   * Hand a selected key's events to its connection. A failure only takes that connection down.
+   */
+  private void dispatch(SelectionKey key) {
+    NioClientConnection connection = (NioClientConnection) key.attachment();
+    try {
+      if (key.isValid() && key.isReadable()) {
+        connection.onReadable();
+      }
+      if (key.isValid() && key.isWritable()) {
+        connection.onWritable();
+      }
+    } catch (CancelledKeyException e) {
+      // closed from another thread meanwhile, the connection is already reported closed
+      connection.fail(e);
+    } catch (RuntimeException e) {
+      connection.fail(e);
+    }
+  }
+
+  private void runTasks() {
+    Runnable task;
+    while ((task = tasks.poll()) != null) {
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        // connection tasks handle their own failures, anything else is reported and skipped
+        handler.engineException(thread.getName(), e);
+      }
+    }
+  }
+
+  private void failAll(Throwable exception) {
+    try {
+      for (SelectionKey key : selector.keys()) {
+        if (key.attachment() instanceof NioClientConnection connection) {
+          connection.fail(exception);
+        }
+      }
+    } catch (RuntimeException ignored) {}
+  }
+}
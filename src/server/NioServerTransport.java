@@ -0,0 +1,165 @@
+package server;
+
+import common.EncodedMessage;
+import common.WireFormat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Server engine built on java.nio: an acceptor thread hands new connections round-robin to a
+ * fixed number of selector event loops, so the thread count no longer grows with the number
+ * of clients. Handler hooks run on the loop owning the connection.
+ * <p>
+ * A broadcast is copied once into a pooled direct buffer per wire format, and every recipient
+ * writes from that same native memory (gathering its queued frames into one socket write)
+ * instead of the JDK copying the frame to a temporary direct buffer for each of them.
+ */
+public class NioServerTransport extends AbstractServerTransport
+{
+  // largest pooled broadcast frame, and the most pooled memory kept idle
+  private static final int MAX_POOLED_FRAME = 64 * 1024;
+  private static final long MAX_POOLED_BYTES = 8L * 1024 * 1024;
+
+  // a broadcast may need one shared frame per wire format, deflated or not
+  private static final int FRAME_VARIANTS = WireFormat.values().length * 2;
+
+  private final int loopCount;
+
+  private final DirectBufferPool bufferPool = new DirectBufferPool(MAX_POOLED_FRAME, MAX_POOLED_BYTES);
+
+  private NioEventLoop[] loops;
+
+  private int nextLoop;
+
+  private volatile ServerSocketChannel serverChannel;
+
+  /**
+   * @param handler hooks to drive
+   * @param port port to listen on
+   * @param loopCount number of event loops, usually one per core
+   * @param outboundLimits bounds of each connection's outbound queue
+   */
+  public NioServerTransport(ServerHandler handler, int port, int loopCount, OutboundLimits outboundLimits) {
+    super(handler, port, outboundLimits);
+    this.loopCount = loopCount;
+  }
+
+  @Override
+  public synchronized void listen() throws IOException {
+    if (isListening()) {
+      return;
+    }
+    if (loops == null) {
+      loops = new NioEventLoop[loopCount];
+      for (int i = 0; i < loopCount; i++) {
+        loops[i] = new NioEventLoop("nio-loop-" + i, handler);
+        loops[i].start();
+      }
+    }
+    ServerSocketChannel channel = ServerSocketChannel.open();
+    try {
+      channel.bind(new InetSocketAddress(getPort()), 128);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    serverChannel = channel;
+    Thread acceptor = new Thread(() -> accept(channel), "nio-acceptor");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  private void accept(ServerSocketChannel channel) {
+    handler.serverStarted();
+    try {
+      while (true) {
+        SocketChannel clientChannel = channel.accept();
+        NioEventLoop loop = nextLoop();
+        NioClientConnection client = new NioClientConnection(this, loop, clientChannel);
+        loop.execute(client::register);
+      }
+    } catch (ClosedChannelException e) {
+      // stopListening() closed the channel
+      handler.serverStopped();
+    } catch (IOException e) {
+      serverChannel = null;
+      handler.listeningException(e);
+    }
+  }
+
+  @Override
+  public void sendToClients(Iterable<? extends ClientConnection> clients, Object msg) {
+    EncodedMessage encoded = (msg instanceof EncodedMessage) ? (EncodedMessage) msg : new EncodedMessage(msg);
+    SharedFrame[] frames = new SharedFrame[FRAME_VARIANTS];
+    try {
+      for (ClientConnection client : clients) {
+        try {
+          if (client instanceof NioClientConnection) {
+            ((NioClientConnection) client).sendToClient(encoded, frames);
+          } else {
+            client.sendToClient(encoded);
+          }
+        } catch (Exception ignored) {}
+      }
+    } finally {
+      // the recipients hold references of their own, the last one written frees the buffer
+      for (SharedFrame frame : frames) {
+        if (frame != null) {
+          frame.release();
+        }
+      }
+    }
+  }
+
+  /**
+   * @param frame an encoded frame
+   * @return the frame in direct memory, holding one reference for the caller
+   */
+  SharedFrame share(byte[] frame) {
+    return new SharedFrame(frame, bufferPool);
+  }
+
+  private synchronized NioEventLoop nextLoop() {
+    NioEventLoop loop = loops[nextLoop];
+    nextLoop = (nextLoop + 1) % loops.length;
+    return loop;
+  }
+
+  @Override
+  public synchronized void stopListening() {
+    ServerSocketChannel channel = serverChannel;
+    serverChannel = null;
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException ignored) {}
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (loops == null) {
+      return;
+    }
+    stopListening();
+    for (ClientConnection client : getClientConnections()) {
+      try {
+        client.close();
+      } catch (Exception ignored) {}
+    }
+    for (NioEventLoop loop : loops) {
+      loop.shutdown();
+    }
+    loops = null;
+    handler.serverClosed();
+  }
+
+  @Override
+  public boolean isListening() {
+    return serverChannel != null;
+  }
+}
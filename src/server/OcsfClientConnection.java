@@ -0,0 +1,73 @@
+package server;
+
+import ocsf.server.ConnectionToClient;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * Adapts an OCSF ConnectionToClient to the ClientConnection interface.
+ * One adapter is created per connection and kept in the connection's info map.
+ */
+final class OcsfClientConnection implements ClientConnection
+{
+  /**
+   * Info key under which the adapter is saved in the wrapped connection
+   */
+  private static final String ADAPTER_INFO_KEY = "clientConnection";
+
+  private final ConnectionToClient connection;
+
+  private OcsfClientConnection(ConnectionToClient connection) {
+    this.connection = connection;
+  }
+
+  /**
+   * @param connection an OCSF connection
+   * @return the adapter for the given connection, created on first use
+   */
+  static OcsfClientConnection of(ConnectionToClient connection) {
+    synchronized (connection) {
+      Object adapter = connection.getInfo(ADAPTER_INFO_KEY);
+      if (adapter == null) {
+        adapter = new OcsfClientConnection(connection);
+        connection.setInfo(ADAPTER_INFO_KEY, adapter);
+      }
+      return (OcsfClientConnection) adapter;
+    }
+  }
+
+  @Override
+  public void sendToClient(Object msg) throws IOException {
+    connection.sendToClient(msg);
+  }
+
+  @Override
+  public void close() throws IOException {
+    connection.close();
+  }
+
+  @Override
+  public InetAddress getInetAddress() {
+    return connection.getInetAddress();
+  }
+
+  @Override
+  public void setInfo(String infoType, Object info) {
+    synchronized (connection) {
+      connection.setInfo(infoType, info);
+    }
+  }
+
+  @Override
+  public Object getInfo(String infoType) {
+    synchronized (connection) {
+      return connection.getInfo(infoType);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return connection.toString();
+  }
+}
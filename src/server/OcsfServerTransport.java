@@ -0,0 +1,76 @@
+package server;
+
+import ocsf.server.AbstractServer;
+import ocsf.server.ConnectionToClient;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The original OCSF engine: a listening thread plus one ConnectionToClient thread per client.
+ * Delegates to the AbstractServer the handler extends, whose hooks forward to the handler.
+ */
+final class OcsfServerTransport implements ServerTransport
+{
+  private final AbstractServer server;
+
+  OcsfServerTransport(AbstractServer server) {
+    this.server = server;
+  }
+
+  @Override
+  public void listen() throws IOException {
+    server.listen();
+  }
+
+  @Override
+  public void stopListening() {
+    server.stopListening();
+  }
+
+  @Override
+  public void close() throws IOException {
+    server.close();
+  }
+
+  @Override
+  public boolean isListening() {
+    return server.isListening();
+  }
+
+  @Override
+  public int getPort() {
+    return server.getPort();
+  }
+
+  @Override
+  public void setPort(int port) {
+    server.setPort(port);
+  }
+
+  @Override
+  public int getNumberOfClients() {
+    return server.getNumberOfClients();
+  }
+
+  @Override
+  public List<ClientConnection> getClientConnections() {
+    Thread[] clientThreads = server.getClientConnections();
+    List<ClientConnection> clients = new ArrayList<>(clientThreads.length);
+    for (Thread clientThread : clientThreads) {
+      clients.add(OcsfClientConnection.of((ConnectionToClient) clientThread));
+    }
+    return clients;
+  }
+
+  @Override
+  public void sendToAllClients(Object msg) {
+    // same semantics as AbstractServer.sendToAllClients, which the handler may override
+    for (ClientConnection client : getClientConnections()) {
+      try {
+        client.sendToClient(msg);
+      } catch (Exception ignored) {}
+    }
+  }
+}
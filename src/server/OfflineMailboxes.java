@@ -0,0 +1,462 @@
+package server;
+
+import common.Utf8;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Messages kept for users who are not connected, until they log in. The newest messages of a
+ * user are kept in memory, older ones spill to a file of the user's own, one record each:
+ * <pre>
+ *   [length: int][time: long][sender length: short][sender][text: UTF-8]
+ * </pre>
+ * where the length counts the bytes following it. A quota per user bounds memory and file
+ * together, and all the mailboxes share a memory budget: once it is spent, a mailbox receiving
+ * a message spills everything it holds. Without a directory nothing spills, each mailbox keeps
+ * up to its quota in memory as long as the budget allows. Spill files outlive the server,
+ * close() spills what is in memory when it stops, and they are found again at startup.
+ * <p>
+ * Anyone can write to any login id, so the spill files share a disk budget too, and the number
+ * of mailboxes is bounded: messages past either limit are refused.
+ */
+public class OfflineMailboxes implements AutoCloseable
+{
+  /**
+   * A message waiting for its recipient
+   */
+  public static final class Message
+  {
+    private final long timeMillis;
+    private final String fromLoginId;
+    private final String text;
+
+    Message(long timeMillis, String fromLoginId, String text) {
+      this.timeMillis = timeMillis;
+      this.fromLoginId = fromLoginId;
+      this.text = text;
+    }
+
+    public long getTimeMillis() {
+      return timeMillis;
+    }
+
+    public String getFromLoginId() {
+      return fromLoginId;
+    }
+
+    public String getText() {
+      return text;
+    }
+  }
+
+  /**
+   * The messages of one user, oldest in the file, newest in memory
+   */
+  private static final class Mailbox
+  {
+    final Path file;
+    final ReentrantLock lock = new ReentrantLock();
+    final ArrayDeque<Message> memory = new ArrayDeque<>();
+    int memoryBytes;
+    long fileBytes;
+    // emptied and out of the map, depositors must look the mailbox up again
+    boolean retired;
+
+    Mailbox(Path file, long fileBytes) {
+      this.file = file;
+      this.fileBytes = fileBytes;
+    }
+  }
+
+  private static final String SUFFIX = ".mailbox";
+
+  // length + time + sender length
+  private static final int RECORD_OVERHEAD = 4 + 8 + 2;
+
+  //Instance variables **********************************************
+
+  private final Path directory;
+
+  private final long quotaBytes;
+
+  private final int userMemoryBytes;
+
+  private final long totalMemoryBytes;
+
+  private final long totalDiskBytes;
+
+  private final int maxMailboxes;
+
+  private final ConcurrentHashMap<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+
+  private final AtomicLong memoryBytes = new AtomicLong();
+
+  private final AtomicLong diskBytes = new AtomicLong();
+
+  private final LongAdder stored = new LongAdder();
+
+  private final LongAdder refused = new LongAdder();
+
+  private final LongAdder spilled = new LongAdder();
+
+  private final LongAdder delivered = new LongAdder();
+
+  //Constructors ****************************************************
+
+  /**
+   * @param directory where older messages spill to, created if needed, null to keep messages
+   *                  in memory only
+   * @param quotaBytes most bytes of messages kept for one user
+   * @param userMemoryBytes bytes of one user's messages kept in memory before older ones spill
+   * @param totalMemoryBytes most bytes of messages kept in memory for all users together
+   * @param totalDiskBytes most bytes of messages spilled to the directory for all users together
+   * @param maxMailboxes most users with messages waiting
+   * @throws IOException if the directory can not be created or listed
+   */
+  public OfflineMailboxes(Path directory, long quotaBytes, int userMemoryBytes, long totalMemoryBytes,
+                          long totalDiskBytes, int maxMailboxes) throws IOException {
+    if (quotaBytes < 1 || userMemoryBytes < 1 || totalMemoryBytes < 1 || totalDiskBytes < 1 || maxMailboxes < 1) {
+      throw new IllegalArgumentException("Invalid mailbox limits");
+    }
+    this.directory = directory;
+    this.quotaBytes = quotaBytes;
+    this.userMemoryBytes = userMemoryBytes;
+    this.totalMemoryBytes = totalMemoryBytes;
+    this.totalDiskBytes = totalDiskBytes;
+    this.maxMailboxes = maxMailboxes;
+    if (directory != null) {
+      Files.createDirectories(directory);
+      loadSpilled();
+    }
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Keep a message for a user who is not connected
+   * @param toLoginId the recipient
+   * @param fromLoginId the sender
+   * @param text the message text
+   * @return false if the recipient's mailbox is full, or memory is when nothing spills
+   * @throws IOException if older messages could not be spilled, the message is then not kept
+   * @throws IllegalArgumentException if the sender's login id is too long to be stored
+   */
+  public boolean deposit(String toLoginId, String fromLoginId, String text) throws IOException {
+    Message message = new Message(System.currentTimeMillis(), fromLoginId, text);
+    int size = recordSize(message);
+    while (true) {
+      Mailbox box = mailboxes.computeIfAbsent(toLoginId, this::newMailbox);
+      if (box == null) {
+        // as many mailboxes as allowed already
+        refused.increment();
+        return false;
+      }
+      box.lock.lock();
+      try {
+        if (box.retired) {
+          continue;
+        }
+        if (box.fileBytes + box.memoryBytes + size > quotaBytes
+                || (directory == null && memoryBytes.get() + size > totalMemoryBytes)) {
+          refuse(toLoginId, box);
+          return false;
+        }
+        box.memory.add(message);
+        box.memoryBytes += size;
+        memoryBytes.addAndGet(size);
+        boolean kept = true;
+        try {
+          if (directory != null && memoryBytes.get() > totalMemoryBytes) {
+            kept = spill(box, 0, totalDiskBytes);
+          } else if (directory != null && box.memoryBytes > userMemoryBytes) {
+            // spill down to half, so a busy mailbox writes in batches; with the disk budget
+            // spent, messages stay in memory as long as the memory budget allows
+            spill(box, userMemoryBytes / 2, totalDiskBytes);
+          }
+        } catch (IOException e) {
+          unkeep(box, size);
+          throw e;
+        }
+        if (!kept) {
+          // memory and disk budgets both spent
+          unkeep(box, size);
+          refuse(toLoginId, box);
+          return false;
+        }
+        stored.increment();
+        return true;
+      } finally {
+        box.lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Take all the messages kept for a user, emptying the mailbox
+   * @param loginId the user
+   * @return the messages, oldest first
+   * @throws IOException if spilled messages could not be read, they are then kept
+   */
+  public List<Message> collect(String loginId) throws IOException {
+    Mailbox box = mailboxes.get(loginId);
+    if (box == null) {
+      return List.of();
+    }
+    box.lock.lock();
+    try {
+      if (box.retired) {
+        return List.of();
+      }
+      List<Message> messages = new ArrayList<>(box.memory.size());
+      if (box.fileBytes > 0) {
+        readSpilled(box.file, messages);
+        Files.deleteIfExists(box.file);
+        diskBytes.addAndGet(-box.fileBytes);
+        box.fileBytes = 0;
+      }
+      messages.addAll(box.memory);
+      memoryBytes.addAndGet(-box.memoryBytes);
+      box.memory.clear();
+      box.memoryBytes = 0;
+      box.retired = true;
+      mailboxes.remove(loginId, box);
+      delivered.add(messages.size());
+      return messages;
+    } finally {
+      box.lock.unlock();
+    }
+  }
+
+  /**
+   * Spill every message kept in memory, so all of them are still there after a restart.
+   * Nothing is spilled without a directory.
+   * @throws IOException if some mailboxes could not be spilled, the others still are
+   */
+  @Override
+  public void close() throws IOException {
+    if (directory == null) {
+      return;
+    }
+    IOException failure = null;
+    for (Mailbox box : mailboxes.values()) {
+      box.lock.lock();
+      try {
+        // messages already accepted are kept, so disk use may reach the disk and memory
+        // budgets together
+        if (!box.retired && box.memoryBytes > 0) {
+          spill(box, 0, totalDiskBytes + totalMemoryBytes);
+        }
+      } catch (IOException e) {
+        failure = e;
+      } finally {
+        box.lock.unlock();
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * @return messages kept since the server started
+   */
+  public long getStored() {
+    return stored.sum();
+  }
+
+  /**
+   * @return messages refused for a full mailbox
+   */
+  public long getRefused() {
+    return refused.sum();
+  }
+
+  /**
+   * @return messages moved from memory to disk
+   */
+  public long getSpilled() {
+    return spilled.sum();
+  }
+
+  /**
+   * @return messages handed to their recipients
+   */
+  public long getDelivered() {
+    return delivered.sum();
+  }
+
+  @Override
+  public String toString() {
+    return "stored " + getStored() + ", refused " + getRefused() + ", spilled " + getSpilled()
+            + ", delivered " + getDelivered() + ", " + mailboxes.size() + " mailboxes, "
+            + (memoryBytes.get() >> 10) + " KB in memory, " + (diskBytes.get() >> 10) + " KB on disk";
+  }
+
+  /**
+   * @return a new empty mailbox, null if there are as many as allowed
+   */
+  private Mailbox newMailbox(String loginId) {
+    if (mailboxes.size() >= maxMailboxes) {
+      return null;
+    }
+    return new Mailbox(directory == null ? null : fileFor(loginId), 0);
+  }
+
+  /**
+   * Take back the message just added to a mailbox
+   */
+  private void unkeep(Mailbox box, int size) {
+    box.memory.pollLast();
+    box.memoryBytes -= size;
+    memoryBytes.addAndGet(-size);
+  }
+
+  /**
+   * Count a refused message, dropping the mailbox if it holds nothing, so refused deposits to
+   * made up login ids do not use up the mailboxes
+   */
+  private void refuse(String loginId, Mailbox box) {
+    refused.increment();
+    if (box.memory.isEmpty() && box.fileBytes == 0) {
+      box.retired = true;
+      mailboxes.remove(loginId, box);
+    }
+  }
+
+  /**
+   * Find the mailboxes spilled before a restart, counting them against the limits
+   */
+  private void loadSpilled() throws IOException {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        String loginId;
+        try {
+          loginId = new String(Base64.getUrlDecoder().decode(name.substring(0, name.length() - SUFFIX.length())), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+          // not one of ours
+          continue;
+        }
+        long size = Files.size(file);
+        if (size == 0) {
+          Files.delete(file);
+          continue;
+        }
+        mailboxes.put(loginId, new Mailbox(file, size));
+        diskBytes.addAndGet(size);
+      }
+    }
+  }
+
+  private Path fileFor(String loginId) {
+    // login ids may hold any character, not all of them valid in file names
+    return directory.resolve(Base64.getUrlEncoder().withoutPadding()
+            .encodeToString(loginId.getBytes(StandardCharsets.UTF_8)) + SUFFIX);
+  }
+
+  /**
+   * Append the oldest messages in memory to the mailbox's file, all or none of them
+   * @param keepBytes bytes of the newest messages left in memory
+   * @param diskBudget most bytes spilled by all the mailboxes together
+   * @return false, spilling nothing, if the disk budget can not take them
+   */
+  private boolean spill(Mailbox box, int keepBytes, long diskBudget) throws IOException {
+    int bytes = 0;
+    int count = 0;
+    for (Iterator<Message> it = box.memory.iterator(); it.hasNext() && box.memoryBytes - bytes > keepBytes; count++) {
+      bytes += recordSize(it.next());
+    }
+    // reserved before writing, mailboxes spill concurrently
+    if (diskBytes.addAndGet(bytes) > diskBudget) {
+      diskBytes.addAndGet(-bytes);
+      return false;
+    }
+    byte[] records = new byte[bytes];
+    ByteBuffer buffer = ByteBuffer.wrap(records);
+    Iterator<Message> it = box.memory.iterator();
+    for (int i = 0; i < count; i++) {
+      Message message = it.next();
+      int fromLength = Utf8.length(message.fromLoginId);
+      buffer.putInt(recordSize(message) - 4).putLong(message.timeMillis).putShort((short) fromLength);
+      int pos = Utf8.encode(message.fromLoginId, records, buffer.position());
+      buffer.position(Utf8.encode(message.text, records, pos));
+    }
+    buffer.flip();
+
+    try (FileChannel channel = FileChannel.open(box.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+      long size = channel.size();
+      try {
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+      } catch (IOException e) {
+        // no half-written records
+        channel.truncate(size);
+        throw e;
+      }
+      box.fileBytes = size + bytes;
+    } catch (IOException e) {
+      diskBytes.addAndGet(-bytes);
+      throw e;
+    }
+    for (int i = 0; i < count; i++) {
+      box.memory.poll();
+    }
+    box.memoryBytes -= bytes;
+    memoryBytes.addAndGet(-bytes);
+    spilled.add(count);
+    return true;
+  }
+
+  /**
+   * Read the records of a mailbox file, stopping at one cut short by a crash
+   */
+  private static void readSpilled(Path file, List<Message> messages) throws IOException {
+    byte[] records = Files.readAllBytes(file);
+    ByteBuffer buffer = ByteBuffer.wrap(records);
+    while (buffer.remaining() >= RECORD_OVERHEAD) {
+      int length = buffer.getInt();
+      if (length < RECORD_OVERHEAD - 4 || length > buffer.remaining()) {
+        break;
+      }
+      long time = buffer.getLong();
+      int fromLength = buffer.getShort() & 0xFFFF;
+      int textLength = length - (RECORD_OVERHEAD - 4) - fromLength;
+      if (textLength < 0) {
+        break;
+      }
+      int pos = buffer.position();
+      String from = new String(records, pos, fromLength, StandardCharsets.UTF_8);
+      String text = new String(records, pos + fromLength, textLength, StandardCharsets.UTF_8);
+      buffer.position(pos + fromLength + textLength);
+      messages.add(new Message(time, from, text));
+    }
+  }
+
+  /**
+   * @return bytes a message takes, in a file and against the quotas
+   */
+  private static int recordSize(Message message) {
+    int fromLength = Utf8.length(message.fromLoginId);
+    if (fromLength > 0xFFFF) {
+      throw new IllegalArgumentException("Sender login id too long for a mailbox");
+    }
+    return RECORD_OVERHEAD + fromLength + Utf8.length(message.text);
+  }
+}
@@ -0,0 +1,68 @@
+package server;
+
+/**
+ * Bounds of the per-connection outbound queues and what to do when they are reached.
+ */
+public final class OutboundLimits
+{
+  /**
+   * Limits used when none are configured
+   */
+  public static final OutboundLimits DEFAULT = new OutboundLimits(1024, SlowConsumerPolicy.dropOldest, 5000);
+
+  private final int capacity;
+
+  private final SlowConsumerPolicy policy;
+
+  private final long backlogMillis;
+
+  /**
+   * @param capacity most messages queued for one connection
+   * @param policy what to do once the queue is full
+   * @param backlogMillis with the disconnect policy, how long the oldest queued message may wait
+   */
+  public OutboundLimits(int capacity, SlowConsumerPolicy policy, long backlogMillis) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Queue capacity must be at least 1");
+    }
+    if (policy == null) {
+      throw new IllegalArgumentException("No slow consumer policy provided");
+    }
+    if (backlogMillis < 1) {
+      throw new IllegalArgumentException("Backlog limit must be at least 1 ms");
+    }
+    this.capacity = capacity;
+    this.policy = policy;
+    this.backlogMillis = backlogMillis;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public SlowConsumerPolicy getPolicy() {
+    return policy;
+  }
+
+  public long getBacklogMillis() {
+    return backlogMillis;
+  }
+
+  public OutboundLimits withCapacity(int capacity) {
+    return new OutboundLimits(capacity, policy, backlogMillis);
+  }
+
+  public OutboundLimits withPolicy(SlowConsumerPolicy policy) {
+    return new OutboundLimits(capacity, policy, backlogMillis);
+  }
+
+  public OutboundLimits withBacklogMillis(long backlogMillis) {
+    return new OutboundLimits(capacity, policy, backlogMillis);
+  }
+
+  @Override
+  public String toString() {
+    return "capacity " + capacity + ", policy " + policy
+            + (policy == SlowConsumerPolicy.disconnect ? ", backlog limit " + backlogMillis + " ms" : "");
+  }
+}
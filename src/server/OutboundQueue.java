@@ -0,0 +1,216 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Bounded queue of frames waiting to be written to one connection, filled by any thread sending
+ * to the client and drained by the connection's writer. Senders never block: once the queue is
+ * full the configured SlowConsumerPolicy decides what gives. Frames that will never be taken
+ * (dropped, evicted, or still queued at close) are handed to a discard hook, so frames holding
+ * shared resources can release them.
+ * A lock rather than synchronized is used so virtual-thread writers never pin their carrier.
+ *
+ * @param <T> the frame type
+ */
+final class OutboundQueue<T>
+{
+  private final OutboundLimits limits;
+
+  private final OutboundStats stats;
+
+  private final long backlogNanos;
+
+  private final Consumer<? super T> discard;
+
+  private final ReentrantLock lock = new ReentrantLock();
+
+  private final Condition notEmpty = lock.newCondition();
+
+  private final Condition drained = lock.newCondition();
+
+  // preallocated ring of frames and the time each was queued
+  private final Object[] items;
+
+  private final long[] queuedAt;
+
+  private int head;
+
+  private int size;
+
+  private boolean closed;
+
+  // a frame was taken and its writer did not report it written yet
+  private boolean writing;
+
+  OutboundQueue(OutboundLimits limits, OutboundStats stats) {
+    this(limits, stats, item -> {});
+  }
+
+  /**
+   * @param discard called with each frame that will never be taken
+   */
+  OutboundQueue(OutboundLimits limits, OutboundStats stats, Consumer<? super T> discard) {
+    this.limits = limits;
+    this.stats = stats;
+    this.discard = discard;
+    this.backlogNanos = TimeUnit.MILLISECONDS.toNanos(limits.getBacklogMillis());
+    this.items = new Object[limits.getCapacity()];
+    this.queuedAt = new long[limits.getCapacity()];
+  }
+
+  /**
+   * Queue a frame, applying the slow consumer policy if the client is behind
+   * @param item the frame
+   * @return false if the connection must be closed because the client fell too far behind
+   */
+  boolean offer(T item) {
+    long now = System.nanoTime();
+    lock.lock();
+    try {
+      if (closed) {
+        discard.accept(item);
+        return true;
+      }
+      SlowConsumerPolicy policy = limits.getPolicy();
+      if (policy == SlowConsumerPolicy.disconnect && size > 0 && now - queuedAt[head] > backlogNanos) {
+        stats.clientDisconnected();
+        discard.accept(item);
+        return false;
+      }
+      if (size == items.length) {
+        if (policy == SlowConsumerPolicy.dropNewest) {
+          stats.messageDropped();
+          discard.accept(item);
+          return true;
+        } else if (policy == SlowConsumerPolicy.disconnect) {
+          stats.clientDisconnected();
+          discard.accept(item);
+          return false;
+        }
+        // dropOldest
+        discard.accept(removeHead());
+        stats.messageEvicted();
+      }
+      int tail = (head + size) % items.length;
+      items[tail] = item;
+      queuedAt[tail] = now;
+      size++;
+      notEmpty.signal();
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the oldest frame, or null if the queue is empty
+   */
+  T poll() {
+    lock.lock();
+    try {
+      if (size == 0) {
+        return null;
+      }
+      writing = true;
+      return removeHead();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Wait for a frame
+   * @return the oldest frame, or null once the queue is closed
+   * @throws InterruptedException if interrupted while waiting
+   */
+  T take() throws InterruptedException {
+    lock.lock();
+    try {
+      while (size == 0 && !closed) {
+        notEmpty.await();
+      }
+      if (closed) {
+        return null;
+      }
+      writing = true;
+      return removeHead();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Report the frame last taken as written out, called by writers that want awaitDrained to work
+   */
+  void written() {
+    lock.lock();
+    try {
+      writing = false;
+      if (size == 0) {
+        drained.signalAll();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Wait until every queued frame was written out
+   * @param deadline System.nanoTime() after which to give up
+   * @return false if frames were still waiting at the deadline
+   * @throws InterruptedException if interrupted while waiting
+   */
+  boolean awaitDrained(long deadline) throws InterruptedException {
+    lock.lock();
+    try {
+      while (!closed && (size > 0 || writing)) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          return false;
+        }
+        drained.awaitNanos(remaining);
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Discard queued frames and wake up a waiting writer, later offers are ignored
+   */
+  void close() {
+    lock.lock();
+    try {
+      closed = true;
+      while (size > 0) {
+        discard.accept(removeHead());
+      }
+      notEmpty.signalAll();
+      drained.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  boolean isEmpty() {
+    lock.lock();
+    try {
+      return size == 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private T removeHead() {
+    T item = (T) items[head];
+    items[head] = null;
+    head = (head + 1) % items.length;
+    size--;
+    return item;
+  }
+}
@@ -0,0 +1,53 @@
+package server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of what the outbound queues of a server had to give up on.
+ */
+public final class OutboundStats
+{
+  private final LongAdder dropped = new LongAdder();
+
+  private final LongAdder evicted = new LongAdder();
+
+  private final LongAdder disconnected = new LongAdder();
+
+  void messageDropped() {
+    dropped.increment();
+  }
+
+  void messageEvicted() {
+    evicted.increment();
+  }
+
+  void clientDisconnected() {
+    disconnected.increment();
+  }
+
+  /**
+   * @return messages not queued because the queue was full (dropNewest)
+   */
+  public long getDropped() {
+    return dropped.sum();
+  }
+
+  /**
+   * @return queued messages evicted to make room for newer ones (dropOldest)
+   */
+  public long getEvicted() {
+    return evicted.sum();
+  }
+
+  /**
+   * @return connections closed for falling behind (disconnect)
+   */
+  public long getDisconnected() {
+    return disconnected.sum();
+  }
+
+  @Override
+  public String toString() {
+    return "dropped " + getDropped() + ", evicted " + getEvicted() + ", slow clients disconnected " + getDisconnected();
+  }
+}
@@ -0,0 +1,12 @@
+package server;
+
+/**
+ * What the server does with a message from a client that is over its rate limits.
+ */
+public enum OverLimitAction
+{
+  delay, // hold the client's connection until the message fits (ocsf and virtual engines, drop on nio)
+  drop, // discard the message
+  warn, // deliver the message anyway, telling the client it is over the limit
+  disconnect, // close the connection
+}
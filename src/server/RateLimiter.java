@@ -0,0 +1,216 @@
+package server;
+
+import common.Utf8;
+import utils.AsyncLogger;
+import utils.LogLevel;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Enforces RateLimits: a token bucket per client for its messages and another for their bytes,
+ * checked before a message is handled (and fanned out), plus one bucket shared by every login.
+ * Clients over a limit are told once, until they are back under it.
+ */
+public class RateLimiter
+{
+  // key of a client connection's buckets
+  private static final String CLIENT_BUCKETS_KEY = "rateLimits";
+
+  // a delayed message gives up and is dropped after this long
+  private static final long MAX_DELAY_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+  /**
+   * The buckets of one client connection
+   */
+  private static final class ClientBuckets
+  {
+    final TokenBucket messages;
+    final TokenBucket bytes;
+    volatile boolean told;
+
+    ClientBuckets(RateLimits limits) {
+      messages = limits.getMessagesPerSecond() > 0 ? new TokenBucket(limits.getMessagesPerSecond()) : null;
+      bytes = limits.getBytesPerSecond() > 0 ? new TokenBucket(limits.getBytesPerSecond()) : null;
+    }
+
+    /**
+     * @return 0 if the message fits, otherwise how long (ns) until it would
+     */
+    long tryTake(String msg) {
+      long wait = messages == null ? 0 : messages.tryTake(1);
+      if (wait == 0 && bytes != null) {
+        wait = bytes.tryTake(Utf8.length(msg));
+        if (wait != 0 && messages != null) {
+          // the message is refused after all, it must not count
+          messages.giveBack(1);
+        }
+      }
+      return wait;
+    }
+  }
+
+  //Instance variables **********************************************
+
+  private final RateLimits limits;
+
+  private final OverLimitAction action;
+
+  private final TokenBucket logins;
+
+  private final AsyncLogger logger;
+
+  private final LongAdder delayed = new LongAdder();
+
+  private final LongAdder dropped = new LongAdder();
+
+  private final LongAdder warned = new LongAdder();
+
+  private final LongAdder disconnected = new LongAdder();
+
+  private final LongAdder loginsRefused = new LongAdder();
+
+  //Constructors ****************************************************
+
+  /**
+   * @param limits the limits enforced
+   * @param canDelay whether the thread handling a message may wait, false where it is shared by
+   *                 many clients (nio event loops): delay then drops instead
+   * @param logger where clients going over their limits are logged
+   */
+  public RateLimiter(RateLimits limits, boolean canDelay, AsyncLogger logger) {
+    this.limits = limits;
+    this.action = (limits.getAction() == OverLimitAction.delay && !canDelay) ? OverLimitAction.drop : limits.getAction();
+    this.logins = limits.getLoginsPerSecond() > 0 ? new TokenBucket(limits.getLoginsPerSecond()) : null;
+    this.logger = logger;
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Check a message against its client's limits, applying the over limit action
+   * @param msg the message received
+   * @param client the client it came from
+   * @return whether the message should be handled
+   */
+  public boolean admit(String msg, ClientConnection client) {
+    if (!limits.limitsClients()) {
+      return true;
+    }
+    ClientBuckets buckets = (ClientBuckets) client.getInfo(CLIENT_BUCKETS_KEY);
+    if (buckets == null) {
+      buckets = new ClientBuckets(limits);
+      client.setInfo(CLIENT_BUCKETS_KEY, buckets);
+    }
+    long wait = buckets.tryTake(msg);
+    if (wait == 0) {
+      buckets.told = false;
+      return true;
+    }
+
+    switch (action) {
+      case delay:
+        delayed.increment();
+        long deadline = System.nanoTime() + MAX_DELAY_NANOS;
+        while (wait > 0) {
+          if (System.nanoTime() + wait - deadline > 0) {
+            dropped.increment();
+            tell(buckets, client, "Message dropped: you are sending too fast.");
+            return false;
+          }
+          LockSupport.parkNanos(wait);
+          wait = buckets.tryTake(msg);
+        }
+        return true;
+      case warn:
+        warned.increment();
+        tell(buckets, client, "Slow down: you are sending faster than this server allows.");
+        return true;
+      case disconnect:
+        disconnected.increment();
+        logger.log(LogLevel.warn, "Disconnecting {}: over its rate limits", String.valueOf(client));
+        try {
+          client.sendToClient("Disconnected: you are sending faster than this server allows.");
+          client.close();
+        } catch (IOException ignored) {}
+        return false;
+      default:
+        dropped.increment();
+        tell(buckets, client, "Messages dropped: you are sending faster than this server allows.");
+        return false;
+    }
+  }
+
+  /**
+   * Take a login from the login rate cap
+   * @return false if the login should be refused
+   */
+  public boolean admitLogin() {
+    if (logins == null || logins.tryTake(1) == 0) {
+      return true;
+    }
+    loginsRefused.increment();
+    return false;
+  }
+
+  public RateLimits getLimits() {
+    return limits;
+  }
+
+  /**
+   * @return messages held until they fit (they may still have been dropped after a while)
+   */
+  public long getDelayed() {
+    return delayed.sum();
+  }
+
+  /**
+   * @return messages discarded for being over a limit
+   */
+  public long getDropped() {
+    return dropped.sum();
+  }
+
+  /**
+   * @return messages delivered over a limit, with a warning
+   */
+  public long getWarned() {
+    return warned.sum();
+  }
+
+  /**
+   * @return connections closed for going over a limit
+   */
+  public long getDisconnected() {
+    return disconnected.sum();
+  }
+
+  /**
+   * @return logins refused by the login rate cap
+   */
+  public long getLoginsRefused() {
+    return loginsRefused.sum();
+  }
+
+  @Override
+  public String toString() {
+    return "delayed " + getDelayed() + ", dropped " + getDropped() + ", warned " + getWarned()
+            + ", clients disconnected " + getDisconnected() + ", logins refused " + getLoginsRefused();
+  }
+
+  /**
+   * Tell a client it is over its limits, once until it is back under them
+   */
+  private void tell(ClientBuckets buckets, ClientConnection client, String notice) {
+    if (buckets.told) {
+      return;
+    }
+    buckets.told = true;
+    logger.log(LogLevel.info, "{} is over its rate limits", String.valueOf(client));
+    try {
+      client.sendToClient(notice);
+    } catch (IOException ignored) {}
+  }
+}
@@ -0,0 +1,88 @@
+package server;
+
+/**
+ * Rates clients may send at and what to do with what goes over them. A rate of 0 is no limit.
+ */
+public final class RateLimits
+{
+  /**
+   * Limits used when none are configured: none
+   */
+  public static final RateLimits NONE = new RateLimits(0, 0, 0, OverLimitAction.delay);
+
+  private final int messagesPerSecond;
+
+  private final int bytesPerSecond;
+
+  private final int loginsPerSecond;
+
+  private final OverLimitAction action;
+
+  /**
+   * @param messagesPerSecond most messages (chat lines and commands) a client sends per second, bursts of one second's worth
+   * @param bytesPerSecond most UTF-8 bytes of messages a client sends per second, bursts of one second's worth
+   * @param loginsPerSecond most logins accepted per second from all clients together, further ones are refused
+   * @param action what to do with a message over the client's limits
+   */
+  public RateLimits(int messagesPerSecond, int bytesPerSecond, int loginsPerSecond, OverLimitAction action) {
+    if (messagesPerSecond < 0 || bytesPerSecond < 0 || loginsPerSecond < 0) {
+      throw new IllegalArgumentException("Rate limits can not be negative");
+    }
+    if (action == null) {
+      throw new IllegalArgumentException("No over limit action provided");
+    }
+    this.messagesPerSecond = messagesPerSecond;
+    this.bytesPerSecond = bytesPerSecond;
+    this.loginsPerSecond = loginsPerSecond;
+    this.action = action;
+  }
+
+  public int getMessagesPerSecond() {
+    return messagesPerSecond;
+  }
+
+  public int getBytesPerSecond() {
+    return bytesPerSecond;
+  }
+
+  public int getLoginsPerSecond() {
+    return loginsPerSecond;
+  }
+
+  public OverLimitAction getAction() {
+    return action;
+  }
+
+  /**
+   * @return whether any client message is limited
+   */
+  public boolean limitsClients() {
+    return messagesPerSecond > 0 || bytesPerSecond > 0;
+  }
+
+  public RateLimits withMessagesPerSecond(int messagesPerSecond) {
+    return new RateLimits(messagesPerSecond, bytesPerSecond, loginsPerSecond, action);
+  }
+
+  public RateLimits withBytesPerSecond(int bytesPerSecond) {
+    return new RateLimits(messagesPerSecond, bytesPerSecond, loginsPerSecond, action);
+  }
+
+  public RateLimits withLoginsPerSecond(int loginsPerSecond) {
+    return new RateLimits(messagesPerSecond, bytesPerSecond, loginsPerSecond, action);
+  }
+
+  public RateLimits withAction(OverLimitAction action) {
+    return new RateLimits(messagesPerSecond, bytesPerSecond, loginsPerSecond, action);
+  }
+
+  @Override
+  public String toString() {
+    return "messages/s " + describe(messagesPerSecond) + ", bytes/s " + describe(bytesPerSecond)
+            + ", logins/s " + describe(loginsPerSecond) + (limitsClients() ? ", over limit " + action : "");
+  }
+
+  private static String describe(int rate) {
+    return rate == 0 ? "unlimited" : String.valueOf(rate);
+  }
+}
@@ -0,0 +1,107 @@
+package server;
+
+import common.EncodedMessage;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The last messages broadcast in a room, kept in memory in a fixed-size ring allocated up front.
+ * Writers claim consecutive positions without locking, and never wait for each other unless
+ * one laps another still writing the same slot; readers never wait, taking a snapshot while
+ * writers go on and skipping any slot overwritten or still being written during the read.
+ * Messages are kept encoded, so sending them again costs no encoding.
+ */
+public class RecentMessages
+{
+  // stamp of a slot while its message is being replaced
+  private static final long WRITING = Long.MIN_VALUE;
+
+  //Instance variables **********************************************
+
+  private final AtomicReferenceArray<EncodedMessage> messages;
+
+  /**
+   * Per slot: the position of the message it holds, or WRITING
+   */
+  private final AtomicLongArray stamps;
+
+  private final int capacity;
+
+  /**
+   * Next position writers claim
+   */
+  private final AtomicLong next = new AtomicLong();
+
+  //Constructors ****************************************************
+
+  /**
+   * @param capacity number of messages kept
+   */
+  public RecentMessages(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("At least one recent message must be kept");
+    }
+    this.capacity = capacity;
+    this.messages = new AtomicReferenceArray<>(capacity);
+    this.stamps = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      // what the slot would hold one lap before position i, so the first writer finds it free
+      stamps.set(i, i - capacity);
+    }
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Keep a message, replacing the oldest one once the ring is full
+   * @param message the message as it was broadcast
+   */
+  public void add(EncodedMessage message) {
+    long position = next.getAndIncrement();
+    int index = (int) (position % capacity);
+    // a writer a whole lap behind may still own the slot. Overwriting its message would let
+    // readers see a stamp that does not match, so wait: it only has two stores left, but may
+    // have been descheduled, so give it the CPU rather than spin. This needs capacity
+    // concurrent writers in one room, in practice it never happens.
+    while (!stamps.compareAndSet(index, position - capacity, WRITING)) {
+      Thread.yield();
+    }
+    messages.set(index, message);
+    stamps.set(index, position);
+  }
+
+  /**
+   * Copy the latest messages, oldest first
+   * @param count number of messages wanted, at most the capacity is returned
+   * @param target list the messages are added to
+   * @return number of messages added
+   */
+  public int snapshot(int count, List<EncodedMessage> target) {
+    long end = next.get();
+    long start = Math.max(0, end - Math.min(count, capacity));
+    int added = 0;
+    for (long position = start; position < end; position++) {
+      int index = (int) (position % capacity);
+      if (stamps.get(index) != position) {
+        continue;
+      }
+      EncodedMessage message = messages.get(index);
+      // the stamp did not move while the message was read: it is the one at that position
+      if (stamps.get(index) == position) {
+        target.add(message);
+        added++;
+      }
+    }
+    return added;
+  }
+
+  /**
+   * @return number of messages kept
+   */
+  public int getCapacity() {
+    return capacity;
+  }
+}
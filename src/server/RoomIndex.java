@@ -0,0 +1,65 @@
+package server;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Server-wide index from room name to the connections subscribed to it, so a room message
+ * only costs as much as the room's size. Safe for concurrent joins, leaves and fan-outs.
+ */
+public class RoomIndex
+{
+  private final ConcurrentHashMap<String, Set<ClientConnection>> membersByRoom = new ConcurrentHashMap<>();
+
+  /**
+   * Subscribe a connection to a room, creating the room if needed
+   * @param room the room name
+   * @param client the joining connection
+   * @return false if the connection was already a member
+   */
+  public boolean join(String room, ClientConnection client) {
+    boolean[] added = new boolean[1];
+    // the member is added inside compute(), so a leave can not drop the set in between
+    membersByRoom.compute(room, (name, members) -> {
+      if (members == null) {
+        members = ConcurrentHashMap.newKeySet();
+      }
+      added[0] = members.add(client);
+      return members;
+    });
+    return added[0];
+  }
+
+  /**
+   * Unsubscribe a connection from a room, dropping the room once empty
+   * @param room the room name
+   * @param client the leaving connection
+   * @return false if the connection was not a member
+   */
+  public boolean leave(String room, ClientConnection client) {
+    boolean[] removed = new boolean[1];
+    // compute() runs atomically per room, as joins do, so nobody joins the set while it is dropped
+    membersByRoom.computeIfPresent(room, (name, members) -> {
+      removed[0] = members.remove(client);
+      return members.isEmpty() ? null : members;
+    });
+    return removed[0];
+  }
+
+  /**
+   * @param room the room name
+   * @return live view of the room's members, empty if the room does not exist
+   */
+  public Set<ClientConnection> members(String room) {
+    Set<ClientConnection> members = membersByRoom.get(room);
+    return members == null ? Collections.emptySet() : members;
+  }
+
+  /**
+   * @return number of rooms with at least one member
+   */
+  public int size() {
+    return membersByRoom.size();
+  }
+}
@@ -0,0 +1,490 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Inverted index of the chat history: each term maps to the sequence numbers of the journal
+ * messages holding it. Messages are added to a small in-memory segment, frozen once full into
+ * sorted terms with delta and varint compressed posting lists. Segments are size-tiered: every
+ * MERGE_FACTOR segments of a size are merged into one of the next size, dropping messages the
+ * journal no longer keeps. Freezing and merging run on a background thread, off the threads
+ * adding messages; a full active segment stays searchable until its frozen one replaces it.
+ * Segments hold ever newer messages, so a search walks them newest first and stops as soon as
+ * it has enough results, older history is never looked at.
+ * <p>
+ * Terms are runs of letters and digits, lowercased. A search matches messages holding every
+ * term asked for.
+ */
+public class SearchIndex
+{
+  /**
+   * Messages indexed in memory before they are frozen into a segment
+   */
+  private static final int ACTIVE_MESSAGES = 1024;
+
+  /**
+   * Number of segments of the same size merged into one
+   */
+  private static final int MERGE_FACTOR = 4;
+
+  /**
+   * Active segments waiting to be frozen before adding messages waits for the freezing thread
+   */
+  private static final int MAX_SEALED = 16;
+
+  // terms outside these lengths are not indexed
+  private static final int MIN_TERM_LENGTH = 2;
+  private static final int MAX_TERM_LENGTH = 64;
+
+  /**
+   * A posting list being filled, ascending sequence numbers
+   */
+  private static final class Postings
+  {
+    long[] sequences = new long[4];
+    int size;
+
+    void add(long sequence) {
+      if (size == sequences.length) {
+        sequences = Arrays.copyOf(sequences, size * 2);
+      }
+      // messages from different threads may arrive a little out of order
+      int pos = size;
+      while (pos > 0 && sequences[pos - 1] > sequence) {
+        sequences[pos] = sequences[pos - 1];
+        pos--;
+      }
+      sequences[pos] = sequence;
+      size++;
+    }
+  }
+
+  /**
+   * Frozen postings of a range of messages, never modified
+   */
+  private static final class Segment
+  {
+    // tier of the segment, 0 when frozen from the active segment, +1 for each merge
+    final int level;
+    final long lastSequence;
+    // sorted, with the compressed posting list of each term at the same index
+    final String[] terms;
+    final byte[][] postings;
+
+    Segment(int level, long lastSequence, String[] terms, byte[][] postings) {
+      this.level = level;
+      this.lastSequence = lastSequence;
+      this.terms = terms;
+      this.postings = postings;
+    }
+
+    /**
+     * @return the sequence numbers holding the term, ascending, empty if none
+     */
+    long[] lookup(String term) {
+      int index = Arrays.binarySearch(terms, term);
+      return index < 0 ? new long[0] : decode(postings[index]);
+    }
+  }
+
+  /**
+   * A full active segment waiting to be frozen, no longer modified
+   */
+  private static final class Sealed
+  {
+    final Map<String, Postings> postings;
+    final long lastSequence;
+
+    Sealed(Map<String, Postings> postings, long lastSequence) {
+      this.postings = postings;
+      this.lastSequence = lastSequence;
+    }
+  }
+
+  //Instance variables **********************************************
+
+  private final ReentrantLock lock = new ReentrantLock();
+
+  // signalled each time a sealed segment is replaced by its frozen one
+  private final Condition frozen = lock.newCondition();
+
+  // freezes and merges segments, one at a time, in the order they were sealed
+  private final ExecutorService freezer = Executors.newSingleThreadExecutor(task -> {
+    Thread thread = new Thread(task, "search-index");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private Map<String, Postings> active = new HashMap<>();
+
+  private long activeLast = -1;
+
+  private int activeCount;
+
+  /**
+   * Active segments waiting to be frozen, oldest first. Replaced under the lock, never modified.
+   */
+  private List<Sealed> sealed = List.of();
+
+  /**
+   * Frozen segments, oldest first. Replaced by the freezing thread only, never modified, so
+   * searches read it unlocked.
+   */
+  private volatile List<Segment> segments = List.of();
+
+  //Instance methods ************************************************
+
+  /**
+   * Index a message
+   * @param sequence its sequence number in the journal
+   * @param text the message text
+   * @param firstKept sequence number of the oldest message still in the journal, older ones are
+   *                  dropped from the index when segments are merged
+   */
+  public void add(long sequence, String text, long firstKept) {
+    Set<String> terms = terms(text);
+    lock.lock();
+    try {
+      activeLast = Math.max(activeLast, sequence);
+      activeCount++;
+      for (String term : terms) {
+        active.computeIfAbsent(term, t -> new Postings()).add(sequence);
+      }
+      if (activeCount >= ACTIVE_MESSAGES) {
+        Sealed full = new Sealed(active, activeLast);
+        List<Sealed> updated = new ArrayList<>(sealed);
+        updated.add(full);
+        sealed = List.copyOf(updated);
+        active = new HashMap<>();
+        activeCount = 0;
+        activeLast = -1;
+        freezer.execute(() -> freeze(full, firstKept));
+      }
+      // the freezing thread fell far behind, hold the message until it catches up
+      while (sealed.size() > MAX_SEALED) {
+        frozen.awaitUninterruptibly();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Find the newest messages holding every term of a query
+   * @param query the terms searched for
+   * @param limit most sequence numbers returned
+   * @return sequence numbers of the matching messages, newest first, empty if the query holds
+   *         no term
+   */
+  public long[] search(String query, int limit) {
+    Set<String> terms = terms(query);
+    if (terms.isEmpty() || limit < 1) {
+      return new long[0];
+    }
+    // room for the results of two segments, the best limit of them are kept after each
+    long[] results = new long[limit * 2];
+    int found;
+
+    List<Sealed> full;
+    List<Segment> frozen;
+    lock.lock();
+    try {
+      // taken together with the active segment, so no message sealed or frozen meanwhile is
+      // missed or found twice
+      full = sealed;
+      frozen = segments;
+      found = intersectNewestFirst(lookup(active, terms), results, 0, limit);
+    } finally {
+      lock.unlock();
+    }
+
+    for (int i = full.size() - 1; i >= 0 && found < limit; i--) {
+      found = intersectNewestFirst(lookup(full.get(i).postings, terms), results, found, limit);
+      if (found >= limit) {
+        sortNewestFirst(results, found);
+        found = limit;
+      }
+    }
+
+    for (int i = frozen.size() - 1; i >= 0; i--) {
+      Segment segment = frozen.get(i);
+      // older segments only hold older messages, but for the few indexed late
+      if (found == limit && segment.lastSequence < results[limit - 1]) {
+        break;
+      }
+      List<long[]> lists = new ArrayList<>(terms.size());
+      for (String term : terms) {
+        lists.add(segment.lookup(term));
+      }
+      found = intersectNewestFirst(lists, results, found, limit);
+      if (found >= limit) {
+        sortNewestFirst(results, found);
+        found = limit;
+      }
+    }
+    sortNewestFirst(results, found);
+    return Arrays.copyOf(results, found);
+  }
+
+  /**
+   * @return number and size of the frozen segments, for the server's statistics
+   */
+  @Override
+  public String toString() {
+    List<Segment> frozen = segments;
+    long postingBytes = 0;
+    for (Segment segment : frozen) {
+      for (byte[] postings : segment.postings) {
+        postingBytes += postings.length;
+      }
+    }
+    return frozen.size() + " segments, " + (postingBytes >> 10) + " KB of postings";
+  }
+
+  /**
+   * Turn a sealed active segment into a frozen one, then merge segments of the same level.
+   * Runs on the freezing thread, the only one replacing the frozen segments.
+   */
+  private void freeze(Sealed full, long firstKept) {
+    String[] terms = full.postings.keySet().toArray(new String[0]);
+    Arrays.sort(terms);
+    byte[][] postings = new byte[terms.length][];
+    for (int i = 0; i < terms.length; i++) {
+      Postings list = full.postings.get(terms[i]);
+      postings[i] = encode(list.sequences, list.size);
+    }
+    List<Segment> updated = new ArrayList<>(segments);
+    updated.add(new Segment(0, full.lastSequence, terms, postings));
+    lock.lock();
+    try {
+      segments = List.copyOf(updated);
+      sealed = List.copyOf(sealed.subList(1, sealed.size()));
+      frozen.signalAll();
+    } finally {
+      lock.unlock();
+    }
+
+    // segments entirely older than the journal are gone for good
+    boolean changed = updated.removeIf(segment -> segment.lastSequence < firstKept);
+    int size = updated.size();
+    while (size >= MERGE_FACTOR && sameLevel(updated, size - MERGE_FACTOR, size)) {
+      Segment merged = merge(updated.subList(size - MERGE_FACTOR, size), firstKept);
+      updated.subList(size - MERGE_FACTOR, size).clear();
+      updated.add(merged);
+      size = updated.size();
+      changed = true;
+    }
+    if (changed) {
+      // the same messages but those the journal dropped, searches may see either list
+      segments = List.copyOf(updated);
+    }
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * @return the distinct terms of a text, in order of appearance
+   */
+  static Set<String> terms(String text) {
+    Set<String> terms = new LinkedHashSet<>();
+    int length = text.length();
+    int i = 0;
+    while (i < length) {
+      while (i < length && !Character.isLetterOrDigit(text.charAt(i))) {
+        i++;
+      }
+      int start = i;
+      while (i < length && Character.isLetterOrDigit(text.charAt(i))) {
+        i++;
+      }
+      int termLength = i - start;
+      if (termLength >= MIN_TERM_LENGTH && termLength <= MAX_TERM_LENGTH) {
+        terms.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+      }
+    }
+    return terms;
+  }
+
+  /**
+   * @return the posting list of each term in an active segment, ascending, empty if none
+   */
+  private static List<long[]> lookup(Map<String, Postings> active, Set<String> terms) {
+    List<long[]> lists = new ArrayList<>(terms.size());
+    for (String term : terms) {
+      Postings postings = active.get(term);
+      lists.add(postings == null ? new long[0] : Arrays.copyOf(postings.sequences, postings.size));
+    }
+    return lists;
+  }
+
+  private static boolean sameLevel(List<Segment> segments, int from, int to) {
+    int level = segments.get(from).level;
+    for (int i = from + 1; i < to; i++) {
+      if (segments.get(i).level != level) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Merge consecutive segments, oldest first, into one of the next level
+   */
+  private static Segment merge(List<Segment> parts, long firstKept) {
+    // sorted by term, as segments keep them
+    Map<String, List<long[]>> byTerm = new TreeMap<>();
+    for (Segment part : parts) {
+      for (int i = 0; i < part.terms.length; i++) {
+        byTerm.computeIfAbsent(part.terms[i], t -> new ArrayList<>()).add(decode(part.postings[i]));
+      }
+    }
+    List<String> terms = new ArrayList<>(byTerm.size());
+    List<byte[]> postings = new ArrayList<>(byTerm.size());
+    for (Map.Entry<String, List<long[]>> entry : byTerm.entrySet()) {
+      int total = 0;
+      for (long[] list : entry.getValue()) {
+        total += list.length;
+      }
+      long[] joined = new long[total];
+      int size = 0;
+      for (long[] list : entry.getValue()) {
+        for (long sequence : list) {
+          if (sequence >= firstKept) {
+            joined[size++] = sequence;
+          }
+        }
+      }
+      // parts are in order, their lists concatenate sorted but for the few messages indexed
+      // late, just after a segment was frozen
+      if (!ascending(joined, size)) {
+        Arrays.sort(joined, 0, size);
+      }
+      if (size > 0) {
+        terms.add(entry.getKey());
+        postings.add(encode(joined, size));
+      }
+    }
+    long lastSequence = -1;
+    for (Segment part : parts) {
+      lastSequence = Math.max(lastSequence, part.lastSequence);
+    }
+    return new Segment(parts.get(0).level + 1, lastSequence, terms.toArray(new String[0]), postings.toArray(new byte[0][]));
+  }
+
+  private static boolean ascending(long[] sequences, int size) {
+    for (int i = 1; i < size; i++) {
+      if (sequences[i - 1] > sequences[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void sortNewestFirst(long[] sequences, int size) {
+    Arrays.sort(sequences, 0, size);
+    for (int i = 0, j = size - 1; i < j; i++, j--) {
+      long sequence = sequences[i];
+      sequences[i] = sequences[j];
+      sequences[j] = sequence;
+    }
+  }
+
+  /**
+   * Walk sorted lists from their ends, adding the sequence numbers found in all of them
+   * @param limit most sequence numbers added by this walk
+   * @return the number of results after this walk
+   */
+  private static int intersectNewestFirst(List<long[]> lists, long[] results, int found, int limit) {
+    int end = found + limit;
+    int[] positions = new int[lists.size()];
+    for (int i = 0; i < positions.length; i++) {
+      positions[i] = lists.get(i).length - 1;
+      if (positions[i] < 0) {
+        return found;
+      }
+    }
+    while (found < end) {
+      // the smallest of the current heads is the newest candidate all lists may share
+      long candidate = Long.MAX_VALUE;
+      for (int i = 0; i < positions.length; i++) {
+        candidate = Math.min(candidate, lists.get(i)[positions[i]]);
+      }
+      boolean everywhere = true;
+      for (int i = 0; i < positions.length; i++) {
+        long[] list = lists.get(i);
+        while (positions[i] >= 0 && list[positions[i]] > candidate) {
+          positions[i]--;
+        }
+        if (positions[i] < 0) {
+          return found;
+        }
+        everywhere &= list[positions[i]] == candidate;
+      }
+      if (everywhere) {
+        results[found++] = candidate;
+        for (int i = 0; i < positions.length; i++) {
+          if (--positions[i] < 0) {
+            return found;
+          }
+        }
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Compress ascending sequence numbers: the first one, then each gap, as unsigned varints
+   */
+  private static byte[] encode(long[] sequences, int size) {
+    byte[] buffer = new byte[size * 10];
+    int pos = 0;
+    long previous = 0;
+    for (int i = 0; i < size; i++) {
+      long value = sequences[i] - previous;
+      previous = sequences[i];
+      while ((value & ~0x7FL) != 0) {
+        buffer[pos++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      buffer[pos++] = (byte) value;
+    }
+    return Arrays.copyOf(buffer, pos);
+  }
+
+  private static long[] decode(byte[] encoded) {
+    int count = 0;
+    for (byte b : encoded) {
+      if ((b & 0x80) == 0) {
+        count++;
+      }
+    }
+    long[] sequences = new long[count];
+    long previous = 0;
+    int pos = 0;
+    for (int i = 0; i < count; i++) {
+      long value = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = encoded[pos++];
+        value |= (long) (b & 0x7F) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      previous += value;
+      sequences[i] = previous;
+    }
+    return sequences;
+  }
+}
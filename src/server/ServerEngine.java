@@ -0,0 +1,11 @@
+package server;
+
+/**
+ * Transport engines EchoServer can run on, selected at startup.
+ */
+public enum ServerEngine
+{
+  ocsf, // OCSF AbstractServer, one platform thread per connection
+  nio, // java.nio selector event loops
+  virtual, // blocking sockets, one virtual thread per connection
+}
@@ -0,0 +1,64 @@
+package server;
+
+/**
+ * Hooks a server transport engine calls into, matching the hook methods of OCSF's AbstractServer.
+ * EchoServer implements them once and every engine drives them.
+ */
+public interface ServerHandler
+{
+  /**
+   * Handles a message received from a client.
+   *
+   * @param msg the message received from the client.
+   * @param client the connection from which the message originated.
+   */
+  void handleMessageFromClient(Object msg, ClientConnection client);
+
+  /**
+   * Called each time a new client connection is accepted.
+   * @param client the connection connected to the client.
+   */
+  void clientConnected(ClientConnection client);
+
+  /**
+   * Called each time a client disconnects.
+   * @param client the connection with the client.
+   */
+  void clientDisconnected(ClientConnection client);
+
+  /**
+   * Called each time an exception is thrown by a client connection.
+   * @param client the client that raised the exception.
+   * @param exception the exception raised.
+   */
+  void clientException(ClientConnection client, Throwable exception);
+
+  /**
+   * Called when the server stops accepting connections because an exception was raised.
+   * @param exception the exception raised.
+   */
+  default void listeningException(Throwable exception) {}
+
+  /**
+   * Called when a thread of the engine serving connections raised an exception that is not tied
+   * to a single connection, or stopped because of one.
+   * @param thread the name of the thread.
+   * @param exception the exception raised.
+   */
+  default void engineException(String thread, Throwable exception) {}
+
+  /**
+   * Called when the server starts listening for connections.
+   */
+  default void serverStarted() {}
+
+  /**
+   * Called when the server stops accepting connections.
+   */
+  default void serverStopped() {}
+
+  /**
+   * Called when the server is closed.
+   */
+  default void serverClosed() {}
+}
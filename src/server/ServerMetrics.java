@@ -0,0 +1,259 @@
+package server;
+
+import utils.AsyncLogger;
+import utils.LatencyHistogram;
+import utils.LogLevel;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Live counters and latency histograms of an EchoServer. Recording is lock-free and does not
+ * allocate, so it can sit on every connection thread. Read through the #stats server command,
+ * a file rewritten periodically, or JMX.
+ */
+public class ServerMetrics implements ServerMetricsMXBean
+{
+  //Instance variables **********************************************
+
+  private final long startNanos = System.nanoTime();
+
+  /**
+   * Current number of connected clients, read from the transport
+   */
+  private final IntSupplier connectedClients;
+
+  private final LongAdder connectionsOpened = new LongAdder();
+  private final LongAdder connectionsClosed = new LongAdder();
+  private final LongAdder connectionErrors = new LongAdder();
+  private final LongAdder messagesReceived = new LongAdder();
+  private final LongAdder commands = new LongAdder();
+  private final LongAdder fanOuts = new LongAdder();
+  private final LongAdder deliveries = new LongAdder();
+
+  /**
+   * Time spent in handleMessageFromClient, nanoseconds
+   */
+  private final LatencyHistogram handlingTime = new LatencyHistogram();
+
+  /**
+   * Time spent handing one message to all of its recipients, nanoseconds
+   */
+  private final LatencyHistogram fanOutTime = new LatencyHistogram();
+
+  private ScheduledExecutorService dumper;
+
+  //Constructors ****************************************************
+
+  /**
+   * @param connectedClients current number of connected clients
+   */
+  public ServerMetrics(IntSupplier connectedClients) {
+    this.connectedClients = connectedClients;
+  }
+
+  //Instance methods ************************************************
+
+  public void connectionOpened() {
+    connectionsOpened.increment();
+  }
+
+  public void connectionClosed() {
+    connectionsClosed.increment();
+  }
+
+  public void connectionError() {
+    connectionErrors.increment();
+  }
+
+  /**
+   * @param command whether the message was a command
+   * @param nanos time spent handling it
+   */
+  public void messageHandled(boolean command, long nanos) {
+    messagesReceived.increment();
+    if (command) {
+      commands.increment();
+    }
+    handlingTime.record(nanos);
+  }
+
+  /**
+   * @param recipients number of clients the message was handed to
+   * @param nanos time spent handing it out
+   */
+  public void fanOut(int recipients, long nanos) {
+    fanOuts.increment();
+    deliveries.add(recipients);
+    fanOutTime.record(nanos);
+  }
+
+  /**
+   * @return a few lines describing every metric
+   */
+  public List<String> report() {
+    long uptime = Math.max(1, getUptimeSeconds());
+    long received = getMessagesReceived();
+    long fanOutCount = getFanOuts();
+    return List.of(
+            String.format("uptime %ds, %d clients connected (%d connections opened, %d closed, %d errors)",
+                    getUptimeSeconds(), getConnectedClients(), getConnectionsOpened(), getConnectionsClosed(), getConnectionErrors()),
+            String.format("messages received %d (%.1f/s), chat %d, commands %d",
+                    received, (double) received / uptime, getChatMessages(), getCommands()),
+            String.format("handling us    p50 %.1f  p99 %.1f  p99.9 %.1f  max %.1f",
+                    micros(handlingTime, 50), micros(handlingTime, 99), micros(handlingTime, 99.9), getHandlingMicrosMax()),
+            String.format("fan-outs %d, deliveries %d (%.1f/s, %.1f per fan-out)",
+                    fanOutCount, getDeliveries(), (double) getDeliveries() / uptime,
+                    fanOutCount == 0 ? 0.0 : (double) getDeliveries() / fanOutCount),
+            String.format("fan-out us     p50 %.1f  p99 %.1f  p99.9 %.1f  max %.1f",
+                    micros(fanOutTime, 50), micros(fanOutTime, 99), micros(fanOutTime, 99.9), getFanOutMicrosMax()));
+  }
+
+  /**
+   * Rewrite the report to a file at a fixed interval, from a background thread.
+   * The file is replaced atomically, so readers never see half a report.
+   * @param file the file
+   * @param intervalSeconds seconds between two writes
+   * @param logger where failed writes are logged
+   */
+  public synchronized void startDumping(Path file, long intervalSeconds, AsyncLogger logger) {
+    if (dumper != null) {
+      throw new IllegalStateException("Already dumping metrics");
+    }
+    dumper = Executors.newSingleThreadScheduledExecutor(task -> {
+      Thread thread = new Thread(task, "metrics-dump");
+      thread.setDaemon(true);
+      return thread;
+    });
+    dumper.scheduleAtFixedRate(() -> {
+      try {
+        dump(file);
+      } catch (IOException e) {
+        logger.log(LogLevel.warn, "Unable to write server metrics to {}. Error: {}", file, e.getMessage());
+      }
+    }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Write the report to a file once
+   * @param file the file
+   * @throws IOException if the file can not be written
+   */
+  public void dump(Path file) throws IOException {
+    Path parent = file.toAbsolutePath().getParent();
+    Path temporary = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+    try {
+      Files.write(temporary, report());
+      Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      Files.deleteIfExists(temporary);
+      throw e;
+    }
+  }
+
+  /**
+   * Expose the metrics through the platform MBean server
+   * @param port the server's port, distinguishes servers running in the same JVM
+   * @throws JMException if the metrics can not be registered
+   */
+  public void registerMBean(int port) throws JMException {
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("simpleChat:type=ServerMetrics,port=" + port));
+  }
+
+  @Override
+  public long getUptimeSeconds() {
+    return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos);
+  }
+
+  @Override
+  public int getConnectedClients() {
+    return connectedClients.getAsInt();
+  }
+
+  @Override
+  public long getConnectionsOpened() {
+    return connectionsOpened.sum();
+  }
+
+  @Override
+  public long getConnectionsClosed() {
+    return connectionsClosed.sum();
+  }
+
+  @Override
+  public long getConnectionErrors() {
+    return connectionErrors.sum();
+  }
+
+  @Override
+  public long getMessagesReceived() {
+    return messagesReceived.sum();
+  }
+
+  @Override
+  public long getChatMessages() {
+    return messagesReceived.sum() - commands.sum();
+  }
+
+  @Override
+  public long getCommands() {
+    return commands.sum();
+  }
+
+  @Override
+  public long getFanOuts() {
+    return fanOuts.sum();
+  }
+
+  @Override
+  public long getDeliveries() {
+    return deliveries.sum();
+  }
+
+  @Override
+  public double getHandlingMicrosP50() {
+    return micros(handlingTime, 50);
+  }
+
+  @Override
+  public double getHandlingMicrosP99() {
+    return micros(handlingTime, 99);
+  }
+
+  @Override
+  public double getHandlingMicrosMax() {
+    return handlingTime.getMax() / 1e3;
+  }
+
+  @Override
+  public double getFanOutMicrosP50() {
+    return micros(fanOutTime, 50);
+  }
+
+  @Override
+  public double getFanOutMicrosP99() {
+    return micros(fanOutTime, 99);
+  }
+
+  @Override
+  public double getFanOutMicrosMax() {
+    return fanOutTime.getMax() / 1e3;
+  }
+
+  //Class methods ***************************************************
+
+  private static double micros(LatencyHistogram histogram, double percentile) {
+    return histogram.getValueAtPercentile(percentile) / 1e3;
+  }
+}
@@ -0,0 +1,40 @@
+package server;
+
+/**
+ * Management interface of ServerMetrics, what JMX clients (ex: jconsole) can read.
+ * Durations are in microseconds.
+ */
+public interface ServerMetricsMXBean
+{
+  long getUptimeSeconds();
+
+  int getConnectedClients();
+
+  long getConnectionsOpened();
+
+  long getConnectionsClosed();
+
+  long getConnectionErrors();
+
+  long getMessagesReceived();
+
+  long getChatMessages();
+
+  long getCommands();
+
+  long getFanOuts();
+
+  long getDeliveries();
+
+  double getHandlingMicrosP50();
+
+  double getHandlingMicrosP99();
+
+  double getHandlingMicrosMax();
+
+  double getFanOutMicrosP50();
+
+  double getFanOutMicrosP99();
+
+  double getFanOutMicrosMax();
+}
@@ -0,0 +1,635 @@
+package server;
+
+import common.BinaryCodec;
+import utils.LogLevel;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Startup options of an EchoServer, given on the ServerConsole command line as name=value pairs
+ * after the port number (ex: "5555 engine=nio loops=4 queue.capacity=256 queue.policy=disconnect
+ * stats.file=stats.txt stats.interval=5 stats.jmx=true log.level=info log.file=server.log
+ * journal.dir=history journal.segmentMB=16 journal.segments=8 backlog.size=20 backlog.rooms=10000
+ * compression.threshold=1024 cluster.node=a cluster.peers=host2:5555,host3:5555 cluster.secret=s3cret
+ * rate.messages=20 rate.bytes=65536 rate.logins=50 rate.action=drop shutdown.timeout=5000 shutdown.flush=true
+ * idle.timeout=90 idle.tick=1000 mailbox.dir=mailboxes mailbox.quotaKB=256 mailbox.memoryKB=16
+ * mailbox.totalMB=32 mailbox.diskMB=256 mailbox.users=10000").
+ */
+public class ServerOptions
+{
+  //Instance variables **********************************************
+
+  /**
+   * Transport engine carrying client connections
+   */
+  private ServerEngine engine = ServerEngine.ocsf;
+
+  /**
+   * Number of selector event loops used by the nio engine
+   */
+  private int eventLoops = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * Bounds of each connection's outbound queue (nio and virtual engines)
+   */
+  private OutboundLimits outboundLimits = OutboundLimits.DEFAULT;
+
+  /**
+   * File the server metrics are periodically written to, null for none
+   */
+  private Path statsFile;
+
+  /**
+   * Seconds between two writes of the metrics file
+   */
+  private long statsIntervalSeconds = 10;
+
+  /**
+   * Whether the server metrics are exposed through JMX
+   */
+  private boolean statsJmx;
+
+  /**
+   * Least severe log events kept, debug includes a line per message received
+   */
+  private LogLevel logLevel = LogLevel.debug;
+
+  /**
+   * File log events are appended to, null for none
+   */
+  private Path logFile;
+
+  /**
+   * Whether log events are printed on the console
+   */
+  private boolean logConsole = true;
+
+  /**
+   * Directory of the chat history journal, null to keep no history
+   */
+  private Path journalDirectory;
+
+  /**
+   * Size of each journal segment file, in megabytes
+   */
+  private int journalSegmentMegabytes = 16;
+
+  /**
+   * Number of journal segments kept, older ones are deleted
+   */
+  private int journalSegments = 8;
+
+  /**
+   * Number of recent messages per room kept in memory and sent to clients joining the room, 0 for none
+   */
+  private int backlogSize = 20;
+
+  /**
+   * Most rooms keeping recent messages at once, rooms past it keep none until others empty
+   */
+  private int backlogRooms = 10000;
+
+  /**
+   * Binary frames of at least this many bytes are deflated for clients that accept it, 0 for never
+   */
+  private int compressionThreshold = BinaryCodec.DEFAULT_COMPRESSION_THRESHOLD;
+
+  /**
+   * Name of this server in its cluster, null for one derived from the port
+   */
+  private String clusterNode;
+
+  /**
+   * Client ports of the other servers of the cluster, empty when not clustered
+   */
+  private List<InetSocketAddress> clusterPeers = List.of();
+
+  /**
+   * What cluster peers present to link to each other, required when clustered. It crosses the
+   * links in plaintext, so the client port of a cluster belongs on a trusted network.
+   */
+  private String clusterSecret = "";
+
+  /**
+   * Rates each client may send at, and logins per second accepted, none by default
+   */
+  private RateLimits rateLimits = RateLimits.NONE;
+
+  /**
+   * How long (ms) #close and #quit may take to disconnect every client
+   */
+  private long shutdownTimeoutMillis = 5000;
+
+  /**
+   * Whether clients are given until the shutdown timeout to receive what is queued for them
+   */
+  private boolean shutdownFlush = true;
+
+  /**
+   * Seconds a connection may receive nothing (not even a heartbeat) before it is closed, 0 for ever
+   */
+  private long idleTimeoutSeconds = 90;
+
+  /**
+   * Precision (ms) of the idle timeout, idle connections are closed up to this much later
+   */
+  private long idleTickMillis = 1000;
+
+  /**
+   * Directory offline messages spill to, null to keep them in memory only
+   */
+  private Path mailboxDirectory;
+
+  /**
+   * Most offline messages (KB) kept for one user, 0 to keep none
+   */
+  private int mailboxQuotaKilobytes = 256;
+
+  /**
+   * Offline messages (KB) of one user kept in memory before older ones spill to disk
+   */
+  private int mailboxMemoryKilobytes = 16;
+
+  /**
+   * Most offline messages (MB) kept in memory for all users together
+   */
+  private int mailboxTotalMegabytes = 32;
+
+  /**
+   * Most offline messages (MB) spilled to disk for all users together
+   */
+  private int mailboxDiskMegabytes = 256;
+
+  /**
+   * Most users with offline messages waiting
+   */
+  private int mailboxUsers = 10000;
+
+  //Instance methods ************************************************
+
+  public ServerEngine getEngine() {
+    return engine;
+  }
+
+  public void setEngine(ServerEngine engine) {
+    if (engine == null) {
+      throw new IllegalArgumentException("No engine provided");
+    }
+    this.engine = engine;
+  }
+
+  public int getEventLoops() {
+    return eventLoops;
+  }
+
+  public void setEventLoops(int eventLoops) {
+    if (eventLoops < 1) {
+      throw new IllegalArgumentException("Number of event loops must be at least 1");
+    }
+    this.eventLoops = eventLoops;
+  }
+
+  public OutboundLimits getOutboundLimits() {
+    return outboundLimits;
+  }
+
+  public void setOutboundLimits(OutboundLimits outboundLimits) {
+    if (outboundLimits == null) {
+      throw new IllegalArgumentException("No outbound limits provided");
+    }
+    this.outboundLimits = outboundLimits;
+  }
+
+  public Path getStatsFile() {
+    return statsFile;
+  }
+
+  public void setStatsFile(Path statsFile) {
+    this.statsFile = statsFile;
+  }
+
+  public long getStatsIntervalSeconds() {
+    return statsIntervalSeconds;
+  }
+
+  public void setStatsIntervalSeconds(long statsIntervalSeconds) {
+    if (statsIntervalSeconds < 1) {
+      throw new IllegalArgumentException("Metrics file interval must be at least 1 second");
+    }
+    this.statsIntervalSeconds = statsIntervalSeconds;
+  }
+
+  public boolean isStatsJmx() {
+    return statsJmx;
+  }
+
+  public void setStatsJmx(boolean statsJmx) {
+    this.statsJmx = statsJmx;
+  }
+
+  public LogLevel getLogLevel() {
+    return logLevel;
+  }
+
+  public void setLogLevel(LogLevel logLevel) {
+    if (logLevel == null) {
+      throw new IllegalArgumentException("No log level provided");
+    }
+    this.logLevel = logLevel;
+  }
+
+  public Path getLogFile() {
+    return logFile;
+  }
+
+  public void setLogFile(Path logFile) {
+    this.logFile = logFile;
+  }
+
+  public boolean isLogConsole() {
+    return logConsole;
+  }
+
+  public void setLogConsole(boolean logConsole) {
+    this.logConsole = logConsole;
+  }
+
+  public Path getJournalDirectory() {
+    return journalDirectory;
+  }
+
+  public void setJournalDirectory(Path journalDirectory) {
+    this.journalDirectory = journalDirectory;
+  }
+
+  public int getJournalSegmentMegabytes() {
+    return journalSegmentMegabytes;
+  }
+
+  public void setJournalSegmentMegabytes(int journalSegmentMegabytes) {
+    if (journalSegmentMegabytes < 1 || journalSegmentMegabytes > 1024) {
+      throw new IllegalArgumentException("Journal segment size must be between 1 and 1024 megabytes");
+    }
+    this.journalSegmentMegabytes = journalSegmentMegabytes;
+  }
+
+  public int getJournalSegments() {
+    return journalSegments;
+  }
+
+  public void setJournalSegments(int journalSegments) {
+    if (journalSegments < 1) {
+      throw new IllegalArgumentException("At least one journal segment must be kept");
+    }
+    this.journalSegments = journalSegments;
+  }
+
+  public int getBacklogSize() {
+    return backlogSize;
+  }
+
+  public void setBacklogSize(int backlogSize) {
+    if (backlogSize < 0 || backlogSize > 1000) {
+      throw new IllegalArgumentException("Backlog size must be between 0 and 1000 messages");
+    }
+    this.backlogSize = backlogSize;
+  }
+
+  public int getBacklogRooms() {
+    return backlogRooms;
+  }
+
+  public void setBacklogRooms(int backlogRooms) {
+    if (backlogRooms < 1) {
+      throw new IllegalArgumentException("At least one room must keep recent messages");
+    }
+    this.backlogRooms = backlogRooms;
+  }
+
+  public int getCompressionThreshold() {
+    return compressionThreshold;
+  }
+
+  public void setCompressionThreshold(int compressionThreshold) {
+    if (compressionThreshold < 0) {
+      throw new IllegalArgumentException("Compression threshold can not be negative");
+    }
+    this.compressionThreshold = compressionThreshold;
+  }
+
+  public String getClusterNode() {
+    return clusterNode;
+  }
+
+  public void setClusterNode(String clusterNode) {
+    if (clusterNode != null && (clusterNode.isEmpty() || clusterNode.indexOf(' ') >= 0)) {
+      throw new IllegalArgumentException("Cluster node name can not be empty or contain spaces");
+    }
+    this.clusterNode = clusterNode;
+  }
+
+  public List<InetSocketAddress> getClusterPeers() {
+    return clusterPeers;
+  }
+
+  public void setClusterPeers(List<InetSocketAddress> clusterPeers) {
+    this.clusterPeers = List.copyOf(clusterPeers);
+  }
+
+  public String getClusterSecret() {
+    return clusterSecret;
+  }
+
+  public void setClusterSecret(String clusterSecret) {
+    if (clusterSecret == null || clusterSecret.indexOf(' ') >= 0) {
+      throw new IllegalArgumentException("Cluster secret can not contain spaces");
+    }
+    this.clusterSecret = clusterSecret;
+  }
+
+  public RateLimits getRateLimits() {
+    return rateLimits;
+  }
+
+  public void setRateLimits(RateLimits rateLimits) {
+    if (rateLimits == null) {
+      throw new IllegalArgumentException("No rate limits provided");
+    }
+    this.rateLimits = rateLimits;
+  }
+
+  public long getShutdownTimeoutMillis() {
+    return shutdownTimeoutMillis;
+  }
+
+  public void setShutdownTimeoutMillis(long shutdownTimeoutMillis) {
+    if (shutdownTimeoutMillis < 1 || shutdownTimeoutMillis > 600_000) {
+      throw new IllegalArgumentException("Shutdown timeout must be between 1 and 600000 ms");
+    }
+    this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+  }
+
+  public boolean isShutdownFlush() {
+    return shutdownFlush;
+  }
+
+  public void setShutdownFlush(boolean shutdownFlush) {
+    this.shutdownFlush = shutdownFlush;
+  }
+
+  public long getIdleTimeoutSeconds() {
+    return idleTimeoutSeconds;
+  }
+
+  public void setIdleTimeoutSeconds(long idleTimeoutSeconds) {
+    if (idleTimeoutSeconds < 0 || (idleTimeoutSeconds > 0 && idleTimeoutSeconds < 5)) {
+      throw new IllegalArgumentException("Idle timeout must be 0 (none) or at least 5 seconds");
+    }
+    this.idleTimeoutSeconds = idleTimeoutSeconds;
+  }
+
+  public long getIdleTickMillis() {
+    return idleTickMillis;
+  }
+
+  public void setIdleTickMillis(long idleTickMillis) {
+    if (idleTickMillis < 10 || idleTickMillis > 60_000) {
+      throw new IllegalArgumentException("Idle tick must be between 10 and 60000 ms");
+    }
+    this.idleTickMillis = idleTickMillis;
+  }
+
+  public Path getMailboxDirectory() {
+    return mailboxDirectory;
+  }
+
+  public void setMailboxDirectory(Path mailboxDirectory) {
+    this.mailboxDirectory = mailboxDirectory;
+  }
+
+  public int getMailboxQuotaKilobytes() {
+    return mailboxQuotaKilobytes;
+  }
+
+  public void setMailboxQuotaKilobytes(int mailboxQuotaKilobytes) {
+    if (mailboxQuotaKilobytes < 0 || mailboxQuotaKilobytes > 1024 * 1024) {
+      throw new IllegalArgumentException("Mailbox quota must be between 0 (no mailboxes) and 1048576 KB");
+    }
+    this.mailboxQuotaKilobytes = mailboxQuotaKilobytes;
+  }
+
+  public int getMailboxMemoryKilobytes() {
+    return mailboxMemoryKilobytes;
+  }
+
+  public void setMailboxMemoryKilobytes(int mailboxMemoryKilobytes) {
+    if (mailboxMemoryKilobytes < 1 || mailboxMemoryKilobytes > 64 * 1024) {
+      throw new IllegalArgumentException("Mailbox memory must be between 1 and 65536 KB");
+    }
+    this.mailboxMemoryKilobytes = mailboxMemoryKilobytes;
+  }
+
+  public int getMailboxTotalMegabytes() {
+    return mailboxTotalMegabytes;
+  }
+
+  public void setMailboxTotalMegabytes(int mailboxTotalMegabytes) {
+    if (mailboxTotalMegabytes < 1 || mailboxTotalMegabytes > 64 * 1024) {
+      throw new IllegalArgumentException("Total mailbox memory must be between 1 and 65536 MB");
+    }
+    this.mailboxTotalMegabytes = mailboxTotalMegabytes;
+  }
+
+  public int getMailboxDiskMegabytes() {
+    return mailboxDiskMegabytes;
+  }
+
+  public void setMailboxDiskMegabytes(int mailboxDiskMegabytes) {
+    if (mailboxDiskMegabytes < 1 || mailboxDiskMegabytes > 1024 * 1024) {
+      throw new IllegalArgumentException("Total mailbox disk space must be between 1 and 1048576 MB");
+    }
+    this.mailboxDiskMegabytes = mailboxDiskMegabytes;
+  }
+
+  public int getMailboxUsers() {
+    return mailboxUsers;
+  }
+
+  public void setMailboxUsers(int mailboxUsers) {
+    if (mailboxUsers < 1) {
+      throw new IllegalArgumentException("At least one user must be able to have a mailbox");
+    }
+    this.mailboxUsers = mailboxUsers;
+  }
+
+  /**
+   * Set a single option from its name and string value
+   * @param name option name
+   * @param value option value
+   * @throws IllegalArgumentException if the option is unknown or its value invalid
+   */
+  public void set(String name, String value) {
+    try {
+      switch (name) {
+        case "engine":
+          setEngine(ServerEngine.valueOf(value));
+          break;
+        case "loops":
+          setEventLoops(Integer.parseInt(value));
+          break;
+        case "queue.capacity":
+          setOutboundLimits(outboundLimits.withCapacity(Integer.parseInt(value)));
+          break;
+        case "queue.policy":
+          setOutboundLimits(outboundLimits.withPolicy(SlowConsumerPolicy.valueOf(value)));
+          break;
+        case "queue.backlog":
+          setOutboundLimits(outboundLimits.withBacklogMillis(Long.parseLong(value)));
+          break;
+        case "stats.file":
+          setStatsFile(Path.of(value));
+          break;
+        case "stats.interval":
+          setStatsIntervalSeconds(Long.parseLong(value));
+          break;
+        case "stats.jmx":
+          setStatsJmx(parseBoolean(name, value));
+          break;
+        case "log.level":
+          setLogLevel(LogLevel.valueOf(value));
+          break;
+        case "log.file":
+          setLogFile(Path.of(value));
+          break;
+        case "log.console":
+          setLogConsole(parseBoolean(name, value));
+          break;
+        case "journal.dir":
+          setJournalDirectory(Path.of(value));
+          break;
+        case "journal.segmentMB":
+          setJournalSegmentMegabytes(Integer.parseInt(value));
+          break;
+        case "journal.segments":
+          setJournalSegments(Integer.parseInt(value));
+          break;
+        case "backlog.size":
+          setBacklogSize(Integer.parseInt(value));
+          break;
+        case "backlog.rooms":
+          setBacklogRooms(Integer.parseInt(value));
+          break;
+        case "compression.threshold":
+          setCompressionThreshold(Integer.parseInt(value));
+          break;
+        case "cluster.node":
+          setClusterNode(value);
+          break;
+        case "cluster.peers":
+          setClusterPeers(parseAddresses(value));
+          break;
+        case "cluster.secret":
+          setClusterSecret(value);
+          break;
+        case "rate.messages":
+          setRateLimits(rateLimits.withMessagesPerSecond(Integer.parseInt(value)));
+          break;
+        case "rate.bytes":
+          setRateLimits(rateLimits.withBytesPerSecond(Integer.parseInt(value)));
+          break;
+        case "rate.logins":
+          setRateLimits(rateLimits.withLoginsPerSecond(Integer.parseInt(value)));
+          break;
+        case "rate.action":
+          setRateLimits(rateLimits.withAction(OverLimitAction.valueOf(value)));
+          break;
+        case "shutdown.timeout":
+          setShutdownTimeoutMillis(Long.parseLong(value));
+          break;
+        case "shutdown.flush":
+          setShutdownFlush(parseBoolean(name, value));
+          break;
+        case "idle.timeout":
+          setIdleTimeoutSeconds(Long.parseLong(value));
+          break;
+        case "idle.tick":
+          setIdleTickMillis(Long.parseLong(value));
+          break;
+        case "mailbox.dir":
+          setMailboxDirectory(Path.of(value));
+          break;
+        case "mailbox.quotaKB":
+          setMailboxQuotaKilobytes(Integer.parseInt(value));
+          break;
+        case "mailbox.memoryKB":
+          setMailboxMemoryKilobytes(Integer.parseInt(value));
+          break;
+        case "mailbox.totalMB":
+          setMailboxTotalMegabytes(Integer.parseInt(value));
+          break;
+        case "mailbox.diskMB":
+          setMailboxDiskMegabytes(Integer.parseInt(value));
+          break;
+        case "mailbox.users":
+          setMailboxUsers(Integer.parseInt(value));
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown server option: " + name);
+      }
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid value provided for " + name + ": " + value);
+    }
+  }
+
+  //Class methods ***************************************************
+
+  private static boolean parseBoolean(String name, String value) {
+    if (!value.equals("true") && !value.equals("false")) {
+      throw new IllegalArgumentException("Invalid value provided for " + name + ": " + value);
+    }
+    return Boolean.parseBoolean(value);
+  }
+
+  /**
+   * @param value comma separated host:port pairs
+   * @return the addresses, unresolved
+   * @throws NumberFormatException if a port is not a number
+   */
+  private static List<InetSocketAddress> parseAddresses(String value) {
+    List<InetSocketAddress> addresses = new ArrayList<>();
+    for (String address : value.split(",")) {
+      int separator = address.lastIndexOf(':');
+      if (separator <= 0) {
+        throw new IllegalArgumentException("Expected host:port, got: " + address);
+      }
+      addresses.add(InetSocketAddress.createUnresolved(address.substring(0, separator), Integer.parseInt(address.substring(separator + 1))));
+    }
+    return addresses;
+  }
+
+  /**
+   * Parse name=value pairs
+   * @param args command line arguments
+   * @param offset index of the first option in args
+   * @return the parsed options, defaults for anything not provided
+   * @throws IllegalArgumentException if an argument is malformed or an option invalid
+   */
+  public static ServerOptions parse(String[] args, int offset) {
+    ServerOptions options = new ServerOptions();
+    for (int i = offset; i < args.length; i++) {
+      int separator = args[i].indexOf('=');
+      if (separator <= 0) {
+        throw new IllegalArgumentException("Expected name=value, got: " + args[i]);
+      }
+      options.set(args[i].substring(0, separator), args[i].substring(separator + 1));
+    }
+    if (!options.clusterPeers.isEmpty() && options.clusterSecret.isEmpty()) {
+      // anybody on the client port could otherwise link as a peer and speak for any user
+      throw new IllegalArgumentException("cluster.peers requires a cluster.secret");
+    }
+    return options;
+  }
+}
@@ -0,0 +1,87 @@
+package server;
+
+import common.EncodedMessage;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A transport engine accepting client connections on behalf of a ServerHandler.
+ * Same operations as OCSF's AbstractServer so server commands work on every engine.
+ */
+public interface ServerTransport
+{
+  /**
+   * Starts listening for new clients.
+   *
+   * @throws IOException if an I/O error occurs when creating the server socket.
+   */
+  void listen() throws IOException;
+
+  /**
+   * Stops listening for new clients, existing connections are kept.
+   */
+  void stopListening();
+
+  /**
+   * Stops listening and closes every client connection.
+   *
+   * @throws IOException if an I/O error occurs while closing the server socket.
+   */
+  void close() throws IOException;
+
+  /**
+   * @return true if the server is accepting new clients.
+   */
+  boolean isListening();
+
+  /**
+   * @return the port number the server listens on.
+   */
+  int getPort();
+
+  /**
+   * Sets the port number for the next listen() call.
+   * @param port the port number.
+   */
+  void setPort(int port);
+
+  /**
+   * @return the number of currently connected clients.
+   */
+  int getNumberOfClients();
+
+  /**
+   * @return a snapshot of the currently connected clients.
+   */
+  List<ClientConnection> getClientConnections();
+
+  /**
+   * Sends a message to every connected client, ignoring clients the message can not be sent to.
+   * @param msg the message to be sent.
+   */
+  void sendToAllClients(Object msg);
+
+  /**
+   * Sends a message to the given clients, encoding it at most once per wire format and
+   * ignoring clients the message can not be sent to.
+   * @param clients the recipients.
+   * @param msg the message to be sent, possibly already wrapped in an EncodedMessage.
+   */
+  default void sendToClients(Iterable<? extends ClientConnection> clients, Object msg) {
+    EncodedMessage encoded = (msg instanceof EncodedMessage) ? (EncodedMessage) msg : new EncodedMessage(msg);
+    for (ClientConnection client : clients) {
+      try {
+        client.sendToClient(encoded);
+      } catch (Exception ignored) {}
+    }
+  }
+
+  /**
+   * @return counters of the per-connection outbound queues, or null if the engine writes
+   * synchronously on the sending thread (ocsf)
+   */
+  default OutboundStats getOutboundStats() {
+    return null;
+  }
+}
@@ -0,0 +1,52 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A frame copied once into a pooled direct buffer and written from there to many connections,
+ * each through a read-only view with its own position. Reference counted: the buffer goes back
+ * to the pool when the creator and every connection holding a view have released it.
+ */
+final class SharedFrame
+{
+  private final DirectBufferPool pool;
+
+  private final ByteBuffer buffer;
+
+  // the creator holds the first reference
+  private final AtomicInteger references = new AtomicInteger(1);
+
+  /**
+   * @param frame the encoded frame, copied
+   * @param pool where the direct buffer comes from and returns to
+   */
+  SharedFrame(byte[] frame, DirectBufferPool pool) {
+    this.pool = pool;
+    this.buffer = pool.acquire(frame.length);
+    buffer.put(frame).flip();
+  }
+
+  /**
+   * Take a reference for one more writer
+   * @return the writer's own view over the frame, release the frame once it is written
+   */
+  ByteBuffer retain() {
+    if (references.getAndIncrement() <= 0) {
+      throw new IllegalStateException("shared frame already released");
+    }
+    return buffer.asReadOnlyBuffer();
+  }
+
+  /**
+   * Drop a reference, the last one returns the buffer to the pool
+   */
+  void release() {
+    int left = references.decrementAndGet();
+    if (left == 0) {
+      pool.release(buffer);
+    } else if (left < 0) {
+      throw new IllegalStateException("shared frame released too many times");
+    }
+  }
+}
@@ -0,0 +1,11 @@
+package server;
+
+/**
+ * What a connection's outbound queue does once a client stops keeping up.
+ */
+public enum SlowConsumerPolicy
+{
+  dropOldest, // evict the oldest queued message to make room
+  dropNewest, // drop the message being sent
+  disconnect, // close the connection when full, or when its backlog is older than the limit
+}
@@ -0,0 +1,64 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket refilled at a steady rate, holding at most one second's worth of tokens. It is
+ * kept as the single time at which the bucket would be full again, so taking tokens is one
+ * compare-and-set and needs no refill thread.
+ */
+final class TokenBucket
+{
+  private final double nanosPerToken;
+
+  private final long burstNanos;
+
+  /**
+   * Time at which every token taken so far is paid back
+   */
+  private final AtomicLong paidBackAt;
+
+  /**
+   * @param tokensPerSecond refill rate, also the most tokens taken at once
+   */
+  TokenBucket(long tokensPerSecond) {
+    if (tokensPerSecond < 1) {
+      throw new IllegalArgumentException("Rate must be at least 1 per second");
+    }
+    this.nanosPerToken = (double) TimeUnit.SECONDS.toNanos(1) / tokensPerSecond;
+    this.burstNanos = TimeUnit.SECONDS.toNanos(1);
+    this.paidBackAt = new AtomicLong(System.nanoTime());
+  }
+
+  /**
+   * Take tokens if the bucket holds them. A full bucket always gives them, so a cost larger
+   * than the burst is not refused forever.
+   * @param tokens number of tokens wanted
+   * @return 0 if they were taken, otherwise how long (ns) until they would be available
+   */
+  long tryTake(long tokens) {
+    long cost = (long) (tokens * nanosPerToken);
+    while (true) {
+      long now = System.nanoTime();
+      long current = paidBackAt.get();
+      boolean full = current - now <= 0;
+      long next = (full ? now : current) + cost;
+      long over = next - now - burstNanos;
+      if (over > 0 && !full) {
+        return over;
+      }
+      if (paidBackAt.compareAndSet(current, next)) {
+        return 0;
+      }
+    }
+  }
+
+  /**
+   * Return tokens taken for something that did not happen after all
+   * @param tokens number of tokens taken
+   */
+  void giveBack(long tokens) {
+    paidBackAt.addAndGet(-(long) (tokens * nanosPerToken));
+  }
+}
@@ -0,0 +1,301 @@
+package utils;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logger that keeps console and file I/O off the calling threads. Callers claim a slot in a
+ * bounded lock-free ring buffer and store the event there (level, time, message template and
+ * up to two arguments); one background thread formats whole batches and writes each batch with
+ * a single write and flush per output.
+ * <p>
+ * Messages are templates where each "{}" is replaced by the next argument, so a disabled or
+ * dropped event costs no string building. When the ring is full, events are dropped (and
+ * counted) rather than blocking the caller.
+ */
+public class AsyncLogger implements AutoCloseable {
+
+    /**
+     * Default number of events the ring buffer holds
+     */
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    /**
+     * A slot of the ring buffer, reused for every event stored in it
+     */
+    private static final class Event {
+        LogLevel level;
+        long millis;
+        String message;
+        Object arg1;
+        Object arg2;
+    }
+
+    //Instance variables **********************************************
+
+    private final LogLevel level;
+
+    private final Event[] events;
+
+    /**
+     * Per slot: the producer position it is free for, or that position + 1 once published
+     */
+    private final AtomicLongArray sequences;
+
+    private final int mask;
+
+    /**
+     * Next position producers claim
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Next position the writer reads, only touched by the writer thread
+     */
+    private long head;
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final PrintStream console;
+
+    private final BufferedWriter file;
+
+    private final Thread writer;
+
+    private volatile boolean writerSleeping;
+
+    private volatile boolean closed;
+
+    //Constructors ****************************************************
+
+    /**
+     * @param level events below this level are dropped
+     * @param console where messages are printed, null for nowhere
+     */
+    public AsyncLogger(LogLevel level, PrintStream console) {
+        this(level, console, (BufferedWriter) null, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param level events below this level are dropped
+     * @param console where messages are printed, null for nowhere
+     * @param file file events are appended to with their time and level
+     * @param capacity number of events the ring buffer holds, rounded up to a power of two
+     * @throws IOException if the file can not be opened
+     */
+    public AsyncLogger(LogLevel level, PrintStream console, Path file, int capacity) throws IOException {
+        this(level, console, Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND), capacity);
+    }
+
+    private AsyncLogger(LogLevel level, PrintStream console, BufferedWriter file, int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        this.level = level;
+        this.events = new Event[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            events[i] = new Event();
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.console = console;
+        this.file = file;
+
+        writer = new Thread(this::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        // write whatever is still queued when the JVM exits (ex: System.exit after #quit)
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "log-flush"));
+    }
+
+    //Instance methods ************************************************
+
+    /**
+     * @param level a level
+     * @return whether events of that level are kept
+     */
+    public boolean isEnabled(LogLevel level) {
+        return level != LogLevel.off && level.compareTo(this.level) >= 0;
+    }
+
+    public void log(LogLevel level, String message) {
+        if (isEnabled(level)) {
+            publish(level, message, null, null);
+        }
+    }
+
+    public void log(LogLevel level, String message, Object arg) {
+        if (isEnabled(level)) {
+            publish(level, message, arg, null);
+        }
+    }
+
+    public void log(LogLevel level, String message, Object arg1, Object arg2) {
+        if (isEnabled(level)) {
+            publish(level, message, arg1, arg2);
+        }
+    }
+
+    /**
+     * @return number of events dropped because the ring buffer was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Write everything queued so far, then stop the writer thread
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void publish(LogLevel level, String message, Object arg1, Object arg2) {
+        long position;
+        int index;
+        while (true) {
+            position = tail.get();
+            index = (int) position & mask;
+            long available = sequences.get(index) - position;
+            if (available < 0) {
+                // the writer has not consumed this slot yet: the ring is full
+                dropped.incrementAndGet();
+                return;
+            }
+            if (available == 0 && tail.compareAndSet(position, position + 1)) {
+                break;
+            }
+        }
+        Event event = events[index];
+        event.level = level;
+        event.millis = System.currentTimeMillis();
+        event.message = message;
+        event.arg1 = arg1;
+        event.arg2 = arg2;
+        sequences.set(index, position + 1);
+
+        if (writerSleeping) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private void writeLoop() {
+        StringBuilder consoleBatch = new StringBuilder(4096);
+        StringBuilder fileBatch = new StringBuilder(4096);
+        long droppedReported = 0;
+        while (true) {
+            int count = drain(consoleBatch, fileBatch);
+            long droppedNow = dropped.get();
+            if (droppedNow != droppedReported) {
+                String line = (droppedNow - droppedReported) + " log events dropped, logging can not keep up";
+                consoleBatch.append(line).append(System.lineSeparator());
+                fileBatch.append(Instant.now()).append(' ').append(LogLevel.warn).append(' ').append(line).append(System.lineSeparator());
+                droppedReported = droppedNow;
+                count++;
+            }
+            if (count > 0) {
+                flush(consoleBatch, fileBatch);
+                continue;
+            }
+            if (closed) {
+                break;
+            }
+            writerSleeping = true;
+            if (sequences.get((int) head & mask) != head + 1) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+            }
+            writerSleeping = false;
+        }
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * Format the published events into the batches, at most one ring's worth
+     * @return number of events taken
+     */
+    private int drain(StringBuilder consoleBatch, StringBuilder fileBatch) {
+        int count = 0;
+        while (count < events.length) {
+            int index = (int) head & mask;
+            if (sequences.get(index) != head + 1) {
+                break;
+            }
+            Event event = events[index];
+            int start = consoleBatch.length();
+            format(consoleBatch, event);
+            if (file != null) {
+                fileBatch.append(Instant.ofEpochMilli(event.millis)).append(' ').append(event.level).append(' ')
+                        .append(consoleBatch, start, consoleBatch.length()).append(System.lineSeparator());
+            }
+            consoleBatch.append(System.lineSeparator());
+            event.message = null;
+            event.arg1 = null;
+            event.arg2 = null;
+            sequences.set(index, head + events.length);
+            head++;
+            count++;
+        }
+        return count;
+    }
+
+    private void flush(StringBuilder consoleBatch, StringBuilder fileBatch) {
+        if (console != null && consoleBatch.length() > 0) {
+            console.print(consoleBatch);
+            console.flush();
+        }
+        if (file != null && fileBatch.length() > 0) {
+            try {
+                file.append(fileBatch);
+                file.flush();
+            } catch (IOException e) {
+                if (console != null) {
+                    console.println("Unable to write log file. Error: " + e.getMessage());
+                }
+            }
+        }
+        consoleBatch.setLength(0);
+        fileBatch.setLength(0);
+    }
+
+    //Class methods ***************************************************
+
+    /**
+     * Append the message with each "{}" replaced by the next argument
+     */
+    private static void format(StringBuilder target, Event event) {
+        String message = String.valueOf(event.message);
+        Object[] args = { event.arg1, event.arg2 };
+        int used = 0;
+        int from = 0;
+        int placeholder;
+        while (used < args.length && (placeholder = message.indexOf("{}", from)) >= 0) {
+            target.append(message, from, placeholder).append(args[used++]);
+            from = placeholder + 2;
+        }
+        target.append(message, from, message.length());
+    }
+}
@@ -0,0 +1,143 @@
+package utils;
+
+import java.io.IOException;
+
+/**
+ * Parses "#command argument" lines and calls the handler registered for the command, without
+ * regular expressions, substrings or intermediate arrays. Command names come from an enum, so
+ * the server and client each build one dispatcher over their own COMMANDS.
+ * <p>
+ * Handlers are given the whole line and the bounds of the first argument, the same token
+ * {@link SCUtilities#extractCommandAndArgs} would return, and only allocate if they need it as a String.
+ * Once built, a dispatcher is safe to use from any number of threads.
+ * @param <C> the enum listing the accepted commands
+ */
+public class CommandDispatcher<C extends Enum<C>> {
+
+    /**
+     * Code run for one command
+     */
+    @FunctionalInterface
+    public interface Handler {
+        /**
+         * @param line the whole command line
+         * @param argStart index of the first argument in line
+         * @param argEnd index just past the first argument, equal to argStart if there is none
+         * @throws IOException if the command fails
+         */
+        void handle(String line, int argStart, int argEnd) throws IOException;
+    }
+
+    //Instance variables **********************************************
+
+    /**
+     * Character every command starts with
+     */
+    private final char prefix;
+
+    // open addressing table of command names and their handlers, indexed by name hash
+    private final String[] names;
+    private final Handler[] handlers;
+    private final int mask;
+
+    //Constructors ****************************************************
+
+    /**
+     * @param prefix character every command starts with (ex: '#')
+     * @param commands the enum listing the accepted commands
+     */
+    public CommandDispatcher(char prefix, Class<C> commands) {
+        this.prefix = prefix;
+        // at most half full, so probes stay short
+        int capacity = Integer.highestOneBit(Math.max(1, commands.getEnumConstants().length) * 4 - 1);
+        this.names = new String[capacity];
+        this.handlers = new Handler[capacity];
+        this.mask = capacity - 1;
+    }
+
+    //Instance methods ************************************************
+
+    /**
+     * Register the handler of a command, replacing any previous one
+     * @param command the command
+     * @param handler code run when the command is dispatched
+     * @return this dispatcher
+     */
+    public CommandDispatcher<C> on(C command, Handler handler) {
+        String name = command.name();
+        int slot = name.hashCode() & mask;
+        while (names[slot] != null && !names[slot].equals(name)) {
+            slot = (slot + 1) & mask;
+        }
+        names[slot] = name;
+        handlers[slot] = handler;
+        return this;
+    }
+
+    /**
+     * Call the handler of the command line
+     * @param line the command line, starting with the prefix
+     * @return false if the line is not a command with a registered handler
+     * @throws IOException if the handler fails
+     */
+    public boolean dispatch(String line) throws IOException {
+        if (line == null || line.isEmpty() || line.charAt(0) != prefix) {
+            return false;
+        }
+        int length = line.length();
+
+        // command name, hashed the way String.hashCode() does while scanning it
+        int commandEnd = 1;
+        int hash = 0;
+        while (commandEnd < length && !Character.isWhitespace(line.charAt(commandEnd))) {
+            hash = 31 * hash + line.charAt(commandEnd++);
+        }
+        int commandLength = commandEnd - 1;
+
+        int slot = hash & mask;
+        String name;
+        while ((name = names[slot]) != null) {
+            if (name.length() == commandLength && line.regionMatches(1, name, 0, commandLength)) {
+                break;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (name == null) {
+            return false;
+        }
+
+        // first argument
+        int argStart = commandEnd;
+        while (argStart < length && Character.isWhitespace(line.charAt(argStart))) {
+            argStart++;
+        }
+        int argEnd = argStart;
+        while (argEnd < length && !Character.isWhitespace(line.charAt(argEnd))) {
+            argEnd++;
+        }
+
+        handlers[slot].handle(line, argStart, argEnd);
+        return true;
+    }
+
+    //Class methods ***************************************************
+
+    /**
+     * @param line a command line
+     * @return the command name without the prefix, for error messages
+     */
+    public static String commandName(String line) {
+        int end = 1;
+        while (end < line.length() && !Character.isWhitespace(line.charAt(end))) {
+            end++;
+        }
+        return line.substring(1, end);
+    }
+
+    /**
+     * @return the first argument of a command line, or null if there is none
+     */
+    public static String argument(String line, int argStart, int argEnd) {
+        return argStart == argEnd ? null : line.substring(argStart, argEnd);
+    }
+}
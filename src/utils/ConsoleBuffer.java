@@ -0,0 +1,197 @@
+package utils;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Console output gathered into a buffer and written with a single print and flush, by a
+ * background thread shortly after the first line arrives, or by the caller once the buffer
+ * is over its size threshold. Busy output costs one write per batch instead of one per line,
+ * and a caller producing faster than the console takes is slowed down rather than dropping
+ * lines. Locks rather than synchronized are used so virtual threads never pin their carrier.
+ */
+public class ConsoleBuffer implements AutoCloseable {
+
+    /**
+     * Default time a line may wait in the buffer
+     */
+    public static final long DEFAULT_FLUSH_MILLIS = 10;
+
+    /**
+     * Default number of buffered characters that triggers a write
+     */
+    public static final int DEFAULT_MAX_CHARS = 16 * 1024;
+
+    //Instance variables **********************************************
+
+    private final PrintStream console;
+
+    private final long flushNanos;
+
+    private final int maxChars;
+
+    /**
+     * Guards the buffer, held only to append or swap
+     */
+    private final ReentrantLock bufferLock = new ReentrantLock();
+
+    private final Condition notEmpty = bufferLock.newCondition();
+
+    /**
+     * Held while writing, so batches reach the console in the order they were taken
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private StringBuilder pending;
+
+    // the buffer being written, swapped with pending
+    private StringBuilder writing;
+
+    private boolean closed;
+
+    //Constructors ****************************************************
+
+    /**
+     * @param console where lines are printed
+     */
+    public ConsoleBuffer(PrintStream console) {
+        this(console, DEFAULT_FLUSH_MILLIS, DEFAULT_MAX_CHARS);
+    }
+
+    /**
+     * @param console where lines are printed
+     * @param flushMillis how long a line may wait in the buffer
+     * @param maxChars buffered characters that make the caller write them at once
+     */
+    public ConsoleBuffer(PrintStream console, long flushMillis, int maxChars) {
+        if (flushMillis < 0 || maxChars < 1) {
+            throw new IllegalArgumentException("Invalid console buffer limits");
+        }
+        this.console = console;
+        this.flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+        this.maxChars = maxChars;
+        this.pending = new StringBuilder(Math.min(maxChars, 4096));
+        this.writing = new StringBuilder(Math.min(maxChars, 4096));
+
+        Thread flusher = new Thread(this::flushLoop, "console-flush");
+        flusher.setDaemon(true);
+        flusher.start();
+        // write what is still buffered when the JVM exits (ex: System.exit after #quit)
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "console-flush-on-exit"));
+    }
+
+    //Instance methods ************************************************
+
+    /**
+     * Buffer a line
+     * @param line the line, without line separator
+     */
+    public void println(String line) {
+        if (append(List.of(line))) {
+            flush();
+        }
+    }
+
+    /**
+     * Buffer several lines, written together
+     * @param lines the lines, without line separators
+     */
+    public void printAll(List<String> lines) {
+        if (append(lines)) {
+            flush();
+        }
+    }
+
+    /**
+     * Write everything buffered so far
+     */
+    public void flush() {
+        writeLock.lock();
+        try {
+            bufferLock.lock();
+            try {
+                if (pending.length() == 0) {
+                    return;
+                }
+                StringBuilder batch = pending;
+                pending = writing;
+                writing = batch;
+            } finally {
+                bufferLock.unlock();
+            }
+            console.print(writing);
+            console.flush();
+            if (writing.capacity() > maxChars * 4) {
+                // do not hold on to the memory of one exceptional burst
+                writing = new StringBuilder(Math.min(maxChars, 4096));
+            } else {
+                writing.setLength(0);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Write everything buffered, further lines are then written at once
+     */
+    @Override
+    public void close() {
+        bufferLock.lock();
+        try {
+            closed = true;
+            notEmpty.signal();
+        } finally {
+            bufferLock.unlock();
+        }
+        flush();
+    }
+
+    /**
+     * @return whether the buffer should be written without waiting for the flusher
+     */
+    private boolean append(List<String> lines) {
+        bufferLock.lock();
+        try {
+            if (pending.length() == 0) {
+                // the flusher only waits for the first line of a batch
+                notEmpty.signal();
+            }
+            for (String line : lines) {
+                pending.append(line).append(System.lineSeparator());
+            }
+            return closed || pending.length() >= maxChars;
+        } finally {
+            bufferLock.unlock();
+        }
+    }
+
+    private void flushLoop() {
+        try {
+            while (true) {
+                bufferLock.lock();
+                try {
+                    while (pending.length() == 0 && !closed) {
+                        notEmpty.await();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    // let more lines join the batch, a full one is written by whoever filled it
+                    long remaining = flushNanos;
+                    while (remaining > 0 && !closed) {
+                        remaining = notEmpty.awaitNanos(remaining);
+                    }
+                } finally {
+                    bufferLock.unlock();
+                }
+                flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package utils;
+
+/**
+ * Severity of a log event, from least to most severe. A logger set to a level drops events
+ * below it, "off" drops everything.
+ */
+public enum LogLevel {
+    debug,
+    info,
+    warn,
+    error,
+    off
+}
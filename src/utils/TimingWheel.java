@@ -0,0 +1,164 @@
+package utils;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timing wheel: one thread advancing a ring of slots by one tick at a time, each slot
+ * holding the timeouts due when the wheel comes round to it (after as many full rounds as
+ * they are still away). Scheduling and cancelling cost O(1) whatever the number of timeouts,
+ * and a tick only visits the timeouts of one slot, so it can track many thousands of
+ * connections where a timer per connection would not. Timeouts fire up to one tick late.
+ * <p>
+ * Timeouts are handed to the wheel thread through a queue, so the slots are only ever touched
+ * by that thread and need no locking. Tasks run on the wheel thread: they must be short and
+ * hand anything blocking to another thread.
+ */
+public class TimingWheel implements AutoCloseable {
+
+    /**
+     * A scheduled task
+     */
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private long rounds;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Keep the task from running, if it has not run yet
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    //Instance variables **********************************************
+
+    private final long tickNanos;
+
+    private final ArrayDeque<Timeout>[] slots;
+
+    private final int mask;
+
+    private final ConcurrentLinkedQueue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+
+    private final long start = System.nanoTime();
+
+    private final Thread worker;
+
+    private volatile boolean closed;
+
+    //Constructors ****************************************************
+
+    /**
+     * @param name name of the wheel thread
+     * @param tickMillis time between two ticks, the precision of the timeouts
+     * @param slots number of slots, rounded up to a power of two; a timeout further away than
+     *              one turn of the wheel waits for some rounds in its slot
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheel(String name, long tickMillis, int slots) {
+        if (tickMillis < 1 || slots < 1) {
+            throw new IllegalArgumentException("Invalid timing wheel tick or size");
+        }
+        int size = Integer.highestOneBit(Math.max(2, slots) * 2 - 1);
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.slots = new ArrayDeque[size];
+        for (int i = 0; i < size; i++) {
+            this.slots[i] = new ArrayDeque<>();
+        }
+        this.mask = size - 1;
+
+        worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    //Instance methods ************************************************
+
+    /**
+     * Run a task on the wheel thread once a delay has passed
+     * @param task the task
+     * @param delay the delay
+     * @param unit unit of the delay
+     * @return the timeout, to cancel it
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - start + unit.toNanos(Math.max(0, delay)));
+        if (!closed) {
+            scheduled.add(timeout);
+        }
+        return timeout;
+    }
+
+    /**
+     * Stop the wheel thread, pending timeouts never run
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(worker);
+    }
+
+    private void run() {
+        long tick = 0;
+        while (!closed) {
+            long wakeUp = (tick + 1) * tickNanos;
+            long sleep;
+            while ((sleep = wakeUp - (System.nanoTime() - start)) > 0 && !closed) {
+                LockSupport.parkNanos(this, sleep);
+            }
+            if (closed) {
+                break;
+            }
+            addScheduled(tick);
+            expire(slots[(int) tick & mask], wakeUp);
+            tick++;
+        }
+    }
+
+    /**
+     * Put the timeouts scheduled since the last tick in their slots
+     */
+    private void addScheduled(long currentTick) {
+        Timeout timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            // due ticks are run on the current tick at the latest, never skipped
+            long dueTick = Math.max(currentTick, timeout.deadline / tickNanos);
+            timeout.rounds = (dueTick - currentTick) / slots.length;
+            slots[(int) dueTick & mask].add(timeout);
+        }
+    }
+
+    private void expire(ArrayDeque<Timeout> slot, long now) {
+        for (int i = slot.size(); i > 0; i--) {
+            Timeout timeout = slot.poll();
+            if (timeout.cancelled) {
+                continue;
+            }
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+                slot.add(timeout);
+            } else if (timeout.deadline <= now) {
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    // one failing task must not stop the wheel
+                }
+            } else {
+                slot.add(timeout);
+            }
+        }
+    }
+}